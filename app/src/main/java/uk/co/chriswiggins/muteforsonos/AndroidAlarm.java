@@ -0,0 +1,37 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+
+/**
+ * Alarm that broadcasts the given action via AlarmManager, so we are woken
+ * up for it even if the phone is in deep sleep.
+ */
+public class AndroidAlarm implements Alarm {
+
+  private AlarmManager alarmManager;
+  private PendingIntent intent;
+
+
+
+  public AndroidAlarm(Context context, String action) {
+    this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    this.intent = PendingIntent.getBroadcast(context, 0, new Intent(action), 0);
+  }
+
+
+
+  public void set(long elapsedRealtime) {
+    alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, elapsedRealtime, intent);
+  }
+
+
+
+  public void cancel() {
+    alarmManager.cancel(intent);
+  }
+
+}
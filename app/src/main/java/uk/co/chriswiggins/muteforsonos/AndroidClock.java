@@ -0,0 +1,21 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import android.os.SystemClock;
+
+
+/**
+ * Clock that carries on counting while the phone is in deep sleep, so it
+ * agrees with AlarmManager's ELAPSED_REALTIME alarms.
+ */
+public class AndroidClock implements Clock {
+
+  public static final AndroidClock INSTANCE = new AndroidClock();
+
+  private AndroidClock() {
+  }
+
+  public long elapsedRealtime() {
+    return SystemClock.elapsedRealtime();
+  }
+
+}
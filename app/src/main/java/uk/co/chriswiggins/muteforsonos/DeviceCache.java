@@ -0,0 +1,376 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import android.content.Context;
+
+import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.binding.xml.DeviceDescriptorBinder;
+import org.fourthline.cling.binding.xml.ServiceDescriptorBinder;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.model.profile.RemoteClientInfo;
+import org.fourthline.cling.model.types.UDN;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import uk.co.chriswiggins.muteforsonos.log.EventLog;
+
+
+/**
+ * Remembers the descriptors (and so control URLs) of the Sonos systems found
+ * on each wi-fi network, keyed by SSID and UDN, so they can be put straight
+ * back into the registry when the service starts or wi-fi reconnects instead
+ * of waiting for discovery to find and hydrate them all over again.
+ *
+ * One JSON file per network, each holding the device descriptor and service
+ * descriptors of every Sonos system on it, as regenerated by Cling.
+ *
+ * Devices to store are collected and written together a little later on
+ * the given executor, so a house full of them found at once costs one
+ * write, made off the caller's thread.
+ */
+public class DeviceCache {
+
+  private static final String TAG = "DeviceCache";
+
+  private static final String CACHE_DIR = "devices";
+
+  // Max age given to devices put back in the registry. The registry is
+  // configured to ignore this (see SonosUpnpService) but it must be set.
+  private static final int MAX_AGE_SECONDS = 1800;
+
+  // How long stores are held back so those that follow can share a write.
+  private static final long STORE_DELAY_MILLIS = 2000L;
+
+  private File dir;
+  private ScheduledExecutorService executor;
+
+  // Devices waiting to be written, by SSID then UDN, and the configuration
+  // to generate their descriptors with.
+  private Map<String, Map<String, RemoteDevice>> pending = new HashMap<String, Map<String, RemoteDevice>>();
+  private UpnpServiceConfiguration configuration;
+  private boolean writeScheduled = false;
+
+
+
+  /**
+   * @param executor Where pending stores are written.
+   */
+  public DeviceCache(Context context, ScheduledExecutorService executor) {
+    this.dir = new File(context.getFilesDir(), CACHE_DIR);
+    this.executor = executor;
+  }
+
+
+
+  /**
+   * Remembers the given (fully hydrated) device as being on the given
+   * network. Only hydrated services are kept. The device is written with
+   * any others stored around the same time, shortly afterwards.
+   */
+  public synchronized void store(String ssid, RemoteDevice device, UpnpServiceConfiguration configuration) {
+    Map<String, RemoteDevice> devices = pending.get(ssid);
+    if (devices == null) {
+      devices = new HashMap<String, RemoteDevice>();
+      pending.put(ssid, devices);
+    }
+    devices.put(device.getIdentity().getUdn().getIdentifierString(), device);
+    this.configuration = configuration;
+
+    if (!writeScheduled) {
+      try {
+        executor.schedule(new Runnable() {
+          public void run() {
+            writePending();
+          }
+        }, STORE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        writeScheduled = true;
+      } catch (RejectedExecutionException e) {
+        EventLog.w(TAG, "Could not schedule cache write", e);
+      }
+    }
+  }
+
+
+
+  /**
+   * Writes the devices stored since the last write, reading and writing
+   * each network's file once.
+   */
+  private synchronized void writePending() {
+    writeScheduled = false;
+
+    for (Map.Entry<String, Map<String, RemoteDevice>> devices : pending.entrySet()) {
+      String ssid = devices.getKey();
+      try {
+        JSONObject network = read(ssid);
+        for (Map.Entry<String, RemoteDevice> device : devices.getValue().entrySet()) {
+          try {
+            network.put(device.getKey(), entry(device.getValue(), configuration));
+          } catch (Exception e) {
+            EventLog.w(TAG, "Could not cache " + device.getValue().getDisplayString(), e);
+          }
+        }
+        write(ssid, network);
+        EventLog.d(TAG, "Cached " + devices.getValue().size() + " devices for " + ssid);
+
+      } catch (Exception e) {
+        EventLog.w(TAG, "Could not write cache for " + ssid, e);
+      }
+    }
+
+    pending.clear();
+  }
+
+
+
+  /**
+   * Returns the cache entry for the given device: where its descriptor
+   * came from, and its device and hydrated service descriptors.
+   */
+  private JSONObject entry(RemoteDevice device, UpnpServiceConfiguration configuration) throws Exception {
+    JSONObject entry = new JSONObject();
+    entry.put("descriptorUrl", device.getIdentity().getDescriptorURL().toString());
+    entry.put("descriptor", configuration.getDeviceDescriptorBinderUDA10().generate(
+            device, new RemoteClientInfo(), configuration.getNamespace()));
+
+    JSONObject services = new JSONObject();
+    ServiceDescriptorBinder serviceBinder = configuration.getServiceDescriptorBinderUDA10();
+    for (RemoteService service : device.findServices()) {
+      if (service.hasActions()) {
+        services.put(serviceKey(service), serviceBinder.generate(service));
+      }
+    }
+    entry.put("services", services);
+
+    return entry;
+  }
+
+
+
+  /**
+   * Forgets the given device on the given network, including a store of it
+   * not yet written.
+   */
+  public synchronized void remove(String ssid, UDN udn) {
+    Map<String, RemoteDevice> devices = pending.get(ssid);
+    if (devices != null) {
+      devices.remove(udn.getIdentifierString());
+    }
+
+    try {
+      JSONObject network = read(ssid);
+      if (network.remove(udn.getIdentifierString()) != null) {
+        EventLog.i(TAG, "Removed " + udn + " from cache for " + ssid);
+        write(ssid, network);
+      }
+    } catch (Exception e) {
+      EventLog.w(TAG, "Could not remove " + udn + " from cache", e);
+    }
+  }
+
+
+
+  /**
+   * Returns the UDNs of the devices last known on the given network.
+   */
+  public synchronized List<UDN> getUdns(String ssid) {
+    List<UDN> udns = new ArrayList<UDN>();
+    try {
+      Iterator<String> keys = read(ssid).keys();
+      while (keys.hasNext()) {
+        udns.add(new UDN(keys.next()));
+      }
+    } catch (Exception e) {
+      EventLog.w(TAG, "Could not read cache for " + ssid, e);
+    }
+    return udns;
+  }
+
+
+
+  /**
+   * Rebuilds the devices last known on the given network from their cached
+   * descriptors, hydrated as far as they were when stored. Entries that
+   * can't be rebuilt are dropped.
+   */
+  public synchronized List<RemoteDevice> load(String ssid, UpnpServiceConfiguration configuration) {
+    List<RemoteDevice> devices = new ArrayList<RemoteDevice>();
+
+    JSONObject network;
+    try {
+      network = read(ssid);
+    } catch (Exception e) {
+      EventLog.w(TAG, "Could not read cache for " + ssid, e);
+      return devices;
+    }
+
+    DeviceDescriptorBinder deviceBinder = configuration.getDeviceDescriptorBinderUDA10();
+    ServiceDescriptorBinder serviceBinder = configuration.getServiceDescriptorBinderUDA10();
+
+    List<String> broken = new ArrayList<String>();
+    Iterator<String> keys = network.keys();
+
+    while (keys.hasNext()) {
+      String udn = keys.next();
+      try {
+        JSONObject entry = network.getJSONObject(udn);
+
+        RemoteDevice undescribed = new RemoteDevice(new RemoteDeviceIdentity(
+                new UDN(udn), MAX_AGE_SECONDS, new URL(entry.getString("descriptorUrl")), null, null));
+        RemoteDevice described = deviceBinder.describe(undescribed, entry.getString("descriptor"));
+
+        Map<String, String> services = new HashMap<String, String>();
+        JSONObject servicesEntry = entry.getJSONObject("services");
+        Iterator<String> serviceKeys = servicesEntry.keys();
+        while (serviceKeys.hasNext()) {
+          String key = serviceKeys.next();
+          services.put(key, servicesEntry.getString(key));
+        }
+
+        devices.add(hydrate(described, services, serviceBinder));
+
+      } catch (Exception e) {
+        EventLog.w(TAG, "Could not rebuild cached device " + udn + ", dropping it", e);
+        broken.add(udn);
+      }
+    }
+
+    if (!broken.isEmpty()) {
+      for (String udn : broken) {
+        network.remove(udn);
+      }
+      try {
+        write(ssid, network);
+      } catch (IOException e) {
+        EventLog.w(TAG, "Could not write cache for " + ssid, e);
+      }
+    }
+
+    EventLog.i(TAG, "Loaded " + devices.size() + " cached devices for " + ssid);
+
+    return devices;
+  }
+
+
+
+  /**
+   * Returns a copy of the given device with the cached service descriptors
+   * applied, recursing into embedded devices. Services without a cached
+   * descriptor are left out.
+   */
+  private RemoteDevice hydrate(RemoteDevice device, Map<String, String> services,
+                               ServiceDescriptorBinder serviceBinder) throws Exception {
+    List<RemoteService> describedServices = new ArrayList<RemoteService>();
+    if (device.hasServices()) {
+      for (RemoteService service : device.getServices()) {
+        String descriptor = services.get(serviceKey(service));
+        if (descriptor != null) {
+          describedServices.add(serviceBinder.describe(service, descriptor));
+        }
+      }
+    }
+
+    List<RemoteDevice> embeddedDevices = new ArrayList<RemoteDevice>();
+    if (device.hasEmbeddedDevices()) {
+      for (RemoteDevice embeddedDevice : device.getEmbeddedDevices()) {
+        embeddedDevices.add(hydrate(embeddedDevice, services, serviceBinder));
+      }
+    }
+
+    return device.newInstance(
+            device.getIdentity().getUdn(),
+            device.getVersion(),
+            device.getType(),
+            device.getDetails(),
+            device.getIcons(),
+            device.toServiceArray(describedServices),
+            embeddedDevices);
+  }
+
+
+
+  /**
+   * Service ids repeat across embedded devices (e.g. ConnectionManager), so
+   * services are keyed by the UDN of the device they belong to as well.
+   */
+  private static String serviceKey(RemoteService service) {
+    return service.getDevice().getIdentity().getUdn().getIdentifierString() + " " + service.getServiceId();
+  }
+
+
+
+  private File file(String ssid) throws UnsupportedEncodingException {
+    return new File(dir, URLEncoder.encode(ssid, "UTF-8") + ".json");
+  }
+
+
+
+  private JSONObject read(String ssid) throws IOException, JSONException {
+    File file = file(ssid);
+    if (!file.exists()) {
+      return new JSONObject();
+    }
+
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] bytes = new byte[(int) file.length()];
+      int read = 0;
+      while (read < bytes.length) {
+        int n = in.read(bytes, read, bytes.length - read);
+        if (n == -1) {
+          break;
+        }
+        read += n;
+      }
+      return new JSONObject(new String(bytes, 0, read, "UTF-8"));
+    } finally {
+      in.close();
+    }
+  }
+
+
+
+  /**
+   * Writes to a temporary file first so a crash can't leave a half written
+   * cache behind.
+   */
+  private void write(String ssid, JSONObject network) throws IOException {
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+
+    File file = file(ssid);
+    File temp = new File(dir, file.getName() + ".tmp");
+
+    OutputStream out = new FileOutputStream(temp);
+    try {
+      out.write(network.toString().getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+
+    if (!temp.renameTo(file)) {
+      throw new IOException("Could not rename " + temp + " to " + file);
+    }
+  }
+
+}
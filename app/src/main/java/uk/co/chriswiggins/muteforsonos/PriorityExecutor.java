@@ -0,0 +1,301 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.SubscriptionCallback;
+import org.fourthline.cling.protocol.RetrieveRemoteDescriptors;
+import org.fourthline.cling.protocol.SendingSync;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.chriswiggins.muteforsonos.log.EventLog;
+
+
+/**
+ * A thread pool that runs the most important work first. UPnP actions (i.e.
+ * mutes and unmutes, whether through Cling or made directly by
+ * RenderingControlClient) don't queue while there are action threads to
+ * spare: each runs straight away on a thread of its own, from a separate
+ * pool, so muting every zone in the house takes one round trip. Beyond
+ * that they queue ahead of everything else. The rest share a fixed number
+ * of threads, event subscriptions (subscribing, renewing) and descriptor
+ * retrieval ahead of everything else (handling SSDP traffic and so on).
+ * Work submitted while running a task inherits its priority if that is
+ * higher.
+ *
+ * The queue is bounded twice over. Once it holds capacity tasks, SSDP
+ * handling and the like is dropped (and logged, and counted in Metrics), so
+ * a burst of traffic on a busy network can't build up a backlog. Once it
+ * holds limit tasks, everything else is rejected too; the callers of
+ * actions and subscriptions treat that as the call failing.
+ */
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+  private static final String TAG = "PriorityExecutor";
+
+  public static final int HIGH = 0;
+  public static final int NORMAL = 1;
+  public static final int LOW = 2;
+
+  private static final long KEEP_ALIVE_SECONDS = 45;
+
+  private final String name;
+  private final int capacity;
+  private final int limit;
+  private final ThreadPoolExecutor actionPool;
+  private volatile Metrics metrics;
+  private final ThreadLocal<Integer> runningPriority = new ThreadLocal<Integer>();
+  private final AtomicLong sequence = new AtomicLong();
+
+  // Metrics.
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong[] completed = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+
+
+
+  /**
+   * @param threads How many threads run everything but actions.
+   * @param actionThreads How many actions may run at once before the rest
+   *     queue.
+   * @param capacity How many tasks may be queued before the least important
+   *     ones are dropped.
+   * @param limit How many tasks may be queued before any more are rejected.
+   * @param actionThreadFactory Makes the threads actions run on.
+   */
+  public PriorityExecutor(String name, int threads, int actionThreads, int capacity, int limit,
+                          ThreadFactory threadFactory, ThreadFactory actionThreadFactory) {
+    super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), threadFactory);
+    this.name = name;
+    this.capacity = capacity;
+    this.limit = limit;
+
+    // We can afford to wait for threads to be started up again.
+    allowCoreThreadTimeOut(true);
+
+    actionPool = new ThreadPoolExecutor(0, actionThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), actionThreadFactory);
+  }
+
+
+
+  /**
+   * Sets the metrics dropped and rejected tasks are counted in, or null for
+   * none.
+   */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+
+
+  @Override
+  public void execute(Runnable command) {
+    PrioritizedTask<?> task = command instanceof PrioritizedTask
+            ? (PrioritizedTask<?>) command
+            : new PrioritizedTask<Object>(command, null, priorityOf(command));
+
+    if (task.priority == HIGH && runAction(task)) {
+      return;
+    }
+
+    int depth = getQueue().size();
+
+    if (task.priority == LOW && depth >= capacity) {
+      dropped(task, depth);
+      // Anyone waiting on it finds out rather than waiting forever.
+      task.cancel(false);
+      return;
+    }
+
+    if (depth >= limit) {
+      dropped(task, depth);
+      throw new RejectedExecutionException(name + " queue full (" + depth + " tasks)");
+    }
+
+    super.execute(task);
+
+    depth++;
+    int max = maxQueueDepth.get();
+    while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+      max = maxQueueDepth.get();
+    }
+  }
+
+
+
+  private void dropped(PrioritizedTask<?> task, int depth) {
+    dropped.incrementAndGet();
+    EventLog.w(TAG, name + " queue full (" + depth + " tasks). Dropping " + task.task);
+    Metrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.taskDropped();
+    }
+  }
+
+
+
+  /**
+   * Runs an action on a thread of its own, as though it ran in this pool.
+   * Returns false if every action thread is busy, in which case the action
+   * should queue instead.
+   */
+  private boolean runAction(final PrioritizedTask<?> task) {
+    try {
+      actionPool.execute(new Runnable() {
+        public void run() {
+          runningPriority.set(HIGH);
+          try {
+            task.run();
+          } finally {
+            runningPriority.remove();
+            completed[HIGH].incrementAndGet();
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+
+
+  @Override
+  public void shutdown() {
+    actionPool.shutdown();
+    super.shutdown();
+  }
+
+
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    actionPool.shutdownNow();
+    return super.shutdownNow();
+  }
+
+
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+    return new PrioritizedTask<T>(runnable, value, priorityOf(runnable));
+  }
+
+
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+    return new PrioritizedTask<T>(callable, priorityOf(callable));
+  }
+
+
+
+  @Override
+  protected void beforeExecute(Thread thread, Runnable runnable) {
+    super.beforeExecute(thread, runnable);
+    runningPriority.set(((PrioritizedTask<?>) runnable).priority);
+  }
+
+
+
+  @Override
+  protected void afterExecute(Runnable runnable, Throwable throwable) {
+    runningPriority.remove();
+    completed[((PrioritizedTask<?>) runnable).priority].incrementAndGet();
+    super.afterExecute(runnable, throwable);
+  }
+
+
+
+  private int priorityOf(Object task) {
+    int priority;
+    if (task instanceof ActionCallback || task instanceof RenderingControlClient.Call) {
+      priority = HIGH;
+    } else if (task instanceof SubscriptionCallback || task instanceof SendingSync
+            || task instanceof RetrieveRemoteDescriptors) {
+      priority = NORMAL;
+    } else {
+      priority = LOW;
+    }
+
+    Integer inherited = runningPriority.get();
+    if (inherited != null && inherited < priority) {
+      priority = inherited;
+    }
+
+    return priority;
+  }
+
+
+
+  public int getQueueDepth() {
+    return getQueue().size();
+  }
+
+
+
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+
+
+  public String getStats() {
+    return name + ": queue depth " + getQueueDepth() +
+            " (max " + getMaxQueueDepth() + "), active " + getActiveCount() +
+            ", action threads " + actionPool.getPoolSize() + " (max " + actionPool.getLargestPoolSize() + ")" +
+            ", completed high/normal/low " + completed[HIGH] + "/" + completed[NORMAL] + "/" + completed[LOW] +
+            ", dropped " + getDropped();
+  }
+
+
+
+  /**
+   * A task that orders by priority, then by when it was submitted.
+   */
+  private class PrioritizedTask<T> extends FutureTask<T> implements Comparable<PrioritizedTask<?>> {
+
+    private final Object task;
+    private final int priority;
+    private final long order = sequence.getAndIncrement();
+
+    PrioritizedTask(Runnable runnable, T value, int priority) {
+      super(runnable, value);
+      this.task = runnable;
+      this.priority = priority;
+    }
+
+    PrioritizedTask(Callable<T> callable, int priority) {
+      super(callable);
+      this.task = callable;
+      this.priority = priority;
+    }
+
+    @Override
+    public int compareTo(PrioritizedTask<?> that) {
+      if (this.priority != that.priority) {
+        return this.priority < that.priority ? -1 : 1;
+      }
+      return this.order < that.order ? -1 : (this.order == that.order ? 0 : 1);
+    }
+  }
+
+}
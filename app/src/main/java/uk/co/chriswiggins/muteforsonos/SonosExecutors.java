@@ -0,0 +1,160 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The thread pools used by SonosService and SonosUpnpService, all sized
+ * and named in one place.
+ *
+ * Cling's protocols (actions, subscriptions, SSDP handling, descriptor
+ * retrieval) share one prioritised pool, in which actions (mutes) each get
+ * a thread straight away and the rest share a few. The HTTP requests those
+ * protocols make and then wait for run in a separate pool, so protocol
+ * threads can never end up waiting for requests queued behind themselves;
+ * once its queue is full, the protocol thread makes the request itself.
+ * Every queue is bounded. Cling's long running listener threads and
+ * registry maintenance are left as they are.
+ */
+public class SonosExecutors {
+
+  // For everything but actions, which get threads of their own.
+  private static final int PROTOCOL_THREADS = 4;
+  // Enough to mute every zone of a big house, and its group, at once.
+  private static final int ACTION_THREADS = 32;
+  // Beyond the capacity SSDP handling and the like is dropped; beyond the
+  // limit, everything is turned down.
+  private static final int PROTOCOL_QUEUE_CAPACITY = 64;
+  private static final int PROTOCOL_QUEUE_LIMIT = 256;
+  private static final int REQUEST_THREADS = 8;
+  private static final int REQUEST_QUEUE_CAPACITY = 64;
+  // Enough to probe every zone of a big house at once.
+  private static final int PROBE_THREADS = 16;
+  private static final int PROBE_QUEUE_CAPACITY = 64;
+  private static final long KEEP_ALIVE_SECONDS = 45;
+
+  private static PriorityExecutor protocolExecutor;
+  private static ThreadPoolExecutor requestExecutor;
+  private static ThreadPoolExecutor probeExecutor;
+  private static Metrics metrics;
+
+
+
+  /**
+   * Returns the pool UPnP protocols run in.
+   */
+  public static synchronized PriorityExecutor getProtocolExecutor() {
+    if (protocolExecutor == null) {
+      protocolExecutor = new PriorityExecutor("protocol", PROTOCOL_THREADS, ACTION_THREADS,
+              PROTOCOL_QUEUE_CAPACITY, PROTOCOL_QUEUE_LIMIT,
+              new NamedThreadFactory("sonos-protocol"), new NamedThreadFactory("sonos-action"));
+      protocolExecutor.setMetrics(metrics);
+    }
+    return protocolExecutor;
+  }
+
+
+
+  /**
+   * Sets the metrics the protocol pool counts dropped work in, or null for none.
+   */
+  public static synchronized void setMetrics(Metrics metrics) {
+    SonosExecutors.metrics = metrics;
+    if (protocolExecutor != null) {
+      protocolExecutor.setMetrics(metrics);
+    }
+  }
+
+
+
+  /**
+   * Returns the pool HTTP requests (SOAP actions, GENA subscriptions,
+   * descriptor downloads) run in.
+   */
+  public static synchronized ExecutorService getRequestExecutor() {
+    if (requestExecutor == null) {
+      requestExecutor = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS,
+              KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(REQUEST_QUEUE_CAPACITY),
+              new NamedThreadFactory("sonos-request"),
+              // Cling doesn't expect its request to be turned down, and
+              // waits for the answer anyway.
+              new ThreadPoolExecutor.CallerRunsPolicy());
+      requestExecutor.allowCoreThreadTimeOut(true);
+    }
+    return requestExecutor;
+  }
+
+
+
+  /**
+   * Returns the pool UnicastProber fetches descriptors in. Probes of
+   * addresses that have gone can take seconds to time out, so they are kept
+   * away from everything else.
+   */
+  public static synchronized ExecutorService getProbeExecutor() {
+    if (probeExecutor == null) {
+      probeExecutor = new ThreadPoolExecutor(PROBE_THREADS, PROBE_THREADS,
+              KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(PROBE_QUEUE_CAPACITY),
+              new NamedThreadFactory("sonos-probe"),
+              // Probes are started from the device cache's thread, which
+              // can wait.
+              new ThreadPoolExecutor.CallerRunsPolicy());
+      probeExecutor.allowCoreThreadTimeOut(true);
+    }
+    return probeExecutor;
+  }
+
+
+
+  /**
+   * Creates the single threaded scheduler SonosService uses for its own
+   * timed jobs. Its owner is responsible for shutting it down.
+   */
+  public static ScheduledThreadPoolExecutor createScheduler() {
+    return createScheduler("sonos-scheduler");
+  }
+
+
+
+  /**
+   * Creates a single threaded scheduler whose thread is named after the
+   * given prefix. Its owner is responsible for shutting it down.
+   */
+  public static ScheduledThreadPoolExecutor createScheduler(String name) {
+    ScheduledThreadPoolExecutor scheduler =
+            new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(name));
+
+    // Terminate the thread after a while so we don't use resources. We can
+    // afford to wait for it to be started up again.
+    scheduler.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    scheduler.allowCoreThreadTimeOut(true);
+
+    return scheduler;
+  }
+
+
+
+  private static class NamedThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, prefix + "-" + count.incrementAndGet());
+    }
+  }
+
+}
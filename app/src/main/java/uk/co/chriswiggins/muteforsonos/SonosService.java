@@ -1,7 +1,5 @@
 package uk.co.chriswiggins.muteforsonos;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -11,35 +9,31 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Parcelable;
-import android.os.SystemClock;
-import android.util.Log;
+import android.os.PowerManager;
 import android.widget.Toast;
 
 import org.fourthline.cling.android.AndroidUpnpService;
 import org.fourthline.cling.android.FixedAndroidLogHandler;
 import org.fourthline.cling.model.message.header.UDADeviceTypeHeader;
 import org.fourthline.cling.model.meta.Device;
-import org.fourthline.cling.model.meta.DeviceIdentity;
 import org.fourthline.cling.model.meta.RemoteDevice;
-import org.fourthline.cling.model.types.DeviceType;
-import org.fourthline.cling.model.types.UDADeviceType;
-import org.fourthline.cling.model.types.UDAServiceId;
+import org.fourthline.cling.model.types.UDN;
 import org.fourthline.cling.registry.DefaultRegistryListener;
 import org.fourthline.cling.registry.Registry;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ScheduledFuture;
+import java.util.List;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import uk.co.chriswiggins.muteforsonos.log.EventLog;
 import uk.co.chriswiggins.muteforsonos.log.LogManager;
 
 
@@ -48,31 +42,40 @@ public class SonosService extends Service implements Sonos.Failure {
   private static final String TAG = "SonosService";
 
   private static final boolean LOG = false;
-  private static final DeviceType SONOS_DEVICE_TYPE = new UDADeviceType("ZonePlayer");
   public static final String MUTE_TEMPORARILY_ACTION = "uk.co.chriswiggins.sonoscontrol.pausetemporarily";
   public static final String UNMUTE_ACTION = "uk.co.chriswiggins.sonoscontrol.unmute";
-  private static final long MUTE_LENGTH = 30 * 1000L;
-  private static final long MAX_MUTE_LENGTH = (9*60 + 59) * 1000L; // 9:59s
 
   private LogManager logManager;
-
-  // Map from wi-fi network to a map of discovered Sonos systems.
-  private Map<String, Map<DeviceIdentity, Sonos>> sonoses = new HashMap<String, Map<DeviceIdentity, Sonos>>();
+  private DeviceCache deviceCache;
 
   private Handler handler;
   private AndroidUpnpService upnpService;
-  private AlarmManager alarmManager;
-  private PendingIntent unmuteIntent;
 
-  private Object muteLock = new Object();
-  private boolean muted = false;
-  private long unmuteTime;
+  // Does the muting. This service just connects it to Android.
+  private MuteEngine engine;
 
-  private boolean wifiConnected = false;
-  private String ssid;
+  // The running engine's metrics, for the log activity to export.
+  private static volatile Metrics metrics;
 
   private ScheduledThreadPoolExecutor executor;
-  private ScheduledFuture<?> tickerFuture;
+  private DiscoveryScheduler discovery;
+
+  // Reads and writes the device cache, away from the main thread and from
+  // the engine's scheduler.
+  private ScheduledThreadPoolExecutor cacheExecutor;
+
+  // Works out which wi-fi broadcasts are real changes of network.
+  private NetworkMonitor networkMonitor;
+
+
+
+  /**
+   * Returns the metrics of the running service, or null if it isn't
+   * running.
+   */
+  public static Metrics getMetrics() {
+    return metrics;
+  }
 
 
 
@@ -93,15 +96,20 @@ public class SonosService extends Service implements Sonos.Failure {
       logManager.showNotification();
     }
 
-    executor = new ScheduledThreadPoolExecutor(1);
-
-    // Terminate all thread pool threads after a while so we don't use
-    // resources. We can afford to wait for them to be started up again.
-    executor.setKeepAliveTime(45, TimeUnit.SECONDS);
-    executor.allowCoreThreadTimeOut(true);
+    executor = SonosExecutors.createScheduler();
 
     handler = new Handler();
-    alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+
+    engine = new MuteEngine(executor, AndroidClock.INSTANCE, new AndroidAlarm(this, UNMUTE_ACTION),
+            new WidgetNotifier(), this);
+    engine.setVisible(((PowerManager) getSystemService(Context.POWER_SERVICE)).isScreenOn());
+    discovery = new DiscoveryScheduler(executor, new DoDeviceDiscovery(), engine.getMetrics());
+    metrics = engine.getMetrics();
+    SonosExecutors.setMetrics(metrics);
+    networkMonitor = new NetworkMonitor(executor, new NetworkListener(), engine.getMetrics());
+
+    cacheExecutor = SonosExecutors.createScheduler("sonos-device-cache");
+    deviceCache = new DeviceCache(this, cacheExecutor);
 
     // Make Cling log as needed.
     org.seamless.util.logging.LoggingUtil.resetRootHandler(
@@ -110,7 +118,7 @@ public class SonosService extends Service implements Sonos.Failure {
     Logger.getLogger("org.fourthline.cling").setLevel(Level.INFO);
 
     // Bind to the UPnP service, creating it if necessary.
-    Log.d(TAG, "Binding to AndroidUpnpService...");
+    EventLog.d(TAG, "Binding to AndroidUpnpService...");
     getApplicationContext().bindService(
             new Intent(this, SonosUpnpService.class),
             new UpnpServiceConnection(),
@@ -121,19 +129,29 @@ public class SonosService extends Service implements Sonos.Failure {
             new WiFiBroadcastReceiver(),
             new IntentFilter("android.net.wifi.STATE_CHANGE"));
 
-    // Register a broadcast receiver to receive alarm events telling us to unmute.
-    registerReceiver(new SonosBroadcastReceiver(), new IntentFilter(UNMUTE_ACTION));
+    // Register a broadcast receiver to receive alarm events telling us to
+    // unmute, and to find out when the screen (and so the widget) can be seen.
+    IntentFilter filter = new IntentFilter(UNMUTE_ACTION);
+    filter.addAction(Intent.ACTION_SCREEN_ON);
+    filter.addAction(Intent.ACTION_SCREEN_OFF);
+    registerReceiver(new SonosBroadcastReceiver(), filter);
   }
 
 
 
   @Override
   public void onDestroy() {
-    Log.i(TAG, "onDestroy");
+    EventLog.i(TAG, "onDestroy");
+    EventLog.i(TAG, "Metrics: " + engine.getMetrics().snapshot());
+    metrics = null;
+    SonosExecutors.setMetrics(null);
 
     // Stop any future jobs that are scheduled to run, and shutdown the executor.
     executor.shutdownNow();
 
+    // Let cache writes already waiting finish.
+    cacheExecutor.shutdown();
+
     if (LOG) {
       logManager.shutdown();
     }
@@ -149,7 +167,7 @@ public class SonosService extends Service implements Sonos.Failure {
    */
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
-    Log.i(TAG, "onStartCommand");
+    EventLog.i(TAG, "onStartCommand");
 
     if (intent != null) {
       processIntent(intent);
@@ -163,62 +181,23 @@ public class SonosService extends Service implements Sonos.Failure {
 
   /**
    * Receives broadcasts, specifically the alarm intent telling us it's time
-   * to unmute.
+   * to unmute, and the screen going on and off.
    */
   private class SonosBroadcastReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
       String action = intent.getAction();
-      Log.d(TAG, "onReceive. Action = " + action);
+      EventLog.d(TAG, "onReceive. Action = " + action);
 
       if (action.equals(UNMUTE_ACTION)) {
-        unmute();
-      }
-    }
-  }
-
-
-  /**
-   * Unmute. Called via AlarmManager and via the update UI tick, to deal with
-   * the weird inaccuracy of AlarmManager.
-   */
-  private void unmute() {
-    synchronized (muteLock) {
-
-      Log.i(TAG, "Time = " + SystemClock.elapsedRealtime() + ". Unmute time = " + unmuteTime + ". Diff = " + (SystemClock.elapsedRealtime() - unmuteTime) / 1000.0f + "s");
-
-      if (muted) {
-        synchronized (sonoses) {
-          Map<DeviceIdentity, Sonos> sonosesForNetwork = sonoses.get(ssid);
-          if (sonosesForNetwork != null) {
-            for (Sonos sonos : sonosesForNetwork.values()) {
-              Log.i(TAG, "Restoring state of " + sonos.getName());
-              sonos.restoreMute();
-            }
-          }
-        }
-
-        muted = false;
+        engine.alarmFired();
 
-        if (tickerFuture != null) {
-          tickerFuture.cancel(false);
-        }
-        SonosWidgetProvider.notifyChange(SonosService.this);
+      } else if (action.equals(Intent.ACTION_SCREEN_ON)) {
+        engine.setVisible(true);
 
-      } else {
-        // This could happen because this method is called both by the update
-        // UI tick and the alarm.
-        Log.i(TAG, "Already unmuted, will not unmute.");
+      } else if (action.equals(Intent.ACTION_SCREEN_OFF)) {
+        engine.setVisible(false);
       }
-
-      // There's a race condition where the user presses the button again as
-      // this alarm triggers. The main thread grabs the lock and we block.
-      // The main thread cancels the alarm (that's already started
-      // to run) and schedules a new one a bit further in the future. We'll
-      // then run regardless, so we'd better cancel that future extra run,
-      // if it exists.
-
-      alarmManager.cancel(unmuteIntent);
     }
   }
 
@@ -230,70 +209,7 @@ public class SonosService extends Service implements Sonos.Failure {
     String action = intent.getAction();
 
     if (SonosService.MUTE_TEMPORARILY_ACTION.equals(action)) {
-
-      synchronized (muteLock) {
-
-        if (!wifiConnected) {
-          Log.i(TAG, "No wi-fi, inform user...");
-          handler.post(new Runnable() {
-            @Override
-            public void run() {
-              Toast.makeText(SonosService.this, "Not connected to wi-fi", Toast.LENGTH_SHORT).show();
-            }
-          });
-
-        } else if (getNumKnownSonosSystems() == 0) {
-          Log.i(TAG, "Wi-fi connected, but no Sonoses found. Inform user...");
-          handler.post(new Runnable() {
-            @Override
-            public void run() {
-              Toast.makeText(SonosService.this, "No Sonos systems found", Toast.LENGTH_SHORT).show();
-            }
-          });
-
-        } else {
-
-          if (!muted) {
-            Log.i(TAG, "Not currently muted. Muting...");
-
-            // Mute all Sonos systems.
-
-            synchronized (sonoses) {
-              Map<DeviceIdentity, Sonos> sonosesForNetwork = sonoses.get(ssid);
-              if (sonosesForNetwork != null) {
-                for (Sonos sonos : sonosesForNetwork.values()) {
-                  Log.i(TAG, "Setting muted on " + sonos.getName());
-                  sonos.mute();
-                }
-              }
-            }
-
-            muted = true;
-
-            // Schedule a regular job to update the UI with time left until
-            // unmute.
-
-            unmuteTime = SystemClock.elapsedRealtime() + MUTE_LENGTH;
-            tickerFuture = executor.scheduleAtFixedRate(new UpdateUI(), 1000L, 1000L, TimeUnit.MILLISECONDS);
-
-          } else {
-            Log.i(TAG, "Already muted. Adding more mute.");
-
-            unmuteTime = Math.min(unmuteTime + MUTE_LENGTH, SystemClock.elapsedRealtime() + MAX_MUTE_LENGTH);
-
-            // Cancel current unmute future event. A new one at the correct time
-            // will be added below.
-            alarmManager.cancel(unmuteIntent);
-          }
-
-          // Set up an alarm to unmute (use an alarm so we are always woken up
-          // to unmute, even if the phone is in deep sleep).
-          unmuteIntent = PendingIntent.getBroadcast(this, 0, new Intent(UNMUTE_ACTION), 0);
-          alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, unmuteTime, unmuteIntent);
-
-          Log.i(TAG, "Time = " + SystemClock.elapsedRealtime() + ". Unmute time = " + unmuteTime + ". Diff = " + (SystemClock.elapsedRealtime() - unmuteTime) / 1000.0f + "s");
-        }
-      }
+      engine.muteTemporarily();
     }
 
     // Regardless of the intent, update the UI. This could be a 2nd (or more)
@@ -304,46 +220,52 @@ public class SonosService extends Service implements Sonos.Failure {
 
 
   public boolean isWifiConnected() {
-    return wifiConnected;
+    return engine.isConnected();
   }
 
 
 
   public int getSecondsUntilUnmute() {
-    return Math.round(Math.max(unmuteTime - SystemClock.elapsedRealtime(), 0L) / 1000.0f);
+    return engine.getSecondsUntilUnmute();
   }
 
 
 
   public int getNumKnownSonosSystems() {
-    int numSonoses = 0;
-    synchronized (sonoses) {
-      Map<DeviceIdentity, Sonos> sonosesForNetwork = sonoses.get(ssid);
-      if (sonosesForNetwork != null) {
-        numSonoses = sonosesForNetwork.size();
-      }
-    }
-
-    return numSonoses;
+    return engine.getNumKnownSonosSystems();
   }
 
 
 
   public boolean isMuted() {
-    return muted;
+    return engine.isMuted();
   }
 
 
+
   /**
-   * Runs every second to update the UI.
+   * Shows what the engine is up to on the widget, and tells the user when it
+   * can't mute.
    */
-  class UpdateUI implements Runnable {
-    public void run() {
+  private class WidgetNotifier implements Notifier {
+    public void stateChanged() {
       SonosWidgetProvider.notifyChange(SonosService.this);
-      if (SystemClock.elapsedRealtime() - unmuteTime > 0L) {
-        Log.i(TAG, "Forcing an unmute in case AlarmManager is late (which it often is for some reason)");
-        unmute();
-      }
+    }
+
+    public void cannotMute(Problem problem) {
+      final String message = problem == Problem.NOT_CONNECTED
+              ? "Not connected to wi-fi"
+              : "No Sonos systems found";
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          Toast.makeText(SonosService.this, message, Toast.LENGTH_SHORT).show();
+        }
+      });
+    }
+
+    public void fanOutCompleted(boolean mute, List<MuteFanOut.Result> results, long elapsedMillis) {
+      EventLog.d(TAG, SonosExecutors.getProtocolExecutor().getStats());
     }
   }
 
@@ -364,19 +286,12 @@ public class SonosService extends Service implements Sonos.Failure {
 
           if (networkInfo.getState() == NetworkInfo.State.CONNECTED) {
             WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-            ssid = wifiManager.getConnectionInfo().getSSID();
-            wifiConnected = true;
-
-            SonosWidgetProvider.notifyChange(SonosService.this);
-
-            // Search for devices. This will only happen if we have a reference to the
-            // upnpService.
-            search();
+            WifiInfo info = wifiManager.getConnectionInfo();
+            networkMonitor.connected(info.getSSID(), info.getBSSID());
 
           } else {
-            Log.d(TAG, "Wi-fi not connected.");
-            wifiConnected = false;
-            SonosWidgetProvider.notifyChange(SonosService.this);
+            EventLog.d(TAG, "Wi-fi not connected.");
+            networkMonitor.disconnected();
           }
         }
       }
@@ -385,44 +300,136 @@ public class SonosService extends Service implements Sonos.Failure {
 
 
 
+  /**
+   * Acts on real changes of network, as worked out by the NetworkMonitor
+   * from the wi-fi broadcasts.
+   */
+  private class NetworkListener implements NetworkMonitor.Listener {
+    public void joined(String ssid) {
+      engine.connected(ssid);
+
+      // Search for devices. This will only happen if we have a reference to the
+      // upnpService.
+      search();
+    }
+
+    public void roamed(String ssid) {
+      // Same network, so the Sonos systems found are still there.
+      EventLog.d(TAG, "Roamed on " + ssid + ". Not searching again.");
+    }
+
+    public void left() {
+      engine.disconnected();
+    }
+  }
+
+
+
   /**
    * Runnable that initiates a device discovery on the network.
    */
   private class DoDeviceDiscovery implements Runnable {
     public void run() {
-      Log.i(TAG, "Searching for Sonos systems...");
-      upnpService.getControlPoint().search(new UDADeviceTypeHeader(SonosService.SONOS_DEVICE_TYPE));
+      AndroidUpnpService upnpService = SonosService.this.upnpService;
+      if (upnpService != null) {
+        EventLog.i(TAG, "Searching for Sonos systems...");
+        upnpService.getControlPoint().search(new UDADeviceTypeHeader(SonosTracker.SONOS_DEVICE_TYPE));
+      }
     }
   }
 
 
 
   /**
-   * Deals with joining a network. Adds it to the set of known networks if
-   * necessary, then schedules several device discoveries. If wi-fi is not
-   * connected or we don't yet have a reference to the upnpService, does
-   * nothing.
+   * Deals with joining a network. Starts device discovery until everything
+   * known there last time has been found, and probes for those devices at
+   * their last known addresses meanwhile. If wi-fi is not connected or we
+   * don't yet have a reference to the upnpService, does nothing.
+   *
+   * The cache is read on its own thread, so neither the main thread nor
+   * mutes wait for it.
    */
   private void search() {
-    if (wifiConnected && upnpService != null) {
-      Log.i(TAG, "Wi-fi connected. ssid = " + ssid + ". Will schedule device searches.");
+    final String ssid = engine.getSsid();
+    final AndroidUpnpService upnpService = this.upnpService;
+    if (engine.isConnected() && upnpService != null) {
+      EventLog.i(TAG, "Wi-fi connected. ssid = " + ssid + ". Will schedule device searches.");
+
+      cacheExecutor.execute(new Runnable() {
+        public void run() {
+          List<String> expected = new ArrayList<String>();
+          for (UDN udn : deviceCache.getUdns(ssid)) {
+            expected.add(udn.getIdentifierString());
+          }
 
-      synchronized (sonoses) {
-        if (!sonoses.containsKey(ssid)) {
-          sonoses.put(ssid, new HashMap<DeviceIdentity, Sonos>());
+          // Cling doesn't always seem to notice wi-fi has connected, or maybe it
+          // notices but discovery fails anyway for some reason. Search manually,
+          // backing off, until we've found everything we expect.
+          discovery.start(expected);
+
+          // Meanwhile look for them where they were. Started after discovery so
+          // the ones that answer count as found.
+          restoreCachedDevices(ssid, upnpService);
         }
-      }
+      });
+    }
+  }
+
 
-      // HACK: Cling doesn't always seem to notice wi-fi has connected, or maybe it notices
-      // but discovery fails anyway for some reason. Schedule a few manual searches in a bit
-      // to try to ensure we find everything.
-      executor.schedule(new DoDeviceDiscovery(), 2, TimeUnit.SECONDS);
-      executor.schedule(new DoDeviceDiscovery(), 5, TimeUnit.SECONDS);
-      executor.schedule(new DoDeviceDiscovery(), 10, TimeUnit.SECONDS);
+  /**
+   * Probes the Sonos systems last known on this network at their old
+   * addresses, alongside discovery, and puts each one that answers straight
+   * into the registry from the cache, so they can be muted before multicast
+   * search has found them again. Those that don't answer are dropped from
+   * the cache; discovery will find them if they've just moved.
+   *
+   * Called on the cache's thread. The probes run in their own pool, so
+   * stale addresses timing out hold up nothing else.
+   */
+  private void restoreCachedDevices(String ssid, AndroidUpnpService upnpService) {
+    List<RemoteDevice> devices = deviceCache.load(ssid, upnpService.getConfiguration());
+    if (!devices.isEmpty()) {
+      probeCachedDevices(ssid, devices, upnpService);
     }
   }
 
 
+
+  /**
+   * Probes the given cached devices, restoring those that answer.
+   */
+  private void probeCachedDevices(final String ssid, List<RemoteDevice> devices,
+                                  final AndroidUpnpService upnpService) {
+    UnicastProber prober = new UnicastProber(upnpService.getConfiguration(), SonosExecutors.getProbeExecutor());
+    prober.probe(devices, new UnicastProber.Listener() {
+      public void answered(RemoteDevice device) {
+        Registry registry = upnpService.getRegistry();
+        if (registry.getDevice(device.getIdentity().getUdn(), true) == null) {
+          EventLog.i(TAG, "Restoring cached device " + device.getDisplayString());
+          registry.addDevice(device);
+        }
+        verified(device);
+      }
+
+      public void unanswered(RemoteDevice device, String problem) {
+        EventLog.i(TAG, "Cached device " + device.getDisplayString() + " isn't there ("
+                + problem + "). Dropping it.");
+        deviceCache.remove(ssid, device.getIdentity().getUdn());
+      }
+    });
+  }
+
+
+
+  /**
+   * Called when a device is known to really be on the network.
+   */
+  private void verified(RemoteDevice device) {
+    discovery.deviceFound(device.getIdentity().getUdn().getIdentifierString());
+  }
+
+
+
   /**
    * Our connection to the UPnP service. Listens for devices on the network as
    * they come and go and keeps track of them.
@@ -433,13 +440,14 @@ public class SonosService extends Service implements Sonos.Failure {
 
     public void onServiceConnected(ComponentName className, IBinder service) {
 
-      Log.i(TAG, "UPnP service connected.");
+      EventLog.i(TAG, "UPnP service connected.");
 
       upnpService = (AndroidUpnpService) service;
+      engine.setControlPoint(upnpService.getControlPoint());
 
       // Get currently known devices.
-      Collection<Device> devices = upnpService.getRegistry().getDevices(SONOS_DEVICE_TYPE);
-      Log.d(TAG, "Registry already knows about " + devices.size() + " Sonos devices. Adding them.");
+      Collection<Device> devices = upnpService.getRegistry().getDevices(SonosTracker.SONOS_DEVICE_TYPE);
+      EventLog.d(TAG, "Registry already knows about " + devices.size() + " Sonos devices. Adding them.");
       for (Device device : devices) {
         registryListener.deviceAdded(device);
       }
@@ -453,8 +461,8 @@ public class SonosService extends Service implements Sonos.Failure {
 
 
     public void onServiceDisconnected(ComponentName className) {
-      Log.i(TAG, "UPnP disconnected. Clearing references to Sonos systems.");
-      sonoses.clear();
+      EventLog.i(TAG, "UPnP disconnected. Clearing references to Sonos systems.");
+      engine.setControlPoint(null);
       upnpService = null;
     }
   };
@@ -469,11 +477,12 @@ public class SonosService extends Service implements Sonos.Failure {
 
     @Override
     public void remoteDeviceDiscoveryFailed(Registry registry, RemoteDevice device, Exception ex) {
-      Log.w(TAG, "Discovery failed of '" + device.getDisplayString() + "': "
+      EventLog.w(TAG, "Discovery failed of '" + device.getDisplayString() + "': "
               + (ex != null ? ex.toString() : "Couldn't retrieve device/service descriptors"));
 
-      if (device.getType().equals(SONOS_DEVICE_TYPE)) {
-        Log.w(TAG, "Failed discovery was of a Sonos system.");
+      if (device.getType().equals(SonosTracker.SONOS_DEVICE_TYPE)) {
+        EventLog.w(TAG, "Failed discovery was of a Sonos system.");
+        deviceCache.remove(engine.getSsid(), device.getIdentity().getUdn());
       }
 
       deviceRemoved(device);
@@ -489,53 +498,51 @@ public class SonosService extends Service implements Sonos.Failure {
       deviceRemoved(device);
     }
 
-    public void deviceAdded(Device device) {
-      if (device.isFullyHydrated()) {
-        Log.d(TAG, "Found device: " +
-                device.getIdentity().getUdn() + ": " +
-                device.getDisplayString());
-
-        if (device.getType().equals(SONOS_DEVICE_TYPE) &&
-                device.findService(new UDAServiceId("RenderingControl")) != null) {
-          Log.i(TAG, "Found a Sonos system.");
-
-          if (upnpService != null) {
-            Sonos sonos = new Sonos(upnpService, (RemoteDevice) device, SonosService.this);
-
-            synchronized (sonoses) {
-              Map<DeviceIdentity, Sonos> sonosesForNetwork = sonoses.get(ssid);
-              if (sonosesForNetwork != null) {
-                sonosesForNetwork.put(device.getIdentity(), sonos);
-              }
-            }
-
-            SonosWidgetProvider.notifyChange(SonosService.this);
-          }
-        }
+    @Override
+    public void remoteDeviceUpdated(Registry registry, RemoteDevice device) {
+      // The device has announced itself or answered a search, so is
+      // definitely on the network.
+      if (device.getType().equals(SonosTracker.SONOS_DEVICE_TYPE)) {
+        verified(device);
       }
     }
 
-    public void deviceRemoved(Device device) {
-      Log.i(TAG, "Device removed: "
-              + (device.isFullyHydrated() ? device.getDisplayString() : device.getDisplayString() + " *"));
+    public void deviceAdded(Device device) {
+      Sonos sonos = engine.deviceAdded(device);
 
-      synchronized (sonoses) {
-        Map<DeviceIdentity, Sonos> sonosesForNetwork = sonoses.get(ssid);
-        if (sonosesForNetwork != null) {
-          sonosesForNetwork.remove(device.getIdentity());
+      if (sonos != null) {
+        String ssid = engine.getSsid();
+        if (ssid != null) {
+          deviceCache.store(ssid, (RemoteDevice) device, upnpService.getConfiguration());
         }
+
+        discovery.deviceFound(sonos.getId());
       }
+    }
 
-      SonosWidgetProvider.notifyChange(SonosService.this);
+    public void deviceRemoved(Device device) {
+      engine.deviceRemoved(device);
     }
   }
 
 
   /**
-   * Called when we fail to do something with one of the Sonos systems.
+   * Called when calls to one of the Sonos systems keep failing, despite
+   * retries. Search again in case it has moved (e.g. a new IP address).
+   * Only once it has kept failing for a while is it dropped.
    */
   public void failure(Sonos sonos) {
-    Log.i(TAG, "Removing " + sonos.getName() + " from registry due to failure");
-    upnpService.getRegistry().removeDevice(sonos.getDevice().getIdentity().getUdn());
+    discovery.deviceLost(sonos.getId());
+
+    if (sonos.getHealth().isLikelyGone()) {
+      EventLog.i(TAG, "Removing " + sonos.getName() + " from registry due to repeated failure");
+      deviceCache.remove(engine.getSsid(), sonos.getDevice().getIdentity().getUdn());
+      AndroidUpnpService upnpService = this.upnpService;
+      if (upnpService != null) {
+        upnpService.getRegistry().removeDevice(sonos.getDevice().getIdentity().getUdn());
+      }
+    } else {
+      EventLog.i(TAG, sonos.getName() + " is failing: " + sonos.getHealth().getStats());
+    }
   }
 }
@@ -1,16 +1,36 @@
 package uk.co.chriswiggins.muteforsonos;
 
+import android.content.Context;
+
 import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.android.AndroidRouter;
 import org.fourthline.cling.android.AndroidUpnpServiceConfiguration;
 import org.fourthline.cling.android.AndroidUpnpServiceImpl;
+import org.fourthline.cling.model.message.IncomingDatagramMessage;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.protocol.ProtocolFactory;
+import org.fourthline.cling.transport.spi.StreamClient;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 
 /**
  * Extends AndroidUpnpServiceImpl in order to keep devices in the registry at
- * all times.
+ * all times, to reuse connections to them, to run protocols in bounded,
+ * prioritised thread pools (see SonosExecutors), and to only fetch the
+ * descriptors of Sonos systems (see SsdpFilter) and of the services the app
+ * uses.
  */
 public class SonosUpnpService extends AndroidUpnpServiceImpl {
 
+  // Whether discovery should fetch and parse the descriptor of every
+  // service on every device, as Cling does by default, rather than just
+  // SonosTracker.USED_SERVICE_TYPES. A ZonePlayer has a dozen or so
+  // (AVTransport, ContentDirectory, AlarmClock, MusicServices...), of which
+  // muting uses three.
+  private static final boolean HYDRATE_ALL_SERVICES = false;
+
   @Override
   protected UpnpServiceConfiguration createConfiguration() {
     return new AndroidUpnpServiceConfiguration() {
@@ -21,6 +41,47 @@ public class SonosUpnpService extends AndroidUpnpServiceImpl {
         // manual section 6.5.1.
         return 0;
       }
+
+      @Override
+      public ServiceType[] getExclusiveServiceTypes() {
+        return HYDRATE_ALL_SERVICES ? null : SonosTracker.USED_SERVICE_TYPES;
+      }
+
+      @Override
+      public ExecutorService getSyncProtocolExecutorService() {
+        return SonosExecutors.getProtocolExecutor();
+      }
+
+      @Override
+      public Executor getAsyncProtocolExecutor() {
+        return SonosExecutors.getProtocolExecutor();
+      }
+
+      @Override
+      public StreamClient createStreamClient() {
+        return new KeepAliveStreamClient(SonosExecutors.getRequestExecutor());
+      }
+    };
+  }
+
+  @Override
+  protected AndroidRouter createRouter(UpnpServiceConfiguration configuration,
+                                       ProtocolFactory protocolFactory, Context context) {
+    return new AndroidRouter(configuration, protocolFactory, context) {
+      @Override
+      public void received(IncomingDatagramMessage message) {
+        // Drop announcements from anything but Sonos systems before Cling
+        // fetches their descriptors and keeps them in the registry (for
+        // good, given the max age above).
+        if (SsdpFilter.admit(message)) {
+          super.received(message);
+        } else {
+          Metrics metrics = SonosService.getMetrics();
+          if (metrics != null) {
+            metrics.ssdpIgnored();
+          }
+        }
+      }
     };
   }
 }
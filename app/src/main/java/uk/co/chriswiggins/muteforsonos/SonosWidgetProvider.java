@@ -6,11 +6,15 @@ import android.appwidget.AppWidgetProvider;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
-import android.util.Log;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.RemoteViews;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.co.chriswiggins.muteforsonos.log.EventLog;
+
 
 public class SonosWidgetProvider extends AppWidgetProvider {
 
@@ -19,125 +23,207 @@ public class SonosWidgetProvider extends AppWidgetProvider {
   static final ComponentName THIS_APPWIDGET = new ComponentName("uk.co.chriswiggins.muteforsonos",
                   "uk.co.chriswiggins.muteforsonos.SonosWidgetProvider");
 
+  // Changes notified within this long of each other are drawn as one.
+  private static final long COALESCE_DELAY = 50L;
+
+  private static final Handler handler = new Handler(Looper.getMainLooper());
+  private static final AtomicBoolean updatePending = new AtomicBoolean(false);
+
+  // Only touched on the main thread. What was last pushed to the widgets,
+  // the widget instances and the intent their button sends. Null when not
+  // known.
+  private static WidgetState lastState;
+  private static int[] instances;
+  private static PendingIntent clickIntent;
+
 
   @Override
   public void onEnabled(Context context) {
-    Log.i(TAG, "onEnabled");
+    EventLog.i(TAG, "onEnabled");
+    forget();
   }
 
 
   @Override
   public void onDisabled(Context context) {
-    Log.i(TAG, "onDisabled");
+    EventLog.i(TAG, "onDisabled");
+    forget();
     context.stopService(new Intent(context.getApplicationContext(), SonosService.class));
   }
 
 
+  @Override
+  public void onDeleted(Context context, int[] appWidgetIds) {
+    EventLog.i(TAG, "onDeleted");
+    instances = null;
+  }
+
+
   @Override
   public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-    Log.i(TAG, "onUpdate");
+    EventLog.i(TAG, "onUpdate");
+
+    // Possibly a new instance, which will need everything pushed to it.
+    forget();
 
     defaultAppWidget(context, appWidgetIds);
 
-    Log.i(TAG, "Starting SonosService");
+    EventLog.i(TAG, "Starting SonosService");
     context.startService(new Intent(context.getApplicationContext(), SonosService.class));
   }
 
 
+  /**
+   * Forget what we know about the widgets, so the next update is pushed in
+   * full to every instance.
+   */
+  private static void forget() {
+    lastState = null;
+    instances = null;
+  }
+
+
   /**
    * Initialize given widgets to default state, where we launch Music on default click
    * and hide actions if service not running.
    */
   private void defaultAppWidget(Context context, int[] appWidgetIds) {
-    Resources res = context.getResources();
     RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.sonos_widget);
 
     linkButtons(context, views);
-    pushUpdate(context, appWidgetIds, views);
-  }
-
-
-  private static void pushUpdate(Context context, int[] appWidgetIds, RemoteViews views) {
-    // Update specific list of appWidgetIds if given, otherwise default to all
-    AppWidgetManager gm = AppWidgetManager.getInstance(context);
-    if (appWidgetIds != null) {
-      gm.updateAppWidget(appWidgetIds, views);
-    } else {
-      gm.updateAppWidget(THIS_APPWIDGET, views);
-    }
+    AppWidgetManager.getInstance(context).updateAppWidget(appWidgetIds, views);
   }
 
 
   /**
-   * Check against {@link AppWidgetManager} if there are any instances of this widget.
+   * Returns the instances of this widget, asking {@link AppWidgetManager}
+   * only if we don't already know.
    */
-  private static boolean hasInstances(Context context) {
-    AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-    int[] appWidgetIds = appWidgetManager.getAppWidgetIds(THIS_APPWIDGET);
-    return (appWidgetIds.length > 0);
+  private static int[] getInstances(Context context) {
+    if (instances == null) {
+      instances = AppWidgetManager.getInstance(context).getAppWidgetIds(THIS_APPWIDGET);
+    }
+    return instances;
   }
 
 
   /**
    * Called by SonosService when something happens that might need the widget
    * to update (wi-fi connected/disconnected, a Sonos system found etc.)
+   * Can be called from any thread, as often as needed: bursts of calls are
+   * coalesced into a single update on the main thread.
    */
-  static void notifyChange(SonosService service) {
-    if (hasInstances(service)) {
-      performUpdate(service, null);
+  static void notifyChange(final SonosService service) {
+    if (updatePending.compareAndSet(false, true)) {
+      handler.postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          updatePending.set(false);
+          performUpdate(service);
+        }
+      }, COALESCE_DELAY);
     }
   }
 
 
   /**
-   * Update all active widget instances by pushing changes
+   * Update all active widget instances by pushing whatever has changed since
+   * the last update. Must be called on the main thread.
+   *
+   * A change of mode is pushed in full, so the widget host's cached copy is
+   * always of the right mode. Within a mode (e.g. the countdown ticking, or
+   * another Sonos system being found) only the changed text is sent, as a
+   * partial update.
    */
-  static void performUpdate(SonosService service, int[] appWidgetIds) {
+  static void performUpdate(SonosService service) {
+    int[] appWidgetIds = getInstances(service);
+    if (appWidgetIds.length == 0) {
+      return;
+    }
+
+    WidgetState state = WidgetState.of(
+            service.isWifiConnected(),
+            service.isMuted(),
+            service.getSecondsUntilUnmute(),
+            service.getNumKnownSonosSystems());
+
+    if (state.equals(lastState)) {
+      return;
+    }
+
     RemoteViews views = new RemoteViews(service.getPackageName(), R.layout.sonos_widget);
+    AppWidgetManager gm = AppWidgetManager.getInstance(service);
+
+    if (lastState == null || lastState.mode != state.mode) {
+      applyMode(views, state);
+      applyText(views, state, null);
 
-    if (!service.isWifiConnected()) {
-      views.setViewVisibility(R.id.overlay_disabled, View.VISIBLE);
-      views.setViewVisibility(R.id.overlay_pause, View.GONE);
-      views.setViewVisibility(R.id.overlay_muted, View.GONE);
-      views.setViewVisibility(R.id.control_count, View.GONE);
-      views.setViewVisibility(R.id.control_bubble, View.GONE);
-
-    } else if (service.isMuted()) {
-      int secondsUntilUnmute = service.getSecondsUntilUnmute();
-      StringBuilder timeUntilUnmute = new StringBuilder();
-      timeUntilUnmute.append(secondsUntilUnmute / 60);
-      timeUntilUnmute.append(':');
-      timeUntilUnmute.append(String.format("%02d", secondsUntilUnmute % 60));
-
-      views.setViewVisibility(R.id.overlay_disabled, View.GONE);
-      views.setViewVisibility(R.id.overlay_pause, View.GONE);
-      views.setViewVisibility(R.id.overlay_muted, View.VISIBLE);
-      views.setViewVisibility(R.id.control_count, View.VISIBLE);
-      views.setViewVisibility(R.id.control_bubble, View.VISIBLE);
-      views.setTextViewText(R.id.overlay_muted, timeUntilUnmute);
-      views.setTextViewText(R.id.control_count, Integer.toString(service.getNumKnownSonosSystems()));
+      // Link actions buttons to intents
+      linkButtons(service, views);
+
+      gm.updateAppWidget(appWidgetIds, views);
 
     } else {
-      views.setViewVisibility(R.id.overlay_disabled, View.GONE);
-      views.setViewVisibility(R.id.overlay_pause, View.VISIBLE);
-      views.setViewVisibility(R.id.overlay_muted, View.GONE);
-      views.setViewVisibility(R.id.control_count, View.VISIBLE);
-      views.setViewVisibility(R.id.control_bubble, View.VISIBLE);
-      views.setTextViewText(R.id.control_count, Integer.toString(service.getNumKnownSonosSystems()));
+      applyText(views, state, lastState);
+      gm.partiallyUpdateAppWidget(appWidgetIds, views);
+    }
+
+    lastState = state;
+  }
+
+
+  private static void applyMode(RemoteViews views, WidgetState state) {
+    switch (state.mode) {
+      case DISABLED:
+        views.setViewVisibility(R.id.overlay_disabled, View.VISIBLE);
+        views.setViewVisibility(R.id.overlay_pause, View.GONE);
+        views.setViewVisibility(R.id.overlay_muted, View.GONE);
+        views.setViewVisibility(R.id.control_count, View.GONE);
+        views.setViewVisibility(R.id.control_bubble, View.GONE);
+        break;
+
+      case MUTED:
+        views.setViewVisibility(R.id.overlay_disabled, View.GONE);
+        views.setViewVisibility(R.id.overlay_pause, View.GONE);
+        views.setViewVisibility(R.id.overlay_muted, View.VISIBLE);
+        views.setViewVisibility(R.id.control_count, View.VISIBLE);
+        views.setViewVisibility(R.id.control_bubble, View.VISIBLE);
+        break;
+
+      case READY:
+        views.setViewVisibility(R.id.overlay_disabled, View.GONE);
+        views.setViewVisibility(R.id.overlay_pause, View.VISIBLE);
+        views.setViewVisibility(R.id.overlay_muted, View.GONE);
+        views.setViewVisibility(R.id.control_count, View.VISIBLE);
+        views.setViewVisibility(R.id.control_bubble, View.VISIBLE);
+        break;
     }
+  }
 
-    // Link actions buttons to intents
-    linkButtons(service, views);
 
-    pushUpdate(service, appWidgetIds, views);
+  /**
+   * Sets the text that differs from that previously pushed (all of it if
+   * previous is null).
+   */
+  private static void applyText(RemoteViews views, WidgetState state, WidgetState previous) {
+    if (state.countdown != null &&
+            (previous == null || !WidgetState.equal(state.countdown, previous.countdown))) {
+      views.setTextViewText(R.id.overlay_muted, state.countdown);
+    }
+    if (state.count != null &&
+            (previous == null || !WidgetState.equal(state.count, previous.count))) {
+      views.setTextViewText(R.id.control_count, state.count);
+    }
   }
 
 
   private static void linkButtons(Context context, RemoteViews views) {
-    Intent intent = new Intent(SonosService.MUTE_TEMPORARILY_ACTION);
-    intent.setComponent(new ComponentName(context, SonosService.class));
-    PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent, 0);
-    views.setOnClickPendingIntent(R.id.control_main, pendingIntent);
+    if (clickIntent == null) {
+      Intent intent = new Intent(SonosService.MUTE_TEMPORARILY_ACTION);
+      intent.setComponent(new ComponentName(context, SonosService.class));
+      clickIntent = PendingIntent.getService(context, 0, intent, 0);
+    }
+    views.setOnClickPendingIntent(R.id.control_main, clickIntent);
   }
 
 }
@@ -0,0 +1,115 @@
+package uk.co.chriswiggins.muteforsonos.log;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import uk.co.chriswiggins.muteforsonos.R;
+
+
+/**
+ * Shows the events in a {@link LogIndex} in a list, oldest first, or just
+ * those that matched a filter. Events are only decoded and turned into
+ * text when their row comes into view, and rows are recycled, so a long
+ * log costs no more to show than a short one.
+ */
+class EventAdapter extends BaseAdapter {
+
+  private final LayoutInflater inflater;
+
+  private LogIndex index;
+
+  // Positions in the index of the events shown, or null for all of them.
+  private int[] positions;
+
+  // Only used on the main thread.
+  private final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+  private final Date date = new Date();
+  private final StringBuilder text = new StringBuilder();
+
+
+
+  EventAdapter(Context context) {
+    inflater = LayoutInflater.from(context);
+  }
+
+
+
+  /**
+   * Shows the events in the index at the given positions, or all of them
+   * if positions is null.
+   */
+  void show(LogIndex index, int[] positions) {
+    this.index = index;
+    this.positions = positions;
+    notifyDataSetChanged();
+  }
+
+
+
+  @Override
+  public int getCount() {
+    if (index == null) {
+      return 0;
+    }
+    return positions == null ? index.size() : positions.length;
+  }
+
+
+
+  @Override
+  public Object getItem(int position) {
+    return null;
+  }
+
+
+
+  @Override
+  public long getItemId(int position) {
+    return position;
+  }
+
+
+
+  @Override
+  public View getView(int position, View convertView, ViewGroup parent) {
+    TextView view = (TextView) convertView;
+    if (view == null) {
+      view = (TextView) inflater.inflate(R.layout.item_log_event, parent, false);
+    }
+
+    view.setText(format(positions == null ? position : positions[position]));
+    return view;
+  }
+
+
+
+  /**
+   * Formats an event like logcat, with the message on its own line so it
+   * fits on small screens better:
+   *
+   *   01-29 22:40:42.025 I/SonosService
+   *   onStartCommand
+   */
+  private CharSequence format(int i) {
+    date.setTime(index.getTime(i));
+
+    text.setLength(0);
+    text.append(format.format(date))
+        .append(' ')
+        .append(index.getLevel(i))
+        .append('/')
+        .append(index.getTag(i))
+        .append('\n')
+        .append(index.getMessage(i));
+
+    return text.toString();
+  }
+
+}
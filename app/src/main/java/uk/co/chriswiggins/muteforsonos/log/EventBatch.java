@@ -0,0 +1,113 @@
+package uk.co.chriswiggins.muteforsonos.log;
+
+
+/**
+ * A run of log events copied out of the {@link EventLog} or read from a
+ * segment file. Held in parallel arrays, so a page of events costs a few
+ * arrays rather than an object per event. Grows if needed, but is meant to
+ * be sized once and reused.
+ */
+public class EventBatch {
+
+  private long[] sequences;
+  private long[] times;
+  private char[] levels;
+  private String[] tags;
+  private String[] messages;
+  private int count;
+
+
+
+  public EventBatch(int capacity) {
+    sequences = new long[capacity];
+    times = new long[capacity];
+    levels = new char[capacity];
+    tags = new String[capacity];
+    messages = new String[capacity];
+  }
+
+
+
+  public void clear() {
+    for (int i = 0; i < count; i++) {
+      tags[i] = null;
+      messages[i] = null;
+    }
+    count = 0;
+  }
+
+
+
+  public void add(long sequence, long time, char level, String tag, String message) {
+    if (count == sequences.length) {
+      grow();
+    }
+    sequences[count] = sequence;
+    times[count] = time;
+    levels[count] = level;
+    tags[count] = tag;
+    messages[count] = message;
+    count++;
+  }
+
+
+
+  private void grow() {
+    int capacity = Math.max(16, sequences.length * 2);
+
+    long[] newSequences = new long[capacity];
+    long[] newTimes = new long[capacity];
+    char[] newLevels = new char[capacity];
+    String[] newTags = new String[capacity];
+    String[] newMessages = new String[capacity];
+
+    System.arraycopy(sequences, 0, newSequences, 0, count);
+    System.arraycopy(times, 0, newTimes, 0, count);
+    System.arraycopy(levels, 0, newLevels, 0, count);
+    System.arraycopy(tags, 0, newTags, 0, count);
+    System.arraycopy(messages, 0, newMessages, 0, count);
+
+    sequences = newSequences;
+    times = newTimes;
+    levels = newLevels;
+    tags = newTags;
+    messages = newMessages;
+  }
+
+
+
+  public int size() {
+    return count;
+  }
+
+
+
+  public long getSequence(int i) {
+    return sequences[i];
+  }
+
+
+
+  public long getTime(int i) {
+    return times[i];
+  }
+
+
+
+  public char getLevel(int i) {
+    return levels[i];
+  }
+
+
+
+  public String getTag(int i) {
+    return tags[i];
+  }
+
+
+
+  public String getMessage(int i) {
+    return messages[i];
+  }
+
+}
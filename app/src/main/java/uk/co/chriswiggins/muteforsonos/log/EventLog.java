@@ -0,0 +1,121 @@
+package uk.co.chriswiggins.muteforsonos.log;
+
+import android.util.Log;
+
+
+/**
+ * The app's log of what it's been doing, kept in memory in a fixed size
+ * ring buffer. Once full, each new event overwrites the oldest, so memory
+ * use never grows however long the app runs. Adding an event stores it into
+ * preallocated arrays, so costs nothing beyond the message string.
+ *
+ * The static methods mirror {@link Log}: they log to logcat as before, and
+ * record the event here too. Events from java.util.logging (the core
+ * module) get here through {@link EventLogHandler}. {@link LogManager}
+ * copies events out to segment files on disk, and {@link ShowLogActivity}
+ * shows them.
+ *
+ * Every event gets a sequence number, counting up from 0 each time the
+ * process starts. Together with the run ID (when the process started) it
+ * identifies the event, so a reader can tell which events it has already
+ * seen.
+ */
+public class EventLog {
+
+  public static final char DEBUG = 'D';
+  public static final char INFO = 'I';
+  public static final char WARN = 'W';
+  public static final char ERROR = 'E';
+
+  // Must be a power of 2.
+  public static final int CAPACITY = 2048;
+  private static final int MASK = CAPACITY - 1;
+
+  private static final EventLog INSTANCE = new EventLog();
+
+  private final long runId = System.currentTimeMillis();
+
+  // Guarded by this. Event n is stored at index n & MASK.
+  private final long[] times = new long[CAPACITY];
+  private final char[] levels = new char[CAPACITY];
+  private final String[] tags = new String[CAPACITY];
+  private final String[] messages = new String[CAPACITY];
+  private long next = 0;
+
+
+
+  public static EventLog get() {
+    return INSTANCE;
+  }
+
+
+
+  public static void d(String tag, String message) {
+    Log.d(tag, message);
+    INSTANCE.add(DEBUG, tag, message);
+  }
+
+
+
+  public static void i(String tag, String message) {
+    Log.i(tag, message);
+    INSTANCE.add(INFO, tag, message);
+  }
+
+
+
+  public static void w(String tag, String message) {
+    Log.w(tag, message);
+    INSTANCE.add(WARN, tag, message);
+  }
+
+
+
+  public static void w(String tag, String message, Throwable throwable) {
+    Log.w(tag, message, throwable);
+    INSTANCE.add(WARN, tag, message + '\n' + Log.getStackTraceString(throwable));
+  }
+
+
+
+  /**
+   * Records an event, overwriting the oldest if the buffer is full.
+   */
+  public synchronized void add(char level, String tag, String message) {
+    int i = (int) (next & MASK);
+    times[i] = System.currentTimeMillis();
+    levels[i] = level;
+    tags[i] = tag;
+    messages[i] = message;
+    next++;
+  }
+
+
+
+  /**
+   * Copies the events from the given sequence number on into the batch,
+   * after clearing it. Events that have already been overwritten are
+   * skipped, which the caller can spot from the batch's first sequence
+   * number.
+   *
+   * @return The sequence number to copy from next time.
+   */
+  public synchronized long copy(long from, EventBatch batch) {
+    batch.clear();
+    for (long n = Math.max(from, next - CAPACITY); n < next; n++) {
+      int i = (int) (n & MASK);
+      batch.add(n, times[i], levels[i], tags[i], messages[i]);
+    }
+    return next;
+  }
+
+
+
+  /**
+   * Returns when the process started, identifying this run's events.
+   */
+  public long getRunId() {
+    return runId;
+  }
+
+}
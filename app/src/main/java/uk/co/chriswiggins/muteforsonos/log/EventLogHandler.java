@@ -0,0 +1,109 @@
+package uk.co.chriswiggins.muteforsonos.log;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+
+/**
+ * Passes java.util.logging records (from the core module) to logcat and
+ * the {@link EventLog}, tagged with the logger's simple class name like the
+ * app's own events. FINE and below go to logcat as Log.d, as EventLog.d
+ * does: Android's own handler for java.util.logging drops them.
+ */
+public class EventLogHandler extends Handler {
+
+  private final EventLog eventLog;
+
+  // Logger name to tag, so tags aren't cut out of logger names every time.
+  private final ConcurrentHashMap<String, String> tags = new ConcurrentHashMap<String, String>();
+
+
+
+  public EventLogHandler(EventLog eventLog) {
+    this.eventLog = eventLog;
+  }
+
+
+
+  @Override
+  public void publish(LogRecord record) {
+    if (!isLoggable(record)) {
+      return;
+    }
+
+    String message = record.getMessage();
+    if (record.getThrown() != null) {
+      StringWriter trace = new StringWriter();
+      record.getThrown().printStackTrace(new PrintWriter(trace));
+      message = message + '\n' + trace;
+    }
+
+    char level = level(record.getLevel());
+    String tag = tag(record.getLoggerName());
+    Log.println(priority(level), tag, message);
+    eventLog.add(level, tag, message);
+  }
+
+
+
+  private static char level(Level level) {
+    int value = level.intValue();
+    if (value >= Level.SEVERE.intValue()) {
+      return EventLog.ERROR;
+    } else if (value >= Level.WARNING.intValue()) {
+      return EventLog.WARN;
+    } else if (value >= Level.INFO.intValue()) {
+      return EventLog.INFO;
+    } else {
+      return EventLog.DEBUG;
+    }
+  }
+
+
+
+  private static int priority(char level) {
+    switch (level) {
+      case EventLog.ERROR:
+        return Log.ERROR;
+      case EventLog.WARN:
+        return Log.WARN;
+      case EventLog.INFO:
+        return Log.INFO;
+      default:
+        return Log.DEBUG;
+    }
+  }
+
+
+
+  private String tag(String loggerName) {
+    if (loggerName == null) {
+      return "";
+    }
+    String tag = tags.get(loggerName);
+    if (tag == null) {
+      tag = loggerName.substring(loggerName.lastIndexOf('.') + 1);
+      tags.put(loggerName, tag);
+    }
+    return tag;
+  }
+
+
+
+  @Override
+  public void flush() {
+  }
+
+
+
+  @Override
+  public void close() {
+  }
+
+}
@@ -0,0 +1,300 @@
+package uk.co.chriswiggins.muteforsonos.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * An index of the events in the log's segment files, followed by those
+ * only in memory so far. The segments are memory-mapped and only the
+ * offset, level and tag of each event are kept, so building the index
+ * decodes nothing but the short tags. An event's message is only decoded
+ * from the mapped file when it's asked for.
+ *
+ * Immutable once built, so can be read from any thread.
+ */
+class LogIndex {
+
+  private static final String LEVELS = "DIWE";
+
+  private static final int MEMORY = -1;
+
+  // Offsets within a record (see SegmentWriter).
+  private static final int HEADER_LENGTH = 16;
+  private static final int TIME = 8;
+  private static final int LEVEL = 16;
+  private static final int TAG = 18;
+
+  private final ByteBuffer[] segments;
+  private final EventBatch memory;
+
+  // For each event: the segment it's in (or MEMORY) and its offset there
+  // (or its index in memory), its level and the ID of its tag.
+  private int[] sources;
+  private int[] offsets;
+  private char[] levels;
+  private int[] tagIds;
+  private int size = 0;
+
+  private final List<String> tags = new ArrayList<String>();
+  private final Map<String, Integer> tagIdsByName = new HashMap<String, Integer>();
+
+
+
+  private LogIndex(ByteBuffer[] segments, EventBatch memory, int capacity) {
+    this.segments = segments;
+    this.memory = memory;
+
+    sources = new int[capacity];
+    offsets = new int[capacity];
+    levels = new char[capacity];
+    tagIds = new int[capacity];
+  }
+
+
+
+  /**
+   * Indexes just the events in memory, which is quick enough to do on the
+   * main thread.
+   */
+  static LogIndex of(EventBatch memory) {
+    LogIndex index = new LogIndex(new ByteBuffer[0], memory, memory.size());
+    index.addMemory();
+    return index;
+  }
+
+
+
+  /**
+   * Maps and indexes the given segments (oldest first), then the events in
+   * memory. Events in the segments from the given run with sequence numbers
+   * from before on are skipped, as they're also in memory.
+   */
+  static LogIndex build(File[] files, long runId, long before, EventBatch memory) throws IOException {
+    ByteBuffer[] segments = new ByteBuffer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      segments[i] = map(files[i]);
+    }
+
+    LogIndex index = new LogIndex(segments, memory, 1024);
+    for (int i = 0; i < segments.length; i++) {
+      index.addSegment(i, runId, before);
+    }
+    index.addMemory();
+    return index;
+  }
+
+
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // The mapping stays valid after the file's closed.
+      in.close();
+    }
+  }
+
+
+
+  private void addSegment(int segment, long runId, long before) {
+    ByteBuffer buffer = segments[segment];
+    int limit = buffer.limit();
+
+    if (limit < HEADER_LENGTH ||
+            buffer.getInt(0) != SegmentWriter.MAGIC || buffer.getInt(4) != SegmentWriter.VERSION) {
+      return;
+    }
+    boolean sameRun = buffer.getLong(8) == runId;
+
+    int offset = HEADER_LENGTH;
+    while (offset + TAG + 2 <= limit) {
+      int tagLength = buffer.getShort(offset + TAG) & 0xffff;
+      int message = offset + TAG + 2 + tagLength;
+      if (message + 2 > limit) {
+        break;
+      }
+      int end = message + 2 + (buffer.getShort(message) & 0xffff);
+      if (end > limit) {
+        // Still being written.
+        break;
+      }
+
+      if (!sameRun || buffer.getLong(offset) < before) {
+        add(segment, offset, buffer.getChar(offset + LEVEL), decode(buffer, offset + TAG));
+      }
+      offset = end;
+    }
+  }
+
+
+
+  private void addMemory() {
+    for (int i = 0; i < memory.size(); i++) {
+      add(MEMORY, i, memory.getLevel(i), memory.getTag(i));
+    }
+  }
+
+
+
+  private void add(int source, int offset, char level, String tag) {
+    if (size == sources.length) {
+      int capacity = Math.max(16, size * 2);
+      int[] newSources = new int[capacity];
+      int[] newOffsets = new int[capacity];
+      char[] newLevels = new char[capacity];
+      int[] newTagIds = new int[capacity];
+      System.arraycopy(sources, 0, newSources, 0, size);
+      System.arraycopy(offsets, 0, newOffsets, 0, size);
+      System.arraycopy(levels, 0, newLevels, 0, size);
+      System.arraycopy(tagIds, 0, newTagIds, 0, size);
+      sources = newSources;
+      offsets = newOffsets;
+      levels = newLevels;
+      tagIds = newTagIds;
+    }
+
+    Integer tagId = tagIdsByName.get(tag);
+    if (tagId == null) {
+      tagId = tags.size();
+      tags.add(tag);
+      tagIdsByName.put(tag, tagId);
+    }
+
+    sources[size] = source;
+    offsets[size] = offset;
+    levels[size] = level;
+    tagIds[size] = tagId;
+    size++;
+  }
+
+
+
+  int size() {
+    return size;
+  }
+
+
+
+  long getTime(int i) {
+    if (sources[i] == MEMORY) {
+      return memory.getTime(offsets[i]);
+    }
+    return segments[sources[i]].getLong(offsets[i] + TIME);
+  }
+
+
+
+  char getLevel(int i) {
+    return levels[i];
+  }
+
+
+
+  String getTag(int i) {
+    return tags.get(tagIds[i]);
+  }
+
+
+
+  String getMessage(int i) {
+    if (sources[i] == MEMORY) {
+      return memory.getMessage(offsets[i]);
+    }
+    ByteBuffer buffer = segments[sources[i]];
+    int tag = offsets[i] + TAG;
+    return decode(buffer, tag + 2 + (buffer.getShort(tag) & 0xffff));
+  }
+
+
+
+  /**
+   * Returns the tags seen, in the order they were first seen.
+   */
+  List<String> getTags() {
+    return tags;
+  }
+
+
+
+  /**
+   * Returns the positions of the events at the given level or above, with
+   * the given tag (any if null) and containing the given text, ignoring
+   * case, in their tag or message (any if empty). Only decodes messages if
+   * there's text to look for.
+   *
+   * @return The positions, or null if the thread was interrupted.
+   */
+  int[] filter(char minLevel, String tag, String text) {
+    int minRank = LEVELS.indexOf(minLevel);
+    int tagId = tag == null ? -1 : tagIdsByName.containsKey(tag) ? tagIdsByName.get(tag) : -2;
+    String query = text.toLowerCase(Locale.US);
+
+    int[] matches = new int[size];
+    int count = 0;
+
+    for (int i = 0; i < size; i++) {
+      if ((i & 0xff) == 0 && Thread.currentThread().isInterrupted()) {
+        return null;
+      }
+
+      if (LEVELS.indexOf(levels[i]) < minRank || tagId != -1 && tagIds[i] != tagId) {
+        continue;
+      }
+      if (query.length() > 0 &&
+              !getTag(i).toLowerCase(Locale.US).contains(query) &&
+              !getMessage(i).toLowerCase(Locale.US).contains(query)) {
+        continue;
+      }
+      matches[count++] = i;
+    }
+
+    int[] positions = new int[count];
+    System.arraycopy(matches, 0, positions, 0, count);
+    return positions;
+  }
+
+
+
+  /**
+   * Decodes a string written by DataOutput.writeUTF (a 2 byte length, then
+   * modified UTF-8) straight from the buffer.
+   */
+  private static String decode(ByteBuffer buffer, int offset) {
+    int length = buffer.getShort(offset) & 0xffff;
+    char[] chars = new char[length];
+    int count = 0;
+
+    int i = offset + 2;
+    int end = i + length;
+    while (i < end) {
+      int b = buffer.get(i) & 0xff;
+      if (b < 0x80) {
+        chars[count++] = (char) b;
+        i++;
+      } else if ((b & 0xe0) == 0xc0 && i + 1 < end) {
+        chars[count++] = (char) (((b & 0x1f) << 6) | (buffer.get(i + 1) & 0x3f));
+        i += 2;
+      } else if ((b & 0xf0) == 0xe0 && i + 2 < end) {
+        chars[count++] = (char) (((b & 0x0f) << 12) | ((buffer.get(i + 1) & 0x3f) << 6) | (buffer.get(i + 2) & 0x3f));
+        i += 3;
+      } else {
+        chars[count++] = '\uFFFD';
+        i++;
+      }
+    }
+
+    return new String(chars, 0, count);
+  }
+
+}
@@ -7,29 +7,48 @@ import android.content.Context;
 import android.content.Intent;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import uk.co.chriswiggins.muteforsonos.R;
+import uk.co.chriswiggins.muteforsonos.SonosExecutors;
 
 
 /**
- * Provides a method to show a notification that launches an activity that
- * shows the app's log file. Runs logcat in a separate process in order to
- * be able to do this.
+ * Keeps the app's log on disk, and provides a method to show a notification
+ * that launches an activity that shows it.
+ *
+ * Events are collected in memory by {@link EventLog}, including those from
+ * the core module's loggers. Every few seconds any new ones are appended to
+ * the current segment file by a background thread, so the log survives the
+ * process but stays a fixed size on disk.
  */
 public class LogManager {
 
   private static final String TAG = "LogManager";
-  public static final String LOG_FILE = "uk.co.chriswiggins.muteforsonos.LogManager.LOG_FILE";
+
+  private static final String LOGGER = "uk.co.chriswiggins.muteforsonos";
+  private static final long WRITE_INTERVAL = 5 * 1000L;
 
   private Context context;
-  private String logFile;
-  private Process process;
+  private EventLog eventLog = EventLog.get();
+  private EventLogHandler handler;
+
+  // Held on to, as java.util.logging only keeps weak references to loggers
+  // and would otherwise lose the handler.
+  private Logger logger = Logger.getLogger(LOGGER);
+
+  private ScheduledExecutorService executor;
+
+  // Only used on the executor's thread.
+  private SegmentWriter writer;
+  private EventBatch batch = new EventBatch(EventLog.CAPACITY);
+  private long written = 0;
 
 
   public LogManager(Context context) {
@@ -37,26 +56,59 @@ public class LogManager {
   }
 
 
+  /**
+   * Returns the directory the log's segment files are kept in.
+   */
+  public static File getLogDir(Context context) {
+    return new File(context.getCacheDir(), "log");
+  }
+
+
   public void startLogging() {
-    try {
-      File cacheDir = context.getCacheDir();
-      String prefix = new SimpleDateFormat("yyyy-MM-dd_").format(new Date());
-      logFile = File.createTempFile(prefix, ".log", cacheDir).getAbsolutePath();
+    handler = new EventLogHandler(eventLog);
+    logger.setLevel(Level.FINE);
+    logger.addHandler(handler);
+    // The handler writes to logcat itself, FINE included, so Android's
+    // handler on the root logger would only repeat the rest.
+    logger.setUseParentHandlers(false);
+
+    writer = new SegmentWriter(getLogDir(context), eventLog.getRunId());
+
+    executor = SonosExecutors.createScheduler("log-writer");
+    executor.scheduleWithFixedDelay(new Write(), WRITE_INTERVAL, WRITE_INTERVAL, TimeUnit.MILLISECONDS);
 
-      process = Runtime.getRuntime().exec(
-              "logcat -f " + logFile +
-              " -v time SonosService:D SonosWidgetProvider:D Sonos:D LogManager:D *:S");
+    EventLog.i(TAG, "Writing log to " + getLogDir(context) + "...");
+  }
 
-      Log.i(TAG, "Writing log to " + logFile + "...");
 
-    } catch (IOException e) {
-      Log.w(TAG, "Could not start logging", e);
+  /**
+   * Appends the events logged since last time to the current segment.
+   */
+  private class Write implements Runnable {
+    public void run() {
+      long from = written;
+      written = eventLog.copy(from, batch);
+
+      try {
+        if (batch.size() > 0 && batch.getSequence(0) > from) {
+          // More was logged since last time than the buffer holds.
+          long lost = batch.getSequence(0) - from;
+          writer.write(from, batch.getTime(0), EventLog.WARN, TAG, lost + " events were logged too quickly to keep");
+        }
+        writer.write(batch);
+        writer.flush();
+
+      } catch (IOException e) {
+        EventLog.w(TAG, "Could not write log", e);
+      }
+
+      batch.clear();
     }
   }
 
 
   public void showNotification() {
-    Log.i(TAG, "Showing log notification");
+    EventLog.i(TAG, "Showing log notification");
 
     NotificationCompat.Builder builder =
             new NotificationCompat.Builder(context)
@@ -65,7 +117,6 @@ public class LogManager {
                     .setContentText("View logs...");
 
     Intent intent = new Intent(context, ShowLogActivity.class);
-    intent.putExtra(LOG_FILE, logFile);
 
     TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
     stackBuilder.addParentStack(ShowLogActivity.class);
@@ -82,10 +133,21 @@ public class LogManager {
 
 
   public void shutdown() {
-    Log.i(TAG, "Log manager shutting down. Killing logcat process");
-
-    if (process != null) {
-      process.destroy();
-    }
+    EventLog.i(TAG, "Log manager shutting down. Writing the last of the log");
+
+    logger.removeHandler(handler);
+    logger.setUseParentHandlers(true);
+
+    executor.execute(new Write());
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          EventLog.w(TAG, "Could not close log", e);
+        }
+      }
+    });
+    executor.shutdown();
   }
 }
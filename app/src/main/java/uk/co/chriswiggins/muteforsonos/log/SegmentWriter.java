@@ -0,0 +1,161 @@
+package uk.co.chriswiggins.muteforsonos.log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * Writes log events to a directory of segment files, starting a new
+ * segment when the current one is full and deleting the oldest so the log
+ * never takes more than MAX_SEGMENTS * SEGMENT_SIZE on disk.
+ *
+ * Segments are named by a number that counts up, so sort oldest first.
+ * Each one holds events from a single run of the app, and is binary:
+ *
+ *   header: int MAGIC, int VERSION, long run ID
+ *   record: long sequence, long time, char level, UTF tag, UTF message
+ *
+ * Records are only ever appended, so a reader can read a segment while
+ * it's being written, stopping at the first incomplete record.
+ */
+class SegmentWriter {
+
+  static final int MAGIC = 0x4d46534c; // "MFSL"
+  static final int VERSION = 1;
+
+  static final int SEGMENT_SIZE = 256 * 1024;
+  static final int MAX_SEGMENTS = 4;
+  private static final String SUFFIX = ".seg";
+
+  // Keeps records well within writeUTF's 64KB limit.
+  private static final int MAX_MESSAGE_LENGTH = 8 * 1024;
+
+  private final File dir;
+  private final long runId;
+
+  private DataOutputStream out;
+  private long index;
+
+
+
+  SegmentWriter(File dir, long runId) {
+    this.dir = dir;
+    this.runId = runId;
+
+    File[] segments = list(dir);
+    index = segments.length == 0 ? 0 : number(segments[segments.length - 1]) + 1;
+  }
+
+
+
+  /**
+   * Appends the batch's events, moving on to a new segment as needed.
+   */
+  void write(EventBatch batch) throws IOException {
+    for (int i = 0; i < batch.size(); i++) {
+      write(batch.getSequence(i), batch.getTime(i), batch.getLevel(i), batch.getTag(i), batch.getMessage(i));
+    }
+  }
+
+
+
+  void write(long sequence, long time, char level, String tag, String message) throws IOException {
+    if (out == null) {
+      open();
+    }
+
+    if (message == null) {
+      message = "null";
+    } else if (message.length() > MAX_MESSAGE_LENGTH) {
+      message = message.substring(0, MAX_MESSAGE_LENGTH);
+    }
+
+    out.writeLong(sequence);
+    out.writeLong(time);
+    out.writeChar(level);
+    out.writeUTF(tag == null ? "" : tag);
+    out.writeUTF(message);
+
+    if (out.size() >= SEGMENT_SIZE) {
+      close();
+    }
+  }
+
+
+
+  /**
+   * Pushes what's been written out to the file.
+   */
+  void flush() throws IOException {
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+
+
+  void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+
+
+  private void open() throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+
+    File file = new File(dir, String.format("%08d", index++) + SUFFIX);
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(runId);
+
+    // Make room for it.
+    File[] segments = list(dir);
+    for (int i = 0; i < segments.length - MAX_SEGMENTS; i++) {
+      segments[i].delete();
+    }
+  }
+
+
+
+  /**
+   * Returns the segments in the directory, oldest first.
+   */
+  static File[] list(File dir) {
+    File[] segments = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(SUFFIX) && number(file) >= 0;
+      }
+    });
+
+    if (segments == null) {
+      return new File[0];
+    }
+
+    Arrays.sort(segments);
+    return segments;
+  }
+
+
+
+  private static long number(File segment) {
+    String name = segment.getName();
+    try {
+      return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+}
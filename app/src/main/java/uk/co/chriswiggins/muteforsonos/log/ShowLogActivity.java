@@ -1,67 +1,297 @@
 package uk.co.chriswiggins.muteforsonos.log;
 
+import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v7.app.ActionBarActivity;
-import android.util.Log;
-import android.widget.TextView;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.Spinner;
+import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import uk.co.chriswiggins.muteforsonos.Metrics;
 import uk.co.chriswiggins.muteforsonos.R;
+import uk.co.chriswiggins.muteforsonos.SonosService;
 
 
 /**
- * Activity to show the app's log file.
+ * Activity to show the app's log, filtered by level and tag and searched.
+ *
+ * Opens straight away on the most recent events, copied from memory. The
+ * segment files on disk are memory-mapped and indexed in the background,
+ * and the older events appear once that's done. Filtering and searching
+ * run in the background over the index too, so the main thread only ever
+ * decodes the events on screen.
+ *
+ * The metrics of calls to Sonos systems can be shared from here, as JSON.
  */
 public class ShowLogActivity extends ActionBarActivity {
 
   private static final String TAG = "ShowLogActivity";
 
+  // Levels to show at or above, in the order of R.array.log_levels.
+  private static final char[] LEVELS = {
+          EventLog.DEBUG, EventLog.INFO, EventLog.WARN, EventLog.ERROR };
+
+  // Wait for typing to pause before searching.
+  private static final long SEARCH_DELAY = 300L;
+
+  private ListView list;
+  private Spinner levelFilter;
+  private Spinner tagFilter;
+  private EditText search;
+
+  private EventAdapter adapter;
+  private ArrayAdapter<String> tags;
+  private Handler handler = new Handler();
+
+  private LogIndex index;
+  private Filter filter;
+
 
   @Override
   protected void onCreate(Bundle bundle) {
     super.onCreate(bundle);
 
-    String logFile = getIntent().getStringExtra(LogManager.LOG_FILE);
-
     setContentView(R.layout.activity_show_log);
 
-    try {
-      BufferedReader bufferedReader = new BufferedReader(new FileReader(logFile));
+    EventLog eventLog = EventLog.get();
+    EventBatch recent = new EventBatch(EventLog.CAPACITY);
+    eventLog.copy(0, recent);
 
-      StringBuilder log = new StringBuilder();
-      String line;
+    adapter = new EventAdapter(this);
+    list = (ListView) findViewById(R.id.logList);
+    list.setAdapter(adapter);
+    show(LogIndex.of(recent), null);
 
-      while ((line = bufferedReader.readLine()) != null) {
-        // Example log line:
-        // 01-29 22:40:42.025 I/SonosService(20037): onStartCommand
+    tags = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item);
+    tags.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+    tags.add(getString(R.string.log_all_tags));
 
-        // Split after ) so lines fit on small screens better.
-        // Some lines are different ("--------- beginning of /dev/log/main"),
-        // so leave those alone.
+    levelFilter = (Spinner) findViewById(R.id.levelFilter);
+    tagFilter = (Spinner) findViewById(R.id.tagFilter);
+    tagFilter.setAdapter(tags);
 
-        int i = line.indexOf(')');
+    AdapterView.OnItemSelectedListener refilter = new AdapterView.OnItemSelectedListener() {
+      @Override
+      public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        refilter();
+      }
 
-        if (i == -1) {
-          log.append(line);
+      @Override
+      public void onNothingSelected(AdapterView<?> parent) {
+      }
+    };
+    levelFilter.setOnItemSelectedListener(refilter);
+    tagFilter.setOnItemSelectedListener(refilter);
 
-        } else {
-          log.append(line.substring(0, i + 2));
-          log.append('\n');
-          log.append(line.substring(i + 3));
-        }
+    search = (EditText) findViewById(R.id.search);
+    search.addTextChangedListener(new TextWatcher() {
+      @Override
+      public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+      }
+
+      @Override
+      public void onTextChanged(CharSequence s, int start, int before, int count) {
+      }
+
+      @Override
+      public void afterTextChanged(Editable s) {
+        handler.removeCallbacks(refilterLater);
+        handler.postDelayed(refilterLater, SEARCH_DELAY);
+      }
+    });
+
+    long firstInMemory = recent.size() == 0 ? Long.MAX_VALUE : recent.getSequence(0);
+    new BuildIndex(eventLog.getRunId(), firstInMemory, recent)
+            .execute(SegmentWriter.list(LogManager.getLogDir(this)));
+  }
+
+
+  @Override
+  protected void onDestroy() {
+    handler.removeCallbacks(refilterLater);
+    if (filter != null) {
+      filter.cancel(true);
+    }
+    super.onDestroy();
+  }
+
+
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    getMenuInflater().inflate(R.menu.show_log, menu);
+    return true;
+  }
+
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    if (item.getItemId() == R.id.share_metrics) {
+      shareMetrics();
+      return true;
+    }
+    return super.onOptionsItemSelected(item);
+  }
+
+
+  /**
+   * Sends a snapshot of the running service's metrics wherever the user
+   * chooses.
+   */
+  private void shareMetrics() {
+    Metrics metrics = SonosService.getMetrics();
+    if (metrics == null) {
+      Toast.makeText(this, R.string.log_no_metrics, Toast.LENGTH_SHORT).show();
+      return;
+    }
+
+    Intent intent = new Intent(Intent.ACTION_SEND);
+    intent.setType("application/json");
+    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.log_metrics_subject));
+    intent.putExtra(Intent.EXTRA_TEXT, metrics.snapshot());
+    startActivity(Intent.createChooser(intent, getString(R.string.log_share_metrics)));
+  }
+
+
+  private final Runnable refilterLater = new Runnable() {
+    public void run() {
+      refilter();
+    }
+  };
+
+
+  /**
+   * Shows the events that match the filter, finding them in the background
+   * unless everything's to be shown.
+   */
+  private void refilter() {
+    if (filter != null) {
+      filter.cancel(true);
+      filter = null;
+    }
+
+    char minLevel = LEVELS[Math.max(0, levelFilter.getSelectedItemPosition())];
+    int tagPosition = tagFilter.getSelectedItemPosition();
+    String tag = tagPosition > 0 ? tags.getItem(tagPosition) : null;
+    String text = search.getText().toString().trim();
+
+    if (minLevel == EventLog.DEBUG && tag == null && text.length() == 0) {
+      show(index, null);
+    } else {
+      filter = new Filter(index, minLevel, tag, text);
+      filter.execute();
+    }
+  }
+
+
+  /**
+   * Shows the given events from the index, keeping the view the same
+   * distance from the newest event as it was.
+   */
+  private void show(LogIndex index, int[] positions) {
+    this.index = index;
 
-        log.append('\n');
-        log.append('\n');
+    int fromEnd = adapter.getCount() - list.getFirstVisiblePosition();
+    View top = list.getChildAt(0);
+    int offset = top == null ? 0 : top.getTop();
+    boolean atEnd = list.getLastVisiblePosition() >= adapter.getCount() - 1;
+
+    adapter.show(index, positions);
+
+    if (atEnd) {
+      list.setSelection(adapter.getCount() - 1);
+    } else {
+      list.setSelectionFromTop(Math.max(0, adapter.getCount() - fromEnd), offset);
+    }
+  }
+
+
+  private class BuildIndex extends AsyncTask<File, Void, LogIndex> {
+
+    private final long runId;
+    private final long firstInMemory;
+    private final EventBatch recent;
+
+    BuildIndex(long runId, long firstInMemory, EventBatch recent) {
+      this.runId = runId;
+      this.firstInMemory = firstInMemory;
+      this.recent = recent;
+    }
+
+    @Override
+    protected LogIndex doInBackground(File... segments) {
+      try {
+        return LogIndex.build(segments, runId, firstInMemory, recent);
+      } catch (IOException e) {
+        EventLog.w(TAG, "Could not index log", e);
+        return null;
       }
+    }
+
+    @Override
+    protected void onPostExecute(LogIndex built) {
+      if (built == null || isFinishing()) {
+        return;
+      }
+
+      index = built;
+
+      List<String> names = new ArrayList<String>(built.getTags());
+      Collections.sort(names);
+      tags.setNotifyOnChange(false);
+      for (String name : names) {
+        if (tags.getPosition(name) < 0) {
+          tags.add(name);
+        }
+      }
+      tags.notifyDataSetChanged();
+
+      refilter();
+    }
+  }
+
 
-      TextView logText = (TextView) findViewById(R.id.logText);
-      logText.setText(log.toString());
+  private class Filter extends AsyncTask<Void, Void, int[]> {
 
-    } catch (IOException e) {
-      Log.w(TAG, "Could not read log file", e);
+    private final LogIndex index;
+    private final char minLevel;
+    private final String tag;
+    private final String text;
+
+    Filter(LogIndex index, char minLevel, String tag, String text) {
+      this.index = index;
+      this.minLevel = minLevel;
+      this.tag = tag;
+      this.text = text;
+    }
+
+    @Override
+    protected int[] doInBackground(Void... params) {
+      return index.filter(minLevel, tag, text);
+    }
+
+    @Override
+    protected void onPostExecute(int[] positions) {
+      if (positions == null || filter != this) {
+        return;
+      }
+      filter = null;
+      show(index, positions);
     }
   }
 
@@ -0,0 +1,113 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.binding.xml.UDA10DeviceDescriptorBinderImpl;
+import org.fourthline.cling.binding.xml.UDA10ServiceDescriptorBinderImpl;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.model.types.UDN;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Sonos devices for the benchmarks to work with, built from descriptors the
+ * same way Cling builds the real thing.
+ */
+public class Fixtures {
+
+  private static final String DEVICE_DESCRIPTOR =
+          "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+          "<root xmlns=\"urn:schemas-upnp-org:device-1-0\">" +
+          "<specVersion><major>1</major><minor>0</minor></specVersion>" +
+          "<device>" +
+          "<deviceType>urn:schemas-upnp-org:device:ZonePlayer:1</deviceType>" +
+          "<friendlyName>Zone %d</friendlyName>" +
+          "<manufacturer>Sonos, Inc.</manufacturer>" +
+          "<modelName>Sonos PLAY:1</modelName>" +
+          "<UDN>uuid:%s</UDN>" +
+          "<serviceList><service>" +
+          "<serviceType>urn:schemas-upnp-org:service:RenderingControl:1</serviceType>" +
+          "<serviceId>urn:upnp-org:serviceId:RenderingControl</serviceId>" +
+          "<controlURL>/MediaRenderer/RenderingControl/Control</controlURL>" +
+          "<eventSubURL>/MediaRenderer/RenderingControl/Event</eventSubURL>" +
+          "<SCPDURL>/xml/RenderingControl1.xml</SCPDURL>" +
+          "</service></serviceList>" +
+          "</device>" +
+          "</root>";
+
+  private static final String RENDERING_CONTROL_DESCRIPTOR =
+          "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+          "<scpd xmlns=\"urn:schemas-upnp-org:service-1-0\">" +
+          "<specVersion><major>1</major><minor>0</minor></specVersion>" +
+          "<actionList>" +
+          "<action><name>GetMute</name><argumentList>" +
+          argument("InstanceID", "in", "A_ARG_TYPE_InstanceID") +
+          argument("Channel", "in", "A_ARG_TYPE_Channel") +
+          argument("CurrentMute", "out", "Mute") +
+          "</argumentList></action>" +
+          "<action><name>SetMute</name><argumentList>" +
+          argument("InstanceID", "in", "A_ARG_TYPE_InstanceID") +
+          argument("Channel", "in", "A_ARG_TYPE_Channel") +
+          argument("DesiredMute", "in", "Mute") +
+          "</argumentList></action>" +
+          "</actionList>" +
+          "<serviceStateTable>" +
+          "<stateVariable sendEvents=\"no\"><name>A_ARG_TYPE_InstanceID</name><dataType>ui4</dataType></stateVariable>" +
+          "<stateVariable sendEvents=\"no\"><name>A_ARG_TYPE_Channel</name><dataType>string</dataType>" +
+          "<allowedValueList><allowedValue>Master</allowedValue></allowedValueList></stateVariable>" +
+          "<stateVariable sendEvents=\"no\"><name>Mute</name><dataType>boolean</dataType></stateVariable>" +
+          "<stateVariable sendEvents=\"yes\"><name>LastChange</name><dataType>string</dataType></stateVariable>" +
+          "</serviceStateTable>" +
+          "</scpd>";
+
+
+
+  private static String argument(String name, String direction, String stateVariable) {
+    return "<argument><name>" + name + "</name><direction>" + direction + "</direction>" +
+            "<relatedStateVariable>" + stateVariable + "</relatedStateVariable></argument>";
+  }
+
+
+
+  /**
+   * Returns a fully hydrated Sonos device with a RenderingControl service.
+   * Each index gives a different device.
+   */
+  public static RemoteDevice sonos(int index) throws Exception {
+    UDN udn = new UDN(String.format("RINCON_5151%08d01400", index));
+    RemoteDevice undescribed = new RemoteDevice(new RemoteDeviceIdentity(
+            udn, 1800, new URL("http://127.0.0.1:1400/xml/device_description.xml"), null, null));
+
+    RemoteDevice device = new UDA10DeviceDescriptorBinderImpl().describe(
+            undescribed, String.format(DEVICE_DESCRIPTOR, index, udn.getIdentifierString()));
+
+    List<RemoteService> services = new ArrayList<RemoteService>();
+    for (RemoteService service : device.getServices()) {
+      services.add(new UDA10ServiceDescriptorBinderImpl().describe(service, RENDERING_CONTROL_DESCRIPTOR));
+    }
+
+    return device.newInstance(
+            udn,
+            device.getVersion(),
+            device.getType(),
+            device.getDetails(),
+            device.getIcons(),
+            device.toServiceArray(services),
+            Collections.<RemoteDevice>emptyList());
+  }
+
+
+
+  public static List<RemoteDevice> sonoses(int count) throws Exception {
+    List<RemoteDevice> devices = new ArrayList<RemoteDevice>();
+    for (int i = 0; i < count; i++) {
+      devices.add(sonos(i));
+    }
+    return devices;
+  }
+
+}
@@ -0,0 +1,94 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Counting the Sonos systems on the network (what getNumKnownSonosSystems
+ * does for every widget update) while discovery keeps changing the
+ * registry underneath.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KnownSonosCountBenchmark {
+
+  private static final String SSID = "\"benchmark\"";
+  private static final int ZONES = 20;
+
+  private ScheduledExecutorService executor;
+  private SonosRegistry sonoses;
+  private List<Sonos> churn;
+  private int next = 0;
+
+
+
+  @Setup
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    MockControlPoint controlPoint = new MockControlPoint();
+    Sonos.Failure failure = new Sonos.Failure() {
+      public void failure(Sonos sonos) {
+      }
+    };
+    Metrics metrics = new Metrics(Clock.SYSTEM);
+
+    sonoses = new SonosRegistry();
+    sonoses.addNetwork(SSID);
+
+    churn = new ArrayList<Sonos>();
+    for (RemoteDevice device : Fixtures.sonoses(ZONES)) {
+      Sonos sonos = new Sonos(controlPoint, device, executor, Clock.SYSTEM, failure, metrics);
+      sonoses.put(SSID, sonos);
+      churn.add(sonos);
+    }
+  }
+
+
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(3)
+  public int count() {
+    return sonoses.count(SSID);
+  }
+
+
+
+  /**
+   * Removes and re-adds one system at a time, round robin.
+   */
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public Sonos churn() {
+    Sonos sonos = churn.get(next);
+    next = (next + 1) % churn.size();
+    sonoses.remove(SSID, sonos.getDevice().getIdentity());
+    return sonoses.put(SSID, sonos);
+  }
+
+}
@@ -0,0 +1,99 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.controlpoint.SubscriptionCallback;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.header.UpnpHeader;
+import org.fourthline.cling.model.types.InvalidValueException;
+import org.fourthline.cling.protocol.ProtocolFactory;
+import org.fourthline.cling.registry.Registry;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Control point that answers every action straight away, on the calling
+ * thread, without touching the network. Subscriptions are accepted but
+ * never send events, so every mute has to ask for the current state.
+ */
+public class MockControlPoint implements ControlPoint {
+
+  private volatile boolean currentMute = false;
+
+
+
+  @SuppressWarnings("unchecked")
+  public Future execute(final ActionCallback callback) {
+    FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+      public void run() {
+        answer(callback);
+      }
+    }, null);
+    task.run();
+    return task;
+  }
+
+
+
+  private void answer(ActionCallback callback) {
+    ActionInvocation invocation = callback.getActionInvocation();
+    try {
+      if (invocation.getAction().getOutputArgument("CurrentMute") != null) {
+        invocation.setOutput("CurrentMute", currentMute);
+      }
+      if (invocation.getAction().getInputArgument("DesiredMute") != null) {
+        currentMute = (Boolean) invocation.getInput("DesiredMute").getValue();
+      }
+    } catch (InvalidValueException e) {
+      throw new IllegalStateException(e);
+    }
+    callback.success(invocation);
+  }
+
+
+
+  public void execute(SubscriptionCallback callback) {
+  }
+
+
+
+  public UpnpServiceConfiguration getConfiguration() {
+    return null;
+  }
+
+
+
+  public ProtocolFactory getProtocolFactory() {
+    return null;
+  }
+
+
+
+  public Registry getRegistry() {
+    return null;
+  }
+
+
+
+  public void search() {
+  }
+
+
+
+  public void search(UpnpHeader searchType) {
+  }
+
+
+
+  public void search(int mxSeconds) {
+  }
+
+
+
+  public void search(UpnpHeader searchType, int mxSeconds) {
+  }
+
+}
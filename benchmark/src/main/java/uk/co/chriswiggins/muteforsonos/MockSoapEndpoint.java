@@ -0,0 +1,97 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * A RenderingControl control URL on the loopback interface, answering
+ * GetMute and SetMute with canned responses straight away, so benchmarks
+ * can measure what a round trip costs the caller.
+ */
+class MockSoapEndpoint {
+
+  static final String SERVICE_TYPE = "urn:schemas-upnp-org:service:RenderingControl:1";
+
+  static final String GET_MUTE_RESPONSE =
+          "<?xml version=\"1.0\"?>" +
+          "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+          "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body>" +
+          "<u:GetMuteResponse xmlns:u=\"" + SERVICE_TYPE + "\">" +
+          "<CurrentMute>1</CurrentMute>" +
+          "</u:GetMuteResponse></s:Body></s:Envelope>";
+
+  static final String SET_MUTE_RESPONSE =
+          "<?xml version=\"1.0\"?>" +
+          "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+          "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body>" +
+          "<u:SetMuteResponse xmlns:u=\"" + SERVICE_TYPE + "\"></u:SetMuteResponse>" +
+          "</s:Body></s:Envelope>";
+
+  private static final String CONTROL_PATH = "/MediaRenderer/RenderingControl/Control";
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final byte[] getMuteResponse;
+  private final byte[] setMuteResponse;
+
+
+
+  MockSoapEndpoint() throws IOException {
+    getMuteResponse = GET_MUTE_RESPONSE.getBytes("UTF-8");
+    setMuteResponse = SET_MUTE_RESPONSE.getBytes("UTF-8");
+
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    server.createContext(CONTROL_PATH, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange);
+      }
+    });
+    server.start();
+  }
+
+
+
+  URL getControlUrl() throws IOException {
+    InetSocketAddress address = server.getAddress();
+    return new URL("http", address.getAddress().getHostAddress(), address.getPort(), CONTROL_PATH);
+  }
+
+
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+
+
+  private void respond(HttpExchange exchange) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    byte[] buffer = new byte[512];
+    while (in.read(buffer) != -1) {
+    }
+    in.close();
+
+    String soapAction = exchange.getRequestHeaders().getFirst("SOAPACTION");
+    byte[] body = soapAction != null && soapAction.contains("#GetMute") ? getMuteResponse : setMuteResponse;
+
+    exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=\"utf-8\"");
+    exchange.sendResponseHeaders(200, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+}
@@ -0,0 +1,90 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A whole mute and restore, through Sonos.mute()/restoreMute() and the
+ * fan-out barrier, against a control point that answers instantly. What's
+ * left is the cost of our own code and Cling's action plumbing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MuteFanOutBenchmark {
+
+  @Param({"1", "10", "50"})
+  public int zones;
+
+  private ScheduledExecutorService executor;
+  private MuteFanOut fanOut;
+  private List<Sonos> sonoses;
+
+
+
+  @Setup
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    fanOut = new MuteFanOut(executor, 5000L);
+
+    MockControlPoint controlPoint = new MockControlPoint();
+    Sonos.Failure failure = new Sonos.Failure() {
+      public void failure(Sonos sonos) {
+      }
+    };
+    Metrics metrics = new Metrics(Clock.SYSTEM);
+
+    sonoses = new ArrayList<Sonos>();
+    for (RemoteDevice device : Fixtures.sonoses(zones)) {
+      sonoses.add(new Sonos(controlPoint, device, executor, Clock.SYSTEM, failure, metrics));
+    }
+  }
+
+
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+
+
+  @Benchmark
+  public void muteAndRestore() throws InterruptedException {
+    Await muted = new Await();
+    fanOut.mute(sonoses, muted);
+    muted.latch.await();
+
+    Await restored = new Await();
+    fanOut.restoreMute(sonoses, restored);
+    restored.latch.await();
+  }
+
+
+
+  private static class Await implements MuteFanOut.Listener {
+
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    public void fanOutCompleted(boolean mute, List<MuteFanOut.Result> results, long elapsedMillis) {
+      latch.countDown();
+    }
+  }
+
+}
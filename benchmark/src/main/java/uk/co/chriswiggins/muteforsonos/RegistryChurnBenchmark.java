@@ -0,0 +1,77 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Devices coming and going, as when wi-fi drops and comes back or the
+ * registry expires and rediscovers everything: every Sonos system is added,
+ * then every one removed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegistryChurnBenchmark {
+
+  private static final String SSID = "\"benchmark\"";
+
+  @Param({"1", "10", "50"})
+  public int zones;
+
+  private ScheduledExecutorService executor;
+  private List<RemoteDevice> devices;
+  private SonosTracker tracker;
+
+
+
+  @Setup
+  public void setUp() throws Exception {
+    devices = Fixtures.sonoses(zones);
+    executor = Executors.newSingleThreadScheduledExecutor();
+
+    SonosRegistry sonoses = new SonosRegistry();
+    sonoses.addNetwork(SSID);
+
+    tracker = new SonosTracker(sonoses, new ZoneGroupTopology(), executor, Clock.SYSTEM, new Sonos.Failure() {
+      public void failure(Sonos sonos) {
+      }
+    }, new Metrics(Clock.SYSTEM));
+    tracker.setControlPoint(new MockControlPoint());
+  }
+
+
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+
+
+  @Benchmark
+  public Sonos addAndRemove() {
+    Sonos last = null;
+    for (RemoteDevice device : devices) {
+      last = tracker.deviceAdded(SSID, device);
+    }
+    for (RemoteDevice device : devices) {
+      tracker.deviceRemoved(SSID, device);
+    }
+    return last;
+  }
+
+}
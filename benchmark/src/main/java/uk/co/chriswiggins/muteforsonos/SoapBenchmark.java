@@ -0,0 +1,131 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.UpnpMessage;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.message.control.IncomingActionResponseMessage;
+import org.fourthline.cling.model.message.control.OutgoingActionRequestMessage;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UDAServiceId;
+import org.fourthline.cling.support.renderingcontrol.callback.GetMute;
+import org.fourthline.cling.support.renderingcontrol.callback.SetMute;
+import org.fourthline.cling.transport.impl.SOAPActionProcessorImpl;
+import org.fourthline.cling.transport.spi.SOAPActionProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The CPU cost of a GetMute and a SetMute call on either side of the
+ * network: encoding the request and picking the result out of the
+ * response. Compares Cling's actions (ActionInvocation, argument
+ * conversion, DOM marshalling and parsing) with RenderingControlClient's
+ * prebuilt envelopes and streaming reader. The network isn't involved;
+ * SoapRoundTripBenchmark measures whole calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SoapBenchmark {
+
+  private Service service;
+  private URL controlUrl;
+  private SOAPActionProcessor processor = new SOAPActionProcessorImpl();
+
+  private SoapEnvelope getMute;
+  private SoapEnvelope setMute;
+  private byte[] getMuteResponse;
+
+
+
+  @Setup
+  public void setUp() throws Exception {
+    RemoteDevice device = Fixtures.sonos(0);
+    service = device.findService(new UDAServiceId("RenderingControl"));
+    controlUrl = device.normalizeURI(service.getControlURI());
+
+    String arguments = "<InstanceID>0</InstanceID><Channel>Master</Channel>";
+    getMute = new SoapEnvelope(MockSoapEndpoint.SERVICE_TYPE, "GetMute", arguments, null);
+    setMute = new SoapEnvelope(MockSoapEndpoint.SERVICE_TYPE, "SetMute", arguments, "DesiredMute");
+    getMuteResponse = MockSoapEndpoint.GET_MUTE_RESPONSE.getBytes("UTF-8");
+  }
+
+
+
+  @Benchmark
+  public boolean clingGetMute() throws Exception {
+    final boolean[] result = new boolean[1];
+    GetMute callback = new GetMute(service) {
+      @Override
+      public void received(ActionInvocation invocation, boolean currentMute) {
+        result[0] = currentMute;
+      }
+
+      @Override
+      public void failure(ActionInvocation invocation, UpnpResponse response, String defaultMsg) {
+      }
+    };
+
+    ActionInvocation invocation = callback.getActionInvocation();
+    processor.writeBody(new OutgoingActionRequestMessage(invocation, controlUrl), invocation);
+    processor.readBody(new IncomingActionResponseMessage(response(MockSoapEndpoint.GET_MUTE_RESPONSE)), invocation);
+    callback.success(invocation);
+    return result[0];
+  }
+
+
+
+  @Benchmark
+  public boolean leanGetMute() throws Exception {
+    byte[] body = getMute.body();
+    String value = SoapResponseReader.read(new ByteArrayInputStream(getMuteResponse), "CurrentMute");
+    return body.length > 0 && SoapResponseReader.parseBoolean(value);
+  }
+
+
+
+  @Benchmark
+  public Object clingSetMute() throws Exception {
+    SetMute callback = new SetMute(service, true) {
+      @Override
+      public void failure(ActionInvocation invocation, UpnpResponse response, String defaultMsg) {
+      }
+    };
+
+    ActionInvocation invocation = callback.getActionInvocation();
+    processor.writeBody(new OutgoingActionRequestMessage(invocation, controlUrl), invocation);
+    processor.readBody(new IncomingActionResponseMessage(response(MockSoapEndpoint.SET_MUTE_RESPONSE)), invocation);
+    return invocation;
+  }
+
+
+
+  /**
+   * The direct client builds its two SetMute bodies once, so this is what a
+   * call would cost if it didn't.
+   */
+  @Benchmark
+  public Object leanSetMute() throws Exception {
+    return setMute.body(new byte[] { '1' });
+  }
+
+
+
+  private static StreamResponseMessage response(String body) {
+    StreamResponseMessage message = new StreamResponseMessage(UpnpResponse.Status.OK);
+    message.setBody(UpnpMessage.BodyType.STRING, body);
+    return message;
+  }
+
+}
@@ -0,0 +1,110 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.message.control.IncomingActionResponseMessage;
+import org.fourthline.cling.model.message.control.OutgoingActionRequestMessage;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UDAServiceId;
+import org.fourthline.cling.support.renderingcontrol.callback.GetMute;
+import org.fourthline.cling.transport.impl.SOAPActionProcessorImpl;
+import org.fourthline.cling.transport.spi.SOAPActionProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A whole GetMute call to a mock endpoint on the loopback interface, both
+ * ways: Cling's action encoded and parsed by its SOAP processor and sent
+ * through KeepAliveStreamClient, and RenderingControlClient's prebuilt
+ * request sent through HttpURLConnection. Both keep their connection
+ * alive between calls, so this is SoapBenchmark's CPU cost plus what each
+ * HTTP stack adds to a round trip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SoapRoundTripBenchmark {
+
+  private MockSoapEndpoint endpoint;
+  private ExecutorService executor;
+  private KeepAliveStreamClient streamClient;
+  private SOAPActionProcessor processor = new SOAPActionProcessorImpl();
+  private Service service;
+  private URL controlUrl;
+
+  private RenderingControlClient client;
+  private SoapEnvelope getMute;
+  private byte[] getMuteBody;
+
+
+
+  @Setup
+  public void setUp() throws Exception {
+    endpoint = new MockSoapEndpoint();
+    controlUrl = endpoint.getControlUrl();
+    executor = Executors.newCachedThreadPool();
+    streamClient = new KeepAliveStreamClient(executor);
+    service = Fixtures.sonos(0).findService(new UDAServiceId("RenderingControl"));
+
+    client = new RenderingControlClient(controlUrl, MockSoapEndpoint.SERVICE_TYPE, false, executor);
+    getMute = new SoapEnvelope(MockSoapEndpoint.SERVICE_TYPE, "GetMute",
+            "<InstanceID>0</InstanceID><Channel>Master</Channel>", null);
+    getMuteBody = getMute.body();
+  }
+
+
+
+  @TearDown
+  public void tearDown() throws Exception {
+    streamClient.stop();
+    executor.shutdownNow();
+    endpoint.stop();
+  }
+
+
+
+  @Benchmark
+  public boolean clingGetMute() throws Exception {
+    final boolean[] result = new boolean[1];
+    GetMute callback = new GetMute(service) {
+      @Override
+      public void received(ActionInvocation invocation, boolean currentMute) {
+        result[0] = currentMute;
+      }
+
+      @Override
+      public void failure(ActionInvocation invocation, UpnpResponse response, String defaultMsg) {
+        throw new IllegalStateException("GetMute failed: " + defaultMsg);
+      }
+    };
+
+    ActionInvocation invocation = callback.getActionInvocation();
+    OutgoingActionRequestMessage request = new OutgoingActionRequestMessage(invocation, controlUrl);
+    processor.writeBody(request, invocation);
+    StreamResponseMessage response = streamClient.sendRequest(request);
+    processor.readBody(new IncomingActionResponseMessage(response), invocation);
+    callback.success(invocation);
+    return result[0];
+  }
+
+
+
+  @Benchmark
+  public boolean leanGetMute() throws Exception {
+    return SoapResponseReader.parseBoolean(client.post(getMute, getMuteBody, "CurrentMute"));
+  }
+
+}
@@ -0,0 +1,98 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.model.message.StreamRequestMessage;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.UpnpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A SetMute round trip through KeepAliveStreamClient to a mock endpoint on
+ * the loopback interface, reusing a pooled connection, against the same
+ * call on a fresh connection each time (the request asks for the
+ * connection to be closed afterwards), as a client without keep-alive
+ * makes. Over loopback the difference is the cost of setting up and
+ * tearing down a TCP connection; over wi-fi it's at least one more round
+ * trip to the Sonos system on top.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StreamClientBenchmark {
+
+  private static final String SET_MUTE_REQUEST =
+          "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+          "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+          "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body>" +
+          "<u:SetMute xmlns:u=\"" + MockSoapEndpoint.SERVICE_TYPE + "\">" +
+          "<InstanceID>0</InstanceID><Channel>Master</Channel><DesiredMute>1</DesiredMute>" +
+          "</u:SetMute></s:Body></s:Envelope>";
+
+  private MockSoapEndpoint endpoint;
+  private ExecutorService executor;
+  private KeepAliveStreamClient client;
+  private URI controlUri;
+
+
+
+  @Setup
+  public void setUp() throws Exception {
+    endpoint = new MockSoapEndpoint();
+    controlUri = endpoint.getControlUrl().toURI();
+    executor = Executors.newCachedThreadPool();
+    client = new KeepAliveStreamClient(executor);
+  }
+
+
+
+  @TearDown
+  public void tearDown() {
+    client.stop();
+    executor.shutdownNow();
+    endpoint.stop();
+  }
+
+
+
+  @Benchmark
+  public StreamResponseMessage keepAlive() throws Exception {
+    return send(false);
+  }
+
+
+
+  @Benchmark
+  public StreamResponseMessage freshConnection() throws Exception {
+    return send(true);
+  }
+
+
+
+  private StreamResponseMessage send(boolean close) throws Exception {
+    StreamRequestMessage request = new StreamRequestMessage(UpnpRequest.Method.POST, controlUri, SET_MUTE_REQUEST);
+    request.getHeaders().add("Content-Type", "text/xml; charset=\"utf-8\"");
+    request.getHeaders().add("SOAPACTION", "\"" + MockSoapEndpoint.SERVICE_TYPE + "#SetMute\"");
+    if (close) {
+      request.getHeaders().add("Connection", "close");
+    }
+
+    StreamResponseMessage response = client.sendRequest(request);
+    if (response == null || response.getOperation().isFailed()) {
+      throw new IllegalStateException("SetMute failed: " + response);
+    }
+    return response;
+  }
+
+}
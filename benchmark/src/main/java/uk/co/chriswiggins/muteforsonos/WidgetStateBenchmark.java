@@ -0,0 +1,51 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The work SonosWidgetProvider.performUpdate does for every update before
+ * touching RemoteViews: working out what the widget should show and
+ * whether anything has changed since it was last pushed. RemoteViews
+ * itself only exists on Android.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WidgetStateBenchmark {
+
+  private WidgetState last = WidgetState.of(true, true, 30, 5);
+  private int seconds = 0;
+
+
+
+  /**
+   * A countdown tick: the text changes every time.
+   */
+  @Benchmark
+  public boolean tick() {
+    seconds = (seconds + 1) % 600;
+    WidgetState state = WidgetState.of(true, true, seconds, 5);
+    boolean changed = !state.equals(last);
+    last = state;
+    return changed;
+  }
+
+
+
+  /**
+   * A redundant update, e.g. from discovery: nothing changes.
+   */
+  @Benchmark
+  public boolean unchanged() {
+    return !WidgetState.of(true, true, 30, 5).equals(last);
+  }
+
+}
@@ -0,0 +1,143 @@
+package uk.co.chriswiggins.muteforsonos.daemon;
+
+import org.eclipse.jetty.server.Server;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import uk.co.chriswiggins.muteforsonos.Clock;
+import uk.co.chriswiggins.muteforsonos.Fixtures;
+import uk.co.chriswiggins.muteforsonos.MockControlPoint;
+import uk.co.chriswiggins.muteforsonos.MuteEngine;
+import uk.co.chriswiggins.muteforsonos.MuteFanOut;
+import uk.co.chriswiggins.muteforsonos.Notifier;
+import uk.co.chriswiggins.muteforsonos.Sonos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Requests to the daemon's HTTP API over loopback, through Jetty and
+ * ControlHandler, to an engine whose Sonos systems answer straight away
+ * (see MockControlPoint), each thread reusing a keep-alive connection as a
+ * home automation hub does. Run with more threads (e.g. -t 8) to see how
+ * it holds up under load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ControlHandlerBenchmark {
+
+  @Param({"1", "10"})
+  public int zones;
+
+  private ScheduledExecutorService executor;
+  private MuteEngine engine;
+  private Server server;
+  private int port;
+
+
+
+  @Setup
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    Nothing nothing = new Nothing();
+    engine = new MuteEngine(executor, Clock.SYSTEM, new ScheduledAlarm(executor, Clock.SYSTEM, nothing),
+            nothing, nothing);
+    engine.setVisible(false);
+    engine.setControlPoint(new MockControlPoint());
+    engine.connected("lan");
+    for (RemoteDevice device : Fixtures.sonoses(zones)) {
+      engine.deviceAdded(device);
+    }
+
+    server = MuteDaemon.createServer("127.0.0.1", 0, new ControlHandler(engine));
+    server.start();
+    port = server.getConnectors()[0].getLocalPort();
+  }
+
+
+
+  @TearDown
+  public void tearDown() throws Exception {
+    server.stop();
+    engine.setControlPoint(null);
+    executor.shutdownNow();
+  }
+
+
+
+  @Benchmark
+  public int status() throws IOException {
+    return request("GET", "/status");
+  }
+
+
+
+  @Benchmark
+  public int muteAndUnmute() throws IOException {
+    return request("POST", "/mute?seconds=60") + request("POST", "/unmute");
+  }
+
+
+
+  /**
+   * Makes a request and reads the whole response, so the connection goes
+   * back to be reused.
+   */
+  private int request(String method, String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http", "127.0.0.1", port, path).openConnection();
+    connection.setRequestMethod(method);
+
+    int status = connection.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      throw new IllegalStateException(method + " " + path + " returned " + status);
+    }
+
+    InputStream in = connection.getInputStream();
+    byte[] buffer = new byte[512];
+    while (in.read(buffer) != -1) {
+    }
+    in.close();
+
+    return status;
+  }
+
+
+
+  /**
+   * Stands in for everything the engine tells the daemon.
+   */
+  private static class Nothing implements Runnable, Notifier, Sonos.Failure {
+
+    public void run() {
+    }
+
+    public void stateChanged() {
+    }
+
+    public void cannotMute(Problem problem) {
+    }
+
+    public void fanOutCompleted(boolean mute, List<MuteFanOut.Result> results, long elapsedMillis) {
+    }
+
+    public void failure(Sonos sonos) {
+    }
+  }
+
+}
@@ -0,0 +1,18 @@
+package uk.co.chriswiggins.muteforsonos;
+
+
+/**
+ * Wakes the engine up to unmute at the given time, even if the device is
+ * asleep. When it goes off, {@link MuteEngine#alarmFired} should be called.
+ */
+public interface Alarm {
+
+  /**
+   * Sets the alarm for the given time (as per the engine's clock),
+   * replacing any already set.
+   */
+  public void set(long elapsedRealtime);
+
+  public void cancel();
+
+}
@@ -0,0 +1,24 @@
+package uk.co.chriswiggins.muteforsonos;
+
+
+/**
+ * Source of the time, so code that needs it doesn't depend on the platform.
+ */
+public interface Clock {
+
+  /**
+   * Clock based on System.nanoTime, for use off Android.
+   */
+  public static final Clock SYSTEM = new Clock() {
+    public long elapsedRealtime() {
+      return System.nanoTime() / 1000000L;
+    }
+  };
+
+  /**
+   * Returns milliseconds since some fixed point, which doesn't jump when the
+   * wall clock is changed.
+   */
+  public long elapsedRealtime();
+
+}
@@ -0,0 +1,291 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Counts down to the unmute time. Rather than polling, it wakes exactly
+ * when the number of whole seconds left changes, and only while the widget
+ * can be seen. A single deadline at the unmute time forces the unmute, in
+ * case the alarm is late (AlarmManager often is, for some reason).
+ *
+ * Keeps statistics for each mute on how late the wakeups were, and on how
+ * late the alarm was. How late each wakeup was is also recorded in Metrics,
+ * across mutes.
+ */
+public class Countdown {
+
+  private static final Logger log = Logger.getLogger(Countdown.class.getName());
+
+  private ScheduledExecutorService executor;
+  private Clock clock;
+  private Listener listener;
+  private Metrics metrics;
+
+  private boolean running = false;
+  private boolean visible = true;
+  private long unmuteTime;
+  private ScheduledFuture<?> tickFuture;
+  private ScheduledFuture<?> deadlineFuture;
+
+  // Statistics for the current (or last) mute.
+  private int ticks;
+  private long totalJitter;
+  private long maxJitter;
+  private Long alarmLateness;
+  private Long deadlineLateness;
+
+
+
+  /**
+   * @param metrics Told how late each wakeup was.
+   */
+  public Countdown(ScheduledExecutorService executor, Clock clock, Listener listener, Metrics metrics) {
+    this.executor = executor;
+    this.clock = clock;
+    this.listener = listener;
+    this.metrics = metrics;
+  }
+
+
+
+  /**
+   * Starts counting down to the given time (as per the clock).
+   */
+  public synchronized void start(long unmuteTime) {
+    ticks = 0;
+    totalJitter = 0;
+    maxJitter = 0;
+    alarmLateness = null;
+    deadlineLateness = null;
+
+    running = true;
+    setUnmuteTime(unmuteTime);
+  }
+
+
+
+  /**
+   * Moves the unmute time, e.g. because more mute was added.
+   */
+  public synchronized void setUnmuteTime(long unmuteTime) {
+    if (!running) {
+      return;
+    }
+
+    this.unmuteTime = unmuteTime;
+
+    if (deadlineFuture != null) {
+      deadlineFuture.cancel(false);
+    }
+    long delay = Math.max(unmuteTime - clock.elapsedRealtime(), 0L);
+    deadlineFuture = executor.schedule(new Deadline(), delay, TimeUnit.MILLISECONDS);
+
+    scheduleTick();
+  }
+
+
+
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+
+    running = false;
+    cancel(tickFuture);
+    cancel(deadlineFuture);
+    tickFuture = null;
+    deadlineFuture = null;
+
+    log.info(getStats());
+  }
+
+
+
+  /**
+   * Stops ticking while the widget can't be seen (the deadline still
+   * applies), and starts again when it can.
+   */
+  public void setVisible(boolean visible) {
+    boolean resumed;
+
+    synchronized (this) {
+      resumed = visible && !this.visible && running;
+      this.visible = visible;
+
+      if (visible) {
+        scheduleTick();
+      } else {
+        cancel(tickFuture);
+        tickFuture = null;
+      }
+    }
+
+    // Catch up with the time that passed unseen.
+    if (resumed) {
+      listener.tick();
+    }
+  }
+
+
+
+  /**
+   * Records that the unmute alarm has gone off.
+   */
+  public synchronized void alarmFired() {
+    if (running) {
+      alarmLateness = clock.elapsedRealtime() - unmuteTime;
+    }
+  }
+
+
+
+  /**
+   * Returns the number of whole seconds left, rounded up so the display
+   * changes exactly on the boundaries ticks are scheduled for.
+   */
+  public static int secondsLeft(long unmuteTime, long now) {
+    return (int) ((Math.max(unmuteTime - now, 0L) + 999L) / 1000L);
+  }
+
+
+
+  public synchronized int getTicks() {
+    return ticks;
+  }
+
+
+
+  public synchronized long getMeanJitterMillis() {
+    return ticks == 0 ? 0 : totalJitter / ticks;
+  }
+
+
+
+  public synchronized long getMaxJitterMillis() {
+    return maxJitter;
+  }
+
+
+
+  /**
+   * Returns how late the alarm was, or null if it hasn't gone off (the
+   * deadline may have unmuted first).
+   */
+  public synchronized Long getAlarmLatenessMillis() {
+    return alarmLateness;
+  }
+
+
+
+  public synchronized String getStats() {
+    return "Countdown: " + ticks + " ticks, jitter mean " + getMeanJitterMillis() + "ms, max " + maxJitter + "ms. " +
+            "Alarm late by " + (alarmLateness != null ? alarmLateness + "ms" : "n/a") + ", " +
+            "deadline late by " + (deadlineLateness != null ? deadlineLateness + "ms" : "n/a");
+  }
+
+
+
+  /**
+   * Schedules a tick for the next whole second boundary before the unmute
+   * time.
+   */
+  private void scheduleTick() {
+    cancel(tickFuture);
+    tickFuture = null;
+
+    if (!running || !visible) {
+      return;
+    }
+
+    long now = clock.elapsedRealtime();
+    long remaining = unmuteTime - now;
+    if (remaining <= 1000L) {
+      // The deadline will take it from here.
+      return;
+    }
+
+    long delay = remaining % 1000L;
+    if (delay == 0) {
+      delay = 1000L;
+    }
+
+    tickFuture = executor.schedule(new Tick(now + delay), delay, TimeUnit.MILLISECONDS);
+  }
+
+
+
+  private static void cancel(ScheduledFuture<?> future) {
+    if (future != null) {
+      future.cancel(false);
+    }
+  }
+
+
+
+  private class Tick implements Runnable {
+
+    private final long boundary;
+
+    Tick(long boundary) {
+      this.boundary = boundary;
+    }
+
+    @Override
+    public void run() {
+      synchronized (Countdown.this) {
+        if (!running || tickFuture == null) {
+          return;
+        }
+
+        long jitter = Math.abs(clock.elapsedRealtime() - boundary);
+        ticks++;
+        totalJitter += jitter;
+        maxJitter = Math.max(maxJitter, jitter);
+        metrics.ticked(jitter);
+
+        scheduleTick();
+      }
+
+      listener.tick();
+    }
+  }
+
+
+
+  private class Deadline implements Runnable {
+    @Override
+    public void run() {
+      synchronized (Countdown.this) {
+        if (!running) {
+          return;
+        }
+        deadlineLateness = clock.elapsedRealtime() - unmuteTime;
+      }
+
+      listener.deadline();
+    }
+  }
+
+
+
+  /**
+   * Interface used to define the methods to call as the countdown
+   * progresses.
+   */
+  static interface Listener {
+    /**
+     * The number of seconds left has changed.
+     */
+    public void tick();
+
+    /**
+     * The unmute time has been reached.
+     */
+    public void deadline();
+  }
+
+}
@@ -0,0 +1,216 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.util.Random;
+
+
+/**
+ * How well calls to a single Sonos system are going, and so whether to
+ * retry a failed one, and whether to try at all.
+ *
+ * A failed call is retried a couple of times after a short, jittered, exponential
+ * backoff, which covers a wi-fi hiccup. Enough failures in a row open the
+ * circuit: calls then fail straight away rather than holding up a mute,
+ * until a cool-down has passed. Then a single trial call is let through
+ * (half open). If that succeeds the circuit closes again, if not it stays
+ * open for twice as long.
+ */
+public class DeviceHealth {
+
+  static enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  // Attempts at each call, including the first.
+  static final int MAX_ATTEMPTS = 3;
+  private static final long BASE_BACKOFF = 250L;
+  private static final long MAX_BACKOFF = 2 * 1000L;
+
+  // Failed calls in a row that open the circuit, and how long it stays open.
+  private static final int FAILURE_THRESHOLD = 3;
+  private static final long INITIAL_OPEN_TIME = 5 * 1000L;
+  private static final long MAX_OPEN_TIME = 2 * 60 * 1000L;
+
+  // Times the circuit opens in a row before the system is taken to have
+  // gone from the network.
+  private static final int GONE_AFTER_OPENS = 4;
+
+  // A trial call not heard back from in this long (e.g. because it was
+  // abandoned) no longer stops another.
+  private static final long TRIAL_TIMEOUT = 10 * 1000L;
+
+  private final Clock clock;
+  private final Random random = new Random();
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private int consecutiveOpens = 0;
+  private long openTime = INITIAL_OPEN_TIME;
+  private long openUntil;
+  private boolean trialInProgress = false;
+  private long trialStarted;
+
+  private long successes = 0;
+  private long failures = 0;
+  private long rejected = 0;
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+
+
+  public DeviceHealth(Clock clock) {
+    this.clock = clock;
+  }
+
+
+
+  /**
+   * Returns whether a call may be made now. When half open, only one call
+   * (the trial) is allowed until it has finished.
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.OPEN && clock.elapsedRealtime() >= openUntil) {
+      state = State.HALF_OPEN;
+      trialInProgress = false;
+    }
+
+    switch (state) {
+      case CLOSED:
+        return true;
+
+      case HALF_OPEN:
+        long now = clock.elapsedRealtime();
+        if (!trialInProgress || now - trialStarted >= TRIAL_TIMEOUT) {
+          trialInProgress = true;
+          trialStarted = now;
+          return true;
+        }
+        // Fall through.
+
+      default:
+        rejected++;
+        return false;
+    }
+  }
+
+
+
+  public synchronized void succeeded(long latencyMillis) {
+    successes++;
+    latencies.record(latencyMillis);
+
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    consecutiveOpens = 0;
+    openTime = INITIAL_OPEN_TIME;
+    trialInProgress = false;
+  }
+
+
+
+  /**
+   * Records a failed call.
+   *
+   * @return Whether the circuit has just opened.
+   */
+  public synchronized boolean failed(long latencyMillis) {
+    failures++;
+    latencies.record(latencyMillis);
+    consecutiveFailures++;
+
+    if (state == State.HALF_OPEN) {
+      // The trial failed. Back off for longer.
+      openTime = Math.min(openTime * 2, MAX_OPEN_TIME);
+      open();
+      return true;
+    }
+
+    if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+      open();
+      return true;
+    }
+
+    return false;
+  }
+
+
+
+  private void open() {
+    state = State.OPEN;
+    consecutiveOpens++;
+    openUntil = clock.elapsedRealtime() + openTime;
+    trialInProgress = false;
+  }
+
+
+
+  /**
+   * Returns whether a call that has failed the given number of times (so
+   * far) should be tried again.
+   */
+  public synchronized boolean shouldRetry(int attempts) {
+    return state == State.CLOSED && attempts < MAX_ATTEMPTS;
+  }
+
+
+
+  /**
+   * Returns how long to wait before another attempt, after the given
+   * number of failed ones: exponential, with jitter so calls to many
+   * systems that failed together don't all retry together.
+   */
+  public long retryDelay(int attempts) {
+    long delay = Math.min(BASE_BACKOFF << Math.min(attempts - 1, 16), MAX_BACKOFF);
+    synchronized (random) {
+      return delay / 2 + (long) (random.nextDouble() * delay / 2);
+    }
+  }
+
+
+
+  public synchronized State getState() {
+    return state;
+  }
+
+
+
+  /**
+   * Returns how many times in a row the circuit has opened without a call
+   * getting through in between.
+   */
+  public synchronized int getConsecutiveOpens() {
+    return consecutiveOpens;
+  }
+
+
+
+  /**
+   * Returns whether the system has failed for long enough, trial after
+   * trial, that it has probably gone rather than just hiccupped.
+   */
+  public synchronized boolean isLikelyGone() {
+    return consecutiveOpens >= GONE_AFTER_OPENS;
+  }
+
+
+
+  /**
+   * Returns the fraction of calls that succeeded, or 1 if none have been
+   * made.
+   */
+  public synchronized double getSuccessRate() {
+    long calls = successes + failures;
+    return calls == 0 ? 1.0 : (double) successes / calls;
+  }
+
+
+
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+
+
+  public synchronized String getStats() {
+    return state + ", " + successes + " succeeded, " + failures + " failed, " + rejected + " rejected. " + latencies;
+  }
+
+}
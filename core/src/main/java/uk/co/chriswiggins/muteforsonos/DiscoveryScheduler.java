@@ -0,0 +1,207 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Schedules device searches with exponential backoff. Stops early once all
+ * the devices expected on the network (those known there last time) have
+ * been found, or after a fixed number of searches otherwise; just a few if
+ * nothing is expected, as on a network never seen before. Re-armed when a
+ * device is lost so it can be found again without waiting for it to
+ * announce itself.
+ */
+public class DiscoveryScheduler {
+
+  private static final Logger log = Logger.getLogger(DiscoveryScheduler.class.getName());
+
+  private static final long INITIAL_DELAY = 1000L;
+  private static final long MAX_DELAY = 60 * 1000L;
+  private static final int MAX_SEARCHES = 8;
+  // As many as were always sent before searches backed off.
+  private static final int MAX_SEARCHES_EXPECTING_NOTHING = 3;
+
+  private ScheduledExecutorService executor;
+  private Runnable search;
+  private Metrics metrics;
+
+  private Set<String> expected = new HashSet<String>();
+  private Set<String> found = new HashSet<String>();
+
+  private ScheduledFuture<?> next;
+  private long delay;
+  private int searchesThisRun;
+
+  // Bumped on every restart, so a search left over from an earlier run
+  // does nothing.
+  private int generation = 0;
+
+  // Counters.
+  private int searchesSent = 0;
+  private int devicesFoundThisSearch = 0;
+  private List<Integer> devicesFoundPerSearch = new ArrayList<Integer>();
+
+
+
+  /**
+   * @param search Sends a single search.
+   * @param metrics Told when discovery starts and finds its first device.
+   */
+  public DiscoveryScheduler(ScheduledExecutorService executor, Runnable search, Metrics metrics) {
+    this.executor = executor;
+    this.search = search;
+    this.metrics = metrics;
+  }
+
+
+
+  /**
+   * Starts searching afresh, e.g. on joining a network.
+   *
+   * @param expected Ids of the devices expected to be found.
+   */
+  public synchronized void start(Collection<String> expected) {
+    this.expected = new HashSet<String>(expected);
+    this.found.clear();
+
+    log.info("Starting discovery, expecting " + expected.size() + " devices");
+    metrics.discoveryStarted();
+    restart();
+  }
+
+
+
+  public synchronized void stop() {
+    if (next != null) {
+      next.cancel(false);
+      next = null;
+    }
+  }
+
+
+
+  /**
+   * Tells the scheduler a device has been found. Stops searching if that
+   * was the last expected one.
+   */
+  public synchronized void deviceFound(String id) {
+    if (!found.add(id)) {
+      return;
+    }
+    metrics.deviceDiscovered();
+
+    if (searchesThisRun > 0) {
+      devicesFoundThisSearch++;
+    }
+
+    if (next != null && !expected.isEmpty() && found.containsAll(expected)) {
+      log.info("Found all " + expected.size() + " expected devices after " + searchesThisRun + " searches. Stopping.");
+      stop();
+    }
+  }
+
+
+
+  /**
+   * Tells the scheduler a device has been lost. It is expected again, and
+   * searching starts again from the shortest delay.
+   */
+  public synchronized void deviceLost(String id) {
+    found.remove(id);
+    expected.add(id);
+
+    log.info("Lost " + id + ". Rearming discovery.");
+    restart();
+  }
+
+
+
+  public synchronized int getSearchesSent() {
+    return searchesSent;
+  }
+
+
+
+  /**
+   * Returns how many new devices turned up after each search since
+   * discovery was last started or rearmed.
+   */
+  public synchronized List<Integer> getDevicesFoundPerSearch() {
+    List<Integer> counts = new ArrayList<Integer>(devicesFoundPerSearch);
+    if (searchesThisRun > 0) {
+      counts.add(devicesFoundThisSearch);
+    }
+    return counts;
+  }
+
+
+
+  /**
+   * Sends a search and schedules the next one, unless the run it belongs
+   * to has since been stopped or restarted.
+   */
+  private void sendSearch(int generation) {
+    synchronized (this) {
+      if (next == null || generation != this.generation) {
+        // Stopped or restarted while waiting for the lock.
+        return;
+      }
+
+      if (searchesThisRun > 0) {
+        devicesFoundPerSearch.add(devicesFoundThisSearch);
+      }
+      devicesFoundThisSearch = 0;
+      searchesSent++;
+      searchesThisRun++;
+
+      int maxSearches = expected.isEmpty() ? MAX_SEARCHES_EXPECTING_NOTHING : MAX_SEARCHES;
+      if (searchesThisRun < maxSearches) {
+        delay = Math.min(delay * 2, MAX_DELAY);
+        schedule();
+      } else {
+        log.info("Giving up after " + searchesThisRun + " searches. Found " + found.size() + " of "
+                + expected.size() + " expected devices. New devices per search: " + devicesFoundPerSearch);
+        next = null;
+      }
+    }
+
+    search.run();
+  }
+
+
+
+  private void restart() {
+    stop();
+
+    generation++;
+    delay = INITIAL_DELAY;
+    searchesThisRun = 0;
+    devicesFoundThisSearch = 0;
+    devicesFoundPerSearch.clear();
+
+    schedule();
+  }
+
+
+
+  /**
+   * Schedules the next search of the current run, after the current delay.
+   */
+  private void schedule() {
+    final int generation = this.generation;
+    next = executor.schedule(new Runnable() {
+      public void run() {
+        sendSearch(generation);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+}
@@ -0,0 +1,30 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+
+
+/**
+ * Gets the mute state of a whole group of Sonos systems from the group's
+ * coordinator. Sonos specific, so not part of cling-support; modelled on its
+ * GetMute.
+ */
+public abstract class GetGroupMute extends ActionCallback {
+
+  public GetGroupMute(Service service) {
+    super(new ActionInvocation(service.getAction("GetGroupMute")));
+    getActionInvocation().setInput("InstanceID", new UnsignedIntegerFourBytes(0));
+  }
+
+
+  @Override
+  public void success(ActionInvocation invocation) {
+    boolean currentMute = (Boolean) invocation.getOutput("CurrentMute").getValue();
+    received(invocation, currentMute);
+  }
+
+
+  public abstract void received(ActionInvocation actionInvocation, boolean currentMute);
+}
@@ -0,0 +1,45 @@
+package uk.co.chriswiggins.muteforsonos;
+
+
+/**
+ * Escapes strings for the JSON built by hand in Metrics and the daemon,
+ * which is all flat enough not to need a library.
+ */
+public class Json {
+
+  private Json() {
+  }
+
+
+
+  /**
+   * Appends the given string to the builder quoted and escaped, or null if
+   * it is null.
+   */
+  public static void appendString(StringBuilder json, String value) {
+    if (value == null) {
+      json.append("null");
+      return;
+    }
+
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':  json.append("\\\""); break;
+        case '\\': json.append("\\\\"); break;
+        case '\n': json.append("\\n"); break;
+        case '\r': json.append("\\r"); break;
+        case '\t': json.append("\\t"); break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    json.append('"');
+  }
+
+}
@@ -0,0 +1,56 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.transport.impl.jetty.StreamClientConfigurationImpl;
+import org.fourthline.cling.transport.impl.jetty.StreamClientImpl;
+import org.fourthline.cling.transport.spi.InitializationException;
+
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Cling's Jetty stream client, tuned for making small, latency sensitive
+ * SOAP calls to a handful of Sonos systems. Connections to each system are
+ * pooled and kept alive between calls, so pressing the button again (or
+ * the unmute that follows) reuses a warm socket rather than connecting
+ * afresh, and connecting to a system that has gone away fails quickly.
+ *
+ * Mutes themselves no longer come through here: RenderingControlClient
+ * sends them directly. What does is the rest of Cling's traffic to the
+ * Sonos systems: event subscriptions and their renewals, device and
+ * service descriptors during discovery, and mute actions made through
+ * Cling when the direct client can't be used. StreamClientBenchmark
+ * measures what keeping connections alive saves.
+ */
+public class KeepAliveStreamClient extends StreamClientImpl {
+
+  // Cling's own deadline for a whole request. Sonos systems answer in tens
+  // of milliseconds, so anything near this means they've gone.
+  private static final int TIMEOUT_SECONDS = 5;
+
+  // Also used by the HTTP requests core makes itself, bypassing this.
+  static final int CONNECT_TIMEOUT = 2 * 1000;
+  static final int READ_TIMEOUT = TIMEOUT_SECONDS * 1000;
+
+  // Enough for an action and an event subscription renewal at once.
+  private static final int MAX_CONNECTIONS_PER_ADDRESS = 2;
+
+  // How long an unused connection is kept open for the next call.
+  private static final long IDLE_TIMEOUT = 60 * 1000L;
+
+
+
+  public KeepAliveStreamClient(ExecutorService executorService) throws InitializationException {
+    super(new StreamClientConfigurationImpl(executorService) {
+      @Override
+      public int getTimeoutSeconds() {
+        return TIMEOUT_SECONDS;
+      }
+    });
+
+    client.setConnectTimeout(CONNECT_TIMEOUT);
+    client.setTimeout(READ_TIMEOUT);
+    client.setMaxConnectionsPerAddress(MAX_CONNECTIONS_PER_ADDRESS);
+    client.setIdleTimeout(IDLE_TIMEOUT);
+  }
+
+}
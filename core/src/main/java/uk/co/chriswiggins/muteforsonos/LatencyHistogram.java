@@ -0,0 +1,181 @@
+package uk.co.chriswiggins.muteforsonos;
+
+
+/**
+ * Counts latencies in log-linear buckets, in the style of HdrHistogram.
+ * Latencies are in whatever unit they're recorded in, milliseconds unless
+ * another is given. Those under 16 are counted exactly, a bucket per unit.
+ * Above that, each doubling of latency (16-32, 32-64, ... up to about
+ * 65000) is split into 8 equal buckets, so a recorded latency is known to
+ * within 12.5% whatever its size, plus one bucket for anything longer.
+ * Cheap enough to record every call, and takes a fixed 1KB however many
+ * are recorded.
+ */
+public class LatencyHistogram {
+
+  // Buckets per doubling, as a power of 2.
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // Doublings above SUB_BUCKETS covered before the overflow bucket.
+  private static final int DOUBLINGS = 13;
+
+  private static final int BUCKETS = SUB_BUCKETS + DOUBLINGS * SUB_BUCKETS + 1;
+
+  private final String unit;
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long total;
+  private long max;
+
+
+
+  /**
+   * Creates a histogram of latencies in milliseconds.
+   */
+  public LatencyHistogram() {
+    this("ms");
+  }
+
+
+
+  /**
+   * @param unit What latencies are recorded in, e.g. "us", as shown after
+   *     them.
+   */
+  public LatencyHistogram(String unit) {
+    this.unit = unit;
+  }
+
+
+
+  public String getUnit() {
+    return unit;
+  }
+
+
+
+  public synchronized void record(long latency) {
+    latency = Math.max(0L, latency);
+    counts[bucket(latency)]++;
+    count++;
+    total += latency;
+    max = Math.max(max, latency);
+  }
+
+
+
+  /**
+   * Returns the bucket the given latency falls in.
+   */
+  static int bucket(long latency) {
+    if (latency < SUB_BUCKETS) {
+      return (int) latency;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(latency);
+    int doubling = exponent - SUB_BUCKET_BITS;
+    if (doubling >= DOUBLINGS) {
+      return BUCKETS - 1;
+    }
+
+    int subBucket = (int) (latency >> doubling) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + doubling * SUB_BUCKETS + subBucket;
+  }
+
+
+
+  /**
+   * Returns the lowest latency that would not fall in the given bucket, or
+   * Long.MAX_VALUE for the overflow bucket.
+   */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket + 1;
+    }
+    if (bucket == BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+
+    int doubling = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + subBucket + 1) << doubling;
+  }
+
+
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+
+
+  public synchronized long getMean() {
+    return count == 0 ? 0 : total / count;
+  }
+
+
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+
+
+  /**
+   * Returns the upper bound of the bucket the given percentile falls in, or
+   * the maximum if that is lower. Returns 0 if nothing has been recorded.
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += counts[bucket];
+      if (seen >= rank) {
+        return Math.min(upperBound(bucket), max);
+      }
+    }
+    return max;
+  }
+
+
+
+  /**
+   * Returns a copy of the counts in each bucket. See upperBound for where
+   * each ends.
+   */
+  public synchronized long[] getCounts() {
+    return counts.clone();
+  }
+
+
+
+  /**
+   * Writes a compact JSON object summarising the latencies, and their unit,
+   * to the builder.
+   */
+  public synchronized void appendJson(StringBuilder json) {
+    json.append("{\"n\":").append(count)
+        .append(",\"unit\":");
+    Json.appendString(json, unit);
+    json.append(",\"mean\":").append(getMean())
+        .append(",\"p50\":").append(getPercentile(50))
+        .append(",\"p90\":").append(getPercentile(90))
+        .append(",\"p99\":").append(getPercentile(99))
+        .append(",\"max\":").append(max)
+        .append('}');
+  }
+
+
+
+  @Override
+  public synchronized String toString() {
+    return count + " calls, mean " + getMean() + unit + ", p50 " + getPercentile(50) +
+            unit + ", p90 " + getPercentile(90) + unit + ", max " + max + unit;
+  }
+
+}
@@ -0,0 +1,309 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * How long things take and how often they fail, from UPnP actions on each
+ * Sonos system to discovery and unmuting, kept for as long as the
+ * MuteEngine runs so slow or flaky rooms stand out. Exported as a compact
+ * JSON snapshot.
+ */
+public class Metrics {
+
+  private final Clock clock;
+
+  // By device ID, then action name.
+  private final ConcurrentMap<String, ActionStats> actions = new ConcurrentHashMap<String, ActionStats>();
+
+  private final LatencyHistogram firstDevice = new LatencyHistogram();
+  private final LatencyHistogram alarmLateness = new LatencyHistogram();
+  private final LatencyHistogram tickJitter = new LatencyHistogram();
+
+  // In microseconds rather than milliseconds, as they're much shorter.
+  private final LatencyHistogram dispatches = new LatencyHistogram("us");
+  private final AtomicLong ssdpIgnored = new AtomicLong();
+  private final AtomicLong tasksDropped = new AtomicLong();
+  private final AtomicLong roams = new AtomicLong();
+  private final AtomicLong rediscoveriesAvoided = new AtomicLong();
+  private final AtomicLong widgetUpdatesAvoided = new AtomicLong();
+
+  // When the current discovery started, if it hasn't found anything yet.
+  // Guarded by this.
+  private boolean awaitingFirstDevice = false;
+  private long discoveryStarted;
+
+
+
+  public Metrics(Clock clock) {
+    this.clock = clock;
+  }
+
+
+
+  /**
+   * Returns the stats for the given action on the given device, creating
+   * them the first time. Callers hold on to what's returned, so recording a
+   * call doesn't involve a lookup.
+   */
+  public ActionStats action(String deviceId, String deviceName, String action) {
+    String key = deviceId + '/' + action;
+    ActionStats stats = actions.get(key);
+    if (stats == null) {
+      ActionStats created = new ActionStats(deviceName, action);
+      stats = actions.putIfAbsent(key, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+
+
+  /**
+   * Called when discovery starts on joining a network.
+   */
+  public synchronized void discoveryStarted() {
+    awaitingFirstDevice = true;
+    discoveryStarted = clock.elapsedRealtime();
+  }
+
+
+
+  /**
+   * Called when discovery finds a device. Only the first after it started
+   * counts.
+   */
+  public synchronized void deviceDiscovered() {
+    if (awaitingFirstDevice) {
+      awaitingFirstDevice = false;
+      firstDevice.record(clock.elapsedRealtime() - discoveryStarted);
+    }
+  }
+
+
+
+  /**
+   * Called on unmuting because the alarm went off, with how long after the
+   * unmute time it was.
+   */
+  public void unmuted(long lateness) {
+    alarmLateness.record(lateness);
+  }
+
+
+
+  /**
+   * Called when the countdown wakes to update the time left, with how far
+   * from the second boundary it woke.
+   */
+  public void ticked(long jitter) {
+    tickJitter.record(jitter);
+  }
+
+
+
+  /**
+   * Called when an SSDP message from a device that isn't a Sonos system is
+   * dropped (see SsdpFilter).
+   */
+  public void ssdpIgnored() {
+    ssdpIgnored.incrementAndGet();
+  }
+
+
+
+  public long getSsdpIgnored() {
+    return ssdpIgnored.get();
+  }
+
+
+
+  /**
+   * Called when background UPnP work (e.g. handling an SSDP message) is
+   * dropped because too much is queued.
+   */
+  public void taskDropped() {
+    tasksDropped.incrementAndGet();
+  }
+
+
+
+  public long getTasksDropped() {
+    return tasksDropped.get();
+  }
+
+
+
+  /**
+   * Called on moving to another access point on the same network.
+   */
+  public void roamed() {
+    roams.incrementAndGet();
+  }
+
+
+
+  /**
+   * Called when wi-fi events are ignored (see NetworkMonitor), with how
+   * many discovery runs and widget updates they would have caused.
+   */
+  public void networkEventAvoided(int rediscoveries, int widgetUpdates) {
+    rediscoveriesAvoided.addAndGet(rediscoveries);
+    widgetUpdatesAvoided.addAndGet(widgetUpdates);
+  }
+
+
+
+  public long getRediscoveriesAvoided() {
+    return rediscoveriesAvoided.get();
+  }
+
+
+
+  public long getWidgetUpdatesAvoided() {
+    return widgetUpdatesAvoided.get();
+  }
+
+
+
+  /**
+   * Called when a request to mute or unmute has been dispatched (the calls
+   * sent, not finished), with how long that took.
+   */
+  public void dispatched(long nanos) {
+    dispatches.record(nanos / 1000L);
+  }
+
+
+
+  /**
+   * Returns how long requests to mute took to dispatch, in microseconds.
+   */
+  public LatencyHistogram getDispatchTimes() {
+    return dispatches;
+  }
+
+
+
+  public LatencyHistogram getTimeToFirstDevice() {
+    return firstDevice;
+  }
+
+
+
+  public LatencyHistogram getAlarmLateness() {
+    return alarmLateness;
+  }
+
+
+
+  public LatencyHistogram getTickJitter() {
+    return tickJitter;
+  }
+
+
+
+  /**
+   * Returns everything recorded so far as compact JSON, actions sorted by
+   * device and action.
+   */
+  public String snapshot() {
+    StringBuilder json = new StringBuilder(256);
+    json.append("{\"actions\":[");
+
+    Map<String, ActionStats> sorted = new TreeMap<String, ActionStats>(actions);
+    boolean first = true;
+    for (Map.Entry<String, ActionStats> entry : sorted.entrySet()) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+
+      ActionStats stats = entry.getValue();
+      String id = entry.getKey().substring(0, entry.getKey().lastIndexOf('/'));
+      json.append("{\"id\":");
+      Json.appendString(json, id);
+      json.append(",\"name\":");
+      Json.appendString(json, stats.device);
+      json.append(",\"action\":");
+      Json.appendString(json, stats.action);
+      json.append(",\"ok\":").append(stats.getSuccesses())
+          .append(",\"failed\":").append(stats.getFailures())
+          .append(",\"latency\":");
+      stats.latencies.appendJson(json);
+      json.append('}');
+    }
+
+    json.append("],\"firstDevice\":");
+    firstDevice.appendJson(json);
+    json.append(",\"alarmLateness\":");
+    alarmLateness.appendJson(json);
+    json.append(",\"tickJitter\":");
+    tickJitter.appendJson(json);
+    json.append(",\"dispatch\":");
+    dispatches.appendJson(json);
+    json.append(",\"ssdpIgnored\":").append(ssdpIgnored.get());
+    json.append(",\"tasksDropped\":").append(tasksDropped.get());
+    json.append(",\"network\":{\"roams\":").append(roams.get())
+        .append(",\"rediscoveriesAvoided\":").append(rediscoveriesAvoided.get())
+        .append(",\"widgetUpdatesAvoided\":").append(widgetUpdatesAvoided.get())
+        .append('}');
+    json.append('}');
+
+    return json.toString();
+  }
+
+
+
+  /**
+   * Latencies and outcomes of one action on one Sonos system.
+   */
+  public static class ActionStats {
+
+    private final String device;
+    private final String action;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    // Guarded by this.
+    private long successes = 0;
+    private long failures = 0;
+
+    ActionStats(String device, String action) {
+      this.device = device;
+      this.action = action;
+    }
+
+    public void succeeded(long latency) {
+      latencies.record(latency);
+      synchronized (this) {
+        successes++;
+      }
+    }
+
+    public void failed(long latency) {
+      latencies.record(latency);
+      synchronized (this) {
+        failures++;
+      }
+    }
+
+    public synchronized long getSuccesses() {
+      return successes;
+    }
+
+    public synchronized long getFailures() {
+      return failures;
+    }
+
+    public LatencyHistogram getLatencies() {
+      return latencies;
+    }
+  }
+
+}
@@ -0,0 +1,441 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.meta.Device;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Mutes every Sonos system on the network for a while, then puts them back
+ * how they were. Each further request to mute adds more time, up to a
+ * limit. A burst of requests (someone tapping the widget ten times for five
+ * minutes) shows each extra bit of time as it comes, but sets the alarm
+ * at most twice: straight away, and once the taps stop.
+ *
+ * Knows nothing about the platform it runs on: time, the wake up alarm,
+ * telling the user and talking to the Sonos systems all go through
+ * interfaces. On Android SonosService provides them; elsewhere it could be
+ * a daemon on a home server.
+ */
+public class MuteEngine implements MuteFanOut.Listener, Countdown.Listener {
+
+  private static final Logger log = Logger.getLogger(MuteEngine.class.getName());
+
+  public static final long MUTE_LENGTH = 30 * 1000L;
+  public static final long MAX_MUTE_LENGTH = (9*60 + 59) * 1000L; // 9:59s
+  private static final long FAN_OUT_DEADLINE = 5 * 1000L;
+
+  // Taps within this long of the first are batched, and the alarm reset
+  // once for all of them.
+  private static final long ALARM_BATCH_WINDOW = 500L;
+
+  private ScheduledExecutorService executor;
+  private Clock clock;
+  private Alarm alarm;
+  private Notifier notifier;
+  private Metrics metrics;
+
+  // Discovered Sonos systems on each wi-fi network.
+  private SonosRegistry sonoses = new SonosRegistry();
+  private ZoneGroupTopology topology = new ZoneGroupTopology();
+  private SonosTracker tracker;
+
+  private MuteFanOut fanOut;
+  private Countdown countdown;
+
+  private Object muteLock = new Object();
+  private volatile boolean muted = false;
+  private List<Sonos> mutedSonoses = new ArrayList<Sonos>();
+  private volatile long unmuteTime;
+
+  // Resetting the alarm waiting for the current batch of taps to finish,
+  // how many taps are in it, and the time the alarm is set for. Guarded by
+  // muteLock.
+  private ScheduledFuture<?> pendingAlarm;
+  private int batchedTaps;
+  private long alarmTime;
+
+  private volatile boolean connected = false;
+  private volatile String ssid;
+
+
+
+  /**
+   * @param executor Used for the countdown, fan-out deadlines and retries.
+   *     Nothing blocks on it.
+   * @param failure Called when a Sonos system keeps failing to mute or
+   *     restore.
+   */
+  public MuteEngine(ScheduledExecutorService executor, Clock clock, Alarm alarm, Notifier notifier,
+                    Sonos.Failure failure) {
+    this.executor = executor;
+    this.clock = clock;
+    this.alarm = alarm;
+    this.notifier = notifier;
+
+    metrics = new Metrics(clock);
+    tracker = new SonosTracker(sonoses, topology, executor, clock, failure, metrics);
+    fanOut = new MuteFanOut(executor, FAN_OUT_DEADLINE);
+    countdown = new Countdown(executor, clock, this, metrics);
+  }
+
+
+
+  /**
+   * Sets the control point to talk to Sonos systems through. Null means
+   * there isn't one any more, so every Sonos system is forgotten.
+   */
+  public void setControlPoint(ControlPoint controlPoint) {
+    tracker.setControlPoint(controlPoint);
+    if (controlPoint == null) {
+      sonoses.clear();
+    }
+  }
+
+
+
+  /**
+   * Called on joining a network. Sonos systems are kept track of separately
+   * for each network, identified by name.
+   */
+  public void connected(String ssid) {
+    this.ssid = ssid;
+    connected = true;
+    sonoses.addNetwork(ssid);
+    notifier.stateChanged();
+  }
+
+
+
+  public void disconnected() {
+    connected = false;
+    notifier.stateChanged();
+  }
+
+
+
+  /**
+   * Called when a device has been found on the current network.
+   *
+   * @return The Sonos system added, or null if the device isn't one.
+   */
+  public Sonos deviceAdded(Device device) {
+    Sonos sonos = tracker.deviceAdded(ssid, device);
+    if (sonos != null) {
+      notifier.stateChanged();
+    }
+    return sonos;
+  }
+
+
+
+  /**
+   * Called when a device has gone from the current network.
+   */
+  public void deviceRemoved(Device device) {
+    tracker.deviceRemoved(ssid, device);
+    notifier.stateChanged();
+  }
+
+
+
+  /**
+   * Mutes everything, or if already muted, adds more time.
+   *
+   * @return Why it couldn't mute, or null if it did.
+   */
+  public Notifier.Problem muteTemporarily() {
+    return mute(-1);
+  }
+
+
+
+  /**
+   * Mutes everything for the given time (up to MAX_MUTE_LENGTH) from now. If
+   * already muted until later than that, stays muted until then.
+   *
+   * @return Why it couldn't mute, or null if it did.
+   */
+  public Notifier.Problem muteFor(long millis) {
+    return mute(Math.max(0L, Math.min(millis, MAX_MUTE_LENGTH)));
+  }
+
+
+
+  /**
+   * @param millis How long to mute for, or -1 to mute for MUTE_LENGTH or
+   *     add MUTE_LENGTH if already muted.
+   */
+  private Notifier.Problem mute(long millis) {
+    Notifier.Problem problem = null;
+
+    synchronized (muteLock) {
+
+      if (!connected) {
+        log.info("Not connected, inform user...");
+        problem = Notifier.Problem.NOT_CONNECTED;
+
+      } else if (getNumKnownSonosSystems() == 0) {
+        log.info("Connected, but no Sonoses found. Inform user...");
+        problem = Notifier.Problem.NO_SONOS_FOUND;
+
+      } else {
+        long now = clock.elapsedRealtime();
+
+        if (!muted) {
+          log.info("Not currently muted. Muting...");
+
+          // Mute all Sonos systems at once, using one call per group
+          // where we know the topology.
+
+          mutedSonoses = topology.selectMuteTargets(getSonoses());
+          fanOut.mute(mutedSonoses, this);
+
+          muted = true;
+
+          // Count down to unmute, updating the UI with time left.
+
+          unmuteTime = now + (millis < 0 ? MUTE_LENGTH : millis);
+          countdown.start(unmuteTime);
+
+        } else {
+          log.info("Already muted. Adding more mute.");
+
+          unmuteTime = millis < 0 ? extend(unmuteTime, now) : Math.max(unmuteTime, now + millis);
+          countdown.setUnmuteTime(unmuteTime);
+        }
+
+        // Set an alarm to unmute, so we are always woken up to unmute, even
+        // if the device is asleep. The countdown shows the new time straight
+        // away, but the alarm is only moved once the taps stop coming.
+        setAlarm();
+
+        log.info("Time = " + now + ". Unmute time = " + unmuteTime + ". Diff = " + (now - unmuteTime) / 1000.0f + "s");
+      }
+    }
+
+    if (problem != null) {
+      notifier.cannotMute(problem);
+    }
+    notifier.stateChanged();
+
+    return problem;
+  }
+
+
+
+  /**
+   * Sets the alarm for the unmute time on the first tap of a batch, so
+   * there's always an alarm even if the device goes to sleep straight
+   * after. Later taps in the batch only move it once the batch is over, so
+   * ten quick taps set it twice rather than ten times. Must hold muteLock.
+   */
+  private void setAlarm() {
+    if (pendingAlarm == null) {
+      alarm.set(unmuteTime);
+      alarmTime = unmuteTime;
+      batchedTaps = 1;
+      pendingAlarm = executor.schedule(new ResetAlarm(), ALARM_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+    } else {
+      batchedTaps++;
+    }
+  }
+
+
+
+  /**
+   * Moves the alarm to the unmute time at the end of a batch of taps, if
+   * later taps changed it.
+   */
+  private class ResetAlarm implements Runnable {
+    public void run() {
+      synchronized (muteLock) {
+        if (pendingAlarm == null) {
+          // Cancelled by an unmute while waiting for the lock.
+          return;
+        }
+        pendingAlarm = null;
+
+        if (muted && unmuteTime != alarmTime) {
+          log.fine("Resetting alarm once for " + batchedTaps + " taps");
+          alarm.set(unmuteTime);
+          alarmTime = unmuteTime;
+        }
+        batchedTaps = 0;
+      }
+    }
+  }
+
+
+
+  /**
+   * Returns the unmute time after adding more mute to the given one.
+   */
+  static long extend(long unmuteTime, long now) {
+    return Math.min(unmuteTime + MUTE_LENGTH, now + MAX_MUTE_LENGTH);
+  }
+
+
+
+  /**
+   * Called when the alarm set up to unmute goes off.
+   */
+  public void alarmFired() {
+    countdown.alarmFired();
+    unmute(true);
+  }
+
+
+
+  /**
+   * Unmute. Called via the countdown deadline, to deal with the weird
+   * inaccuracy of AlarmManager, and to unmute early by hand.
+   */
+  public void unmute() {
+    unmute(false);
+  }
+
+
+
+  /**
+   * @param fromAlarm Whether the alarm went off, so how late it was should be
+   *     recorded. The deadline and early unmutes say nothing about that.
+   */
+  private void unmute(boolean fromAlarm) {
+    synchronized (muteLock) {
+
+      long lateness = clock.elapsedRealtime() - unmuteTime;
+      log.info("Time = " + clock.elapsedRealtime() + ". Unmute time = " + unmuteTime + ". Diff = " + lateness / 1000.0f + "s");
+
+      if (muted) {
+        if (fromAlarm && lateness >= 0) {
+          metrics.unmuted(lateness);
+        }
+
+        log.info("Restoring state of all Sonos systems");
+        fanOut.restoreMute(mutedSonoses, this);
+        mutedSonoses = new ArrayList<Sonos>();
+
+        muted = false;
+
+        countdown.stop();
+        notifier.stateChanged();
+
+      } else {
+        // This could happen because this method is called both by the
+        // countdown deadline and the alarm.
+        log.info("Already unmuted, will not unmute.");
+      }
+
+      // There's a race condition where the user presses the button again as
+      // the alarm goes off. The other thread grabs the lock and we block.
+      // It resets the alarm (that's already started to run) for a bit
+      // further in the future. We'll then run regardless, so we'd better
+      // cancel that future extra run, if it exists, and any still waiting
+      // to be reset.
+
+      if (pendingAlarm != null) {
+        pendingAlarm.cancel(false);
+        pendingAlarm = null;
+        batchedTaps = 0;
+      }
+      alarm.cancel();
+    }
+  }
+
+
+
+  /**
+   * Whether the countdown can be seen, so whether it needs to tick.
+   */
+  public void setVisible(boolean visible) {
+    countdown.setVisible(visible);
+  }
+
+
+
+  public boolean isConnected() {
+    return connected;
+  }
+
+
+
+  public String getSsid() {
+    return ssid;
+  }
+
+
+
+  public boolean isMuted() {
+    return muted;
+  }
+
+
+
+  public long getUnmuteTime() {
+    return unmuteTime;
+  }
+
+
+
+  public int getSecondsUntilUnmute() {
+    return Countdown.secondsLeft(unmuteTime, clock.elapsedRealtime());
+  }
+
+
+
+  /**
+   * Returns the latencies and failures of calls to Sonos systems, how long
+   * discovery takes and how late unmutes are.
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+
+
+  public int getNumKnownSonosSystems() {
+    return sonoses.count(ssid);
+  }
+
+
+
+  /**
+   * Returns a snapshot of the Sonos systems known on the current network.
+   */
+  public Collection<Sonos> getSonoses() {
+    return sonoses.get(ssid);
+  }
+
+
+
+  public void fanOutCompleted(boolean mute, List<MuteFanOut.Result> results, long elapsedMillis) {
+    log.info((mute ? "Mute" : "Restore") + " of " + results.size() + " Sonos systems finished in " + elapsedMillis + "ms");
+    for (MuteFanOut.Result result : results) {
+      log.info("  " + result.getSonos().getName() + ": " + result.getOutcome() + " after " + result.getLatencyMillis() + "ms");
+      log.fine("  " + result.getSonos().getName() + " health: " + result.getSonos().getHealth().getStats());
+    }
+    notifier.fanOutCompleted(mute, results, elapsedMillis);
+  }
+
+
+
+  public void tick() {
+    notifier.stateChanged();
+  }
+
+
+
+  public void deadline() {
+    log.info("Forcing an unmute in case the alarm is late (AlarmManager often is, for some reason)");
+    unmute();
+  }
+
+}
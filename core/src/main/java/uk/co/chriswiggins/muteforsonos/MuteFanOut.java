@@ -0,0 +1,201 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+/**
+ * Mutes (or restores) many Sonos systems at once. All the calls are sent
+ * straight away rather than one after the other, so the whole house goes
+ * quiet in about one round trip. A single barrier counts the systems down
+ * as they finish, and a listener is told how each one got on either when
+ * they have all finished or when the deadline passes, whichever is first.
+ */
+public class MuteFanOut {
+
+  private static final Logger log = Logger.getLogger(MuteFanOut.class.getName());
+
+  private ScheduledExecutorService executor;
+  private long deadlineMillis;
+
+
+
+  /**
+   * @param executor Used to enforce the deadline. Nothing blocks on it.
+   * @param deadlineMillis How long to wait for all systems to finish before
+   *     reporting the ones still outstanding as timed out.
+   */
+  public MuteFanOut(ScheduledExecutorService executor, long deadlineMillis) {
+    this.executor = executor;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+
+
+  public void mute(Collection<Sonos> sonoses, Listener listener) {
+    fanOut(sonoses, true, listener);
+  }
+
+
+
+  public void restoreMute(Collection<Sonos> sonoses, Listener listener) {
+    fanOut(sonoses, false, listener);
+  }
+
+
+
+  private void fanOut(Collection<Sonos> sonoses, boolean mute, Listener listener) {
+    Barrier barrier = new Barrier(sonoses, mute, listener);
+
+    log.fine((mute ? "Muting " : "Restoring ") + sonoses.size() + " Sonos systems");
+
+    if (sonoses.isEmpty()) {
+      barrier.report();
+      return;
+    }
+
+    barrier.deadline = executor.schedule(barrier, deadlineMillis, TimeUnit.MILLISECONDS);
+
+    for (Sonos sonos : sonoses) {
+      if (mute) {
+        sonos.mute(barrier);
+      } else {
+        sonos.restoreMute(barrier);
+      }
+    }
+  }
+
+
+
+  /**
+   * Tracks one fan out. Counted down by each Sonos system as it completes,
+   * and run by the executor if the deadline passes first.
+   */
+  private static class Barrier implements Sonos.Completion, Runnable {
+
+    private final List<Sonos> sonoses;
+    private final boolean mute;
+    private final Listener listener;
+    private final long startTime = System.nanoTime();
+    private final AtomicInteger remaining;
+    private final AtomicBoolean reported = new AtomicBoolean(false);
+    private final Map<Sonos, Result> results = new ConcurrentHashMap<Sonos, Result>();
+    private volatile ScheduledFuture<?> deadline;
+
+    Barrier(Collection<Sonos> sonoses, boolean mute, Listener listener) {
+      this.sonoses = new ArrayList<Sonos>(sonoses);
+      this.mute = mute;
+      this.listener = listener;
+      this.remaining = new AtomicInteger(this.sonoses.size());
+    }
+
+    @Override
+    public void completed(Sonos sonos, boolean success) {
+      record(sonos, success ? Outcome.SUCCEEDED : Outcome.FAILED);
+    }
+
+    @Override
+    public void superseded(Sonos sonos) {
+      record(sonos, Outcome.SUPERSEDED);
+    }
+
+    private void record(Sonos sonos, Outcome outcome) {
+      if (results.put(sonos, new Result(sonos, outcome, elapsedMillis())) == null) {
+        if (remaining.decrementAndGet() == 0) {
+          report();
+        }
+      }
+    }
+
+    /**
+     * The deadline has passed.
+     */
+    @Override
+    public void run() {
+      report();
+    }
+
+    void report() {
+      if (!reported.compareAndSet(false, true)) {
+        return;
+      }
+
+      if (deadline != null) {
+        deadline.cancel(false);
+      }
+
+      List<Result> report = new ArrayList<Result>(sonoses.size());
+      for (Sonos sonos : sonoses) {
+        Result result = results.get(sonos);
+        report.add(result != null ? result : new Result(sonos, Outcome.TIMED_OUT, elapsedMillis()));
+      }
+
+      listener.fanOutCompleted(mute, Collections.unmodifiableList(report), elapsedMillis());
+    }
+
+    private long elapsedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+  }
+
+
+
+  /**
+   * How a Sonos system got on. SUPERSEDED means a later mute or restore
+   * took over before this one finished, so it may never have been sent.
+   */
+  public static enum Outcome {
+    SUCCEEDED, FAILED, TIMED_OUT, SUPERSEDED
+  }
+
+
+
+  /**
+   * How a single Sonos system got on during a fan out.
+   */
+  public static class Result {
+
+    private final Sonos sonos;
+    private final Outcome outcome;
+    private final long latencyMillis;
+
+    Result(Sonos sonos, Outcome outcome, long latencyMillis) {
+      this.sonos = sonos;
+      this.outcome = outcome;
+      this.latencyMillis = latencyMillis;
+    }
+
+    public Sonos getSonos() {
+      return sonos;
+    }
+
+    public Outcome getOutcome() {
+      return outcome;
+    }
+
+    public long getLatencyMillis() {
+      return latencyMillis;
+    }
+  }
+
+
+
+  /**
+   * Interface used to define a method to call once a fan out has finished,
+   * either because every Sonos system has completed or the deadline passed.
+   */
+  public static interface Listener {
+    public void fanOutCompleted(boolean mute, List<Result> results, long elapsedMillis);
+  }
+
+}
@@ -0,0 +1,218 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Turns the stream of wi-fi connectivity events the platform sends into
+ * real changes of network. Android sends several CONNECTED broadcasts per
+ * association, another on roaming between access points, and disconnects
+ * briefly on the way; reacting to each one (rediscovering, redrawing the
+ * widget) is wasted work, since the Sonos systems found are still there.
+ *
+ * Networks are identified by SSID, access points by BSSID:
+ *
+ * - Connected to the same SSID and BSSID again: a duplicate, ignored.
+ * - Connected to the same SSID via another BSSID: roaming. The listener is
+ *   told, but the Sonos systems are still valid.
+ * - Disconnected: only passed on if not connected again within
+ *   DEBOUNCE. Reconnecting to the same SSID within that time is a blip,
+ *   treated as roaming.
+ * - Connected to a different SSID: a real change, passed on.
+ *
+ * Counts the discovery runs and widget updates this saves in Metrics.
+ *
+ * The listener is never called with this monitor's lock held, so it can
+ * take whatever locks it likes, but it is told about changes one at a time
+ * and in the order they happened.
+ */
+public class NetworkMonitor {
+
+  private static final Logger log = Logger.getLogger(NetworkMonitor.class.getName());
+
+  // Long enough to cover a disconnect while roaming, short enough that
+  // nobody tries to mute an unreachable network for long.
+  static final long DEBOUNCE = 3 * 1000L;
+
+  private enum State { DISCONNECTED, CONNECTED, LEAVING }
+
+  private ScheduledExecutorService executor;
+  private Listener listener;
+  private Metrics metrics;
+
+  // Guarded by this.
+  private State state = State.DISCONNECTED;
+  private String ssid;
+  private String bssid;
+  private ScheduledFuture<?> pendingLeave;
+  private int disconnects = 0;
+  // Changes decided on but not yet passed to the listener.
+  private final Queue<Runnable> changes = new ArrayDeque<Runnable>();
+
+  // Held while passing changes to the listener. Never taken with this held.
+  private final Object listenerLock = new Object();
+
+
+
+  public NetworkMonitor(ScheduledExecutorService executor, Listener listener, Metrics metrics) {
+    this.executor = executor;
+    this.listener = listener;
+    this.metrics = metrics;
+  }
+
+
+
+  /**
+   * Called on every report of wi-fi being connected.
+   *
+   * @param bssid The access point, or null if not known.
+   */
+  public void connected(String ssid, String bssid) {
+    decideConnected(ssid, bssid);
+    tellListener();
+  }
+
+
+
+  private synchronized void decideConnected(final String ssid, String bssid) {
+    boolean sameNetwork = state != State.DISCONNECTED && ssid != null && ssid.equals(this.ssid);
+    boolean blip = state == State.LEAVING;
+
+    if (blip) {
+      pendingLeave.cancel(false);
+      pendingLeave = null;
+    }
+
+    String previousBssid = this.bssid;
+    this.state = State.CONNECTED;
+    this.ssid = ssid;
+    this.bssid = bssid;
+
+    if (!sameNetwork) {
+      log.info("Joined " + ssid + " via " + bssid);
+      if (blip) {
+        // Joining covers the disconnect that wasn't passed on.
+        metrics.networkEventAvoided(0, 1);
+      }
+      changes.add(new Runnable() {
+        public void run() {
+          listener.joined(ssid);
+        }
+      });
+      return;
+    }
+
+    if (bssid != null && !bssid.equals(previousBssid)) {
+      log.info("Roamed on " + ssid + " from " + previousBssid + " to " + bssid);
+      metrics.roamed();
+      changes.add(new Runnable() {
+        public void run() {
+          listener.roamed(ssid);
+        }
+      });
+    } else {
+      log.fine("Still connected to " + ssid + " via " + bssid);
+    }
+
+    // A rediscovery and a widget update for this, plus a widget update for
+    // the disconnect if there was one.
+    metrics.networkEventAvoided(1, blip ? 2 : 1);
+  }
+
+
+
+  /**
+   * Called on every report of wi-fi not being connected.
+   */
+  public synchronized void disconnected() {
+    if (state != State.CONNECTED) {
+      metrics.networkEventAvoided(0, 1);
+      return;
+    }
+
+    state = State.LEAVING;
+    final int disconnect = ++disconnects;
+    pendingLeave = executor.schedule(new Runnable() {
+      public void run() {
+        leave(disconnect);
+        tellListener();
+      }
+    }, DEBOUNCE, TimeUnit.MILLISECONDS);
+  }
+
+
+
+  /**
+   * Called when nothing has reconnected within DEBOUNCE of disconnecting.
+   */
+  private synchronized void leave(int disconnect) {
+    if (state != State.LEAVING || disconnect != disconnects) {
+      // Reconnected (and maybe disconnected again) while waiting for the
+      // lock.
+      return;
+    }
+
+    log.info("Left " + ssid);
+    state = State.DISCONNECTED;
+    pendingLeave = null;
+    ssid = null;
+    bssid = null;
+    changes.add(new Runnable() {
+      public void run() {
+        listener.left();
+      }
+    });
+  }
+
+
+
+  /**
+   * Passes on the changes decided on so far. Called after deciding, once
+   * this monitor's lock has been released. Whichever thread gets here
+   * first passes on the changes the others decided on meanwhile.
+   */
+  private void tellListener() {
+    synchronized (listenerLock) {
+      while (true) {
+        Runnable change;
+        synchronized (this) {
+          change = changes.poll();
+        }
+        if (change == null) {
+          return;
+        }
+        change.run();
+      }
+    }
+  }
+
+
+
+  /**
+   * Told about real changes of network.
+   */
+  public static interface Listener {
+    /**
+     * Called on joining a network (not on rejoining the same one).
+     * Rediscovery is needed.
+     */
+    public void joined(String ssid);
+
+    /**
+     * Called on moving to another access point on the same network. The
+     * Sonos systems found are still valid.
+     */
+    public void roamed(String ssid);
+
+    /**
+     * Called once disconnected for more than DEBOUNCE.
+     */
+    public void left();
+  }
+
+}
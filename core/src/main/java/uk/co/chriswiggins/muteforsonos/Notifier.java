@@ -0,0 +1,35 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.util.List;
+
+
+/**
+ * How the engine tells whoever is showing its state (a widget, a web page)
+ * what is going on.
+ */
+public interface Notifier {
+
+  static enum Problem {
+    NOT_CONNECTED,
+    NO_SONOS_FOUND
+  }
+
+  /**
+   * Something shown to the user may have changed: muted or not, time left,
+   * number of Sonos systems, connected or not. Can be called often, from
+   * any thread.
+   */
+  public void stateChanged();
+
+  /**
+   * Asked to mute, but couldn't.
+   */
+  public void cannotMute(Problem problem);
+
+  /**
+   * A mute or restore has finished on every Sonos system, or the deadline
+   * for doing so has passed.
+   */
+  public void fanOutCompleted(boolean mute, List<MuteFanOut.Result> results, long elapsedMillis);
+
+}
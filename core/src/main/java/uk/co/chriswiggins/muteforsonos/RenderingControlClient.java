@@ -0,0 +1,267 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.meta.RemoteService;
+import org.fourthline.cling.model.meta.Service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Gets and sets the mute state of a Sonos system (RenderingControl) or of
+ * the group it coordinates (GroupRenderingControl), talking SOAP directly
+ * rather than through Cling's actions. Every call a mute makes goes through
+ * here, so it skips what makes Cling's actions general: no ActionInvocation,
+ * no argument conversion, no DOM. Requests are encoded once up front, and
+ * the single value wanted is picked out of each response as it's read.
+ *
+ * Cling still finds the Sonos systems and their services, and calls run on
+ * Cling's protocol executor as its actions do.
+ *
+ * Calls go through HttpURLConnection, not Cling's stream client, so
+ * connections are kept alive by the JVM's own pool rather than
+ * KeepAliveStreamClient's: up to http.maxConnections (5 by default) idle
+ * connections per Sonos system. Nothing must set http.keepAlive to false,
+ * as Cling's default (non-Jetty) stream client does; configurations should
+ * use KeepAliveStreamClient. SoapRoundTripBenchmark compares whole calls.
+ */
+public class RenderingControlClient {
+
+  private static final Logger log = Logger.getLogger(RenderingControlClient.class.getName());
+
+  private static final String CONTENT_TYPE = "text/xml; charset=\"utf-8\"";
+
+  private static final byte[] FALSE = { '0' };
+  private static final byte[] TRUE = { '1' };
+
+  private final URL controlUrl;
+  private final ExecutorService executor;
+  private final String name;
+
+  private final SoapEnvelope getMute;
+  private final SoapEnvelope setMute;
+  private final byte[] getMuteBody;
+  private final byte[] muteBody;
+  private final byte[] unmuteBody;
+
+
+
+  /**
+   * Returns a client for the given RenderingControl or
+   * GroupRenderingControl service, or null if calls can't be made directly
+   * (the control point has no configuration to take an executor from, or
+   * the service isn't on the network).
+   */
+  public static RenderingControlClient create(ControlPoint controlPoint, Service service) {
+    UpnpServiceConfiguration configuration = controlPoint.getConfiguration();
+    if (configuration == null || !(service instanceof RemoteService)) {
+      return null;
+    }
+
+    RemoteService remote = (RemoteService) service;
+    URL controlUrl = remote.getDevice().normalizeURI(remote.getControlURI());
+    boolean group = "GroupRenderingControl".equals(service.getServiceType().getType());
+
+    return new RenderingControlClient(controlUrl, service.getServiceType().toString(), group,
+            configuration.getSyncProtocolExecutorService());
+  }
+
+
+
+  RenderingControlClient(URL controlUrl, String serviceType, boolean group, ExecutorService executor) {
+    this.controlUrl = controlUrl;
+    this.executor = executor;
+    this.name = group ? "GroupMute" : "Mute";
+
+    String arguments = group
+            ? "<InstanceID>0</InstanceID>"
+            : "<InstanceID>0</InstanceID><Channel>Master</Channel>";
+    getMute = new SoapEnvelope(serviceType, "Get" + name, arguments, null);
+    setMute = new SoapEnvelope(serviceType, "Set" + name, arguments, "DesiredMute");
+
+    // There are only two of these, so they're built once for all calls.
+    getMuteBody = getMute.body();
+    muteBody = setMute.body(TRUE);
+    unmuteBody = setMute.body(FALSE);
+  }
+
+
+
+  /**
+   * Asks for the current mute state. Returns straight away; the callback is
+   * told the state, or why it couldn't be got. Returns null if the call
+   * couldn't even be queued, the callback having been told.
+   */
+  public Future<?> getMute(final Callback callback) {
+    return submit(new Call() {
+      public void run() {
+        String value;
+        try {
+          value = post(getMute, getMuteBody, "CurrentMute");
+        } catch (IOException e) {
+          callback.failure(e.toString());
+          return;
+        } catch (RuntimeException e) {
+          log.log(Level.WARNING, "GetMute to " + controlUrl + " failed", e);
+          callback.failure(e.toString());
+          return;
+        }
+
+        if (value == null) {
+          callback.failure("No CurrentMute in response");
+        } else {
+          callback.success(SoapResponseReader.parseBoolean(value));
+        }
+      }
+    }, callback);
+  }
+
+
+
+  /**
+   * Sets the mute state. Returns straight away; the callback is told the
+   * state set, or why it couldn't be. Returns null if the call couldn't even
+   * be queued, the callback having been told.
+   */
+  public Future<?> setMute(final boolean mute, final Callback callback) {
+    return submit(new Call() {
+      public void run() {
+        try {
+          post(setMute, mute ? muteBody : unmuteBody, null);
+        } catch (IOException e) {
+          callback.failure(e.toString());
+          return;
+        } catch (RuntimeException e) {
+          log.log(Level.WARNING, "SetMute to " + controlUrl + " failed", e);
+          callback.failure(e.toString());
+          return;
+        }
+        callback.success(mute);
+      }
+    }, callback);
+  }
+
+
+
+  /**
+   * Queues a call, failing it if the executor won't take it, so the caller
+   * always hears back.
+   */
+  private Future<?> submit(Call call, Callback callback) {
+    try {
+      return executor.submit(call);
+    } catch (RejectedExecutionException e) {
+      log.warning("Could not queue call to " + controlUrl + ": " + e);
+      callback.failure(e.toString());
+      return null;
+    }
+  }
+
+
+
+  /**
+   * Sends a request and reads the value of the given output argument from
+   * the response (if not null).
+   *
+   * @throws IOException If the request fails, including with a UPnP error.
+   */
+  String post(SoapEnvelope envelope, byte[] body, String output) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) controlUrl.openConnection();
+    try {
+      connection.setConnectTimeout(KeepAliveStreamClient.CONNECT_TIMEOUT);
+      connection.setReadTimeout(KeepAliveStreamClient.READ_TIMEOUT);
+      connection.setDoOutput(true);
+      connection.setUseCaches(false);
+      connection.setFixedLengthStreamingMode(body.length);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+      connection.setRequestProperty("SOAPACTION", envelope.getSoapAction());
+
+      OutputStream out = connection.getOutputStream();
+      out.write(body);
+      out.close();
+
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException(error(connection, status));
+      }
+
+      InputStream in = new BufferedInputStream(connection.getInputStream(), 512);
+      try {
+        String value = output == null ? null : SoapResponseReader.read(in, output);
+        // Drain what's left, so the connection can be reused.
+        while (in.read() != -1) {
+        }
+        return value;
+      } finally {
+        in.close();
+      }
+
+    } catch (IOException e) {
+      log.fine("Direct " + envelope.getSoapAction() + " to " + controlUrl + " failed: " + e);
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+
+
+  /**
+   * Returns a description of a failed request, including the UPnP error in
+   * the SOAP fault if there is one.
+   */
+  private static String error(HttpURLConnection connection, int status) {
+    String description = "HTTP " + status;
+    InputStream in = connection.getErrorStream();
+    if (in == null) {
+      return description;
+    }
+
+    try {
+      in = new BufferedInputStream(in, 512);
+      String code = SoapResponseReader.read(in, "errorCode");
+      if (code != null) {
+        description += ", UPnP error " + code;
+        String message = SoapResponseReader.read(in, "errorDescription");
+        if (message != null) {
+          description += " (" + message + ")";
+        }
+      }
+      in.close();
+    } catch (IOException e) {
+      // Just the status will do.
+    }
+    return description;
+  }
+
+
+
+  /**
+   * A call being made. Marked so executors can tell it apart from other
+   * work, as they do Cling's ActionCallbacks.
+   */
+  public abstract static class Call implements Runnable {
+  }
+
+
+
+  /**
+   * Told how a call went. Called on the executor's thread.
+   */
+  public static interface Callback {
+    public void success(boolean mute);
+    public void failure(String defaultMsg);
+  }
+
+}
@@ -0,0 +1,22 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+
+
+/**
+ * Sets the mute state of a whole group of Sonos systems (including bonded
+ * surrounds, subs and stereo pairs) with a single call to the group's
+ * coordinator. Sonos specific, so not part of cling-support; modelled on its
+ * SetMute.
+ */
+public abstract class SetGroupMute extends ActionCallback {
+
+  public SetGroupMute(Service service, boolean desiredMute) {
+    super(new ActionInvocation(service.getAction("SetGroupMute")));
+    getActionInvocation().setInput("InstanceID", new UnsignedIntegerFourBytes(0));
+    getActionInvocation().setInput("DesiredMute", desiredMute);
+  }
+}
@@ -0,0 +1,86 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.io.UnsupportedEncodingException;
+
+
+/**
+ * A SOAP request for one UPnP action, encoded once up front. Arguments that
+ * never change (InstanceID, Channel) are part of the template; the one that
+ * does is left as a gap, and the bytes of its value are copied into it for
+ * each request. Nothing is marshalled per call.
+ */
+class SoapEnvelope {
+
+  private final String soapAction;
+  private final byte[] head;
+  private final byte[] tail;
+
+
+
+  /**
+   * @param fixedArguments The arguments that never change, as XML.
+   * @param argument The name of the argument whose value is filled in per
+   *     request, or null if there isn't one.
+   */
+  SoapEnvelope(String serviceType, String action, String fixedArguments, String argument) {
+    this.soapAction = "\"" + serviceType + "#" + action + "\"";
+
+    String head = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+            "s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">" +
+            "<s:Body><u:" + action + " xmlns:u=\"" + serviceType + "\">" +
+            fixedArguments;
+    String tail = "</u:" + action + "></s:Body></s:Envelope>";
+
+    if (argument != null) {
+      head += "<" + argument + ">";
+      tail = "</" + argument + ">" + tail;
+    }
+
+    this.head = utf8(head);
+    this.tail = utf8(tail);
+  }
+
+
+
+  /**
+   * Returns the value of the SOAPACTION header to send with the request.
+   */
+  String getSoapAction() {
+    return soapAction;
+  }
+
+
+
+  /**
+   * Returns the request body with no argument value filled in.
+   */
+  byte[] body() {
+    return body(new byte[0]);
+  }
+
+
+
+  /**
+   * Returns the request body with the given (already escaped) argument
+   * value filled in.
+   */
+  byte[] body(byte[] value) {
+    byte[] body = new byte[head.length + value.length + tail.length];
+    System.arraycopy(head, 0, body, 0, head.length);
+    System.arraycopy(value, 0, body, head.length, value.length);
+    System.arraycopy(tail, 0, body, head.length + value.length, tail.length);
+    return body;
+  }
+
+
+
+  static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+}
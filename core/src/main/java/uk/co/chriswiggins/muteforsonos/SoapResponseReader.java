@@ -0,0 +1,63 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Picks single values out of SOAP responses as they are read, without
+ * building a document. The responses to the actions RenderingControlClient
+ * makes are tiny and fixed in shape, with unqualified output arguments
+ * holding plain values, so looking for the element's start tag and taking
+ * the text up to the next tag is enough.
+ */
+class SoapResponseReader {
+
+  // Longer values aren't expected, so are cut off.
+  private static final int MAX_VALUE_LENGTH = 256;
+
+
+
+  /**
+   * Reads the stream up to and including the text of the first element
+   * with the given name, and returns that text (unescaped, as only numbers,
+   * booleans and short descriptions are expected). Returns null if there is
+   * no such element.
+   */
+  static String read(InputStream in, String element) throws IOException {
+    byte[] tag = SoapEnvelope.utf8("<" + element + ">");
+
+    int matched = 0;
+    int b;
+    while (matched < tag.length) {
+      b = in.read();
+      if (b == -1) {
+        return null;
+      }
+      if (b == tag[matched]) {
+        matched++;
+      } else {
+        // '<' only starts the tag, so a mismatch can only restart there.
+        matched = b == '<' ? 1 : 0;
+      }
+    }
+
+    StringBuilder value = new StringBuilder(8);
+    while ((b = in.read()) != -1 && b != '<') {
+      if (value.length() < MAX_VALUE_LENGTH) {
+        value.append((char) b);
+      }
+    }
+    return value.toString().trim();
+  }
+
+
+
+  /**
+   * Returns whether a value is a true UPnP boolean.
+   */
+  static boolean parseBoolean(String value) {
+    return "1".equals(value) || "true".equalsIgnoreCase(value) || "yes".equalsIgnoreCase(value);
+  }
+
+}
@@ -0,0 +1,878 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.controlpoint.SubscriptionCallback;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.gena.CancelReason;
+import org.fourthline.cling.model.gena.GENASubscription;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.state.StateVariableValue;
+import org.fourthline.cling.model.types.UDAServiceId;
+import org.fourthline.cling.support.lastchange.LastChange;
+import org.fourthline.cling.support.model.Channel;
+import org.fourthline.cling.support.renderingcontrol.callback.GetMute;
+import org.fourthline.cling.support.renderingcontrol.callback.SetMute;
+import org.fourthline.cling.support.renderingcontrol.lastchange.ChannelMute;
+import org.fourthline.cling.support.renderingcontrol.lastchange.ChannelVolume;
+import org.fourthline.cling.support.renderingcontrol.lastchange.RenderingControlLastChangeParser;
+import org.fourthline.cling.support.renderingcontrol.lastchange.RenderingControlVariable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+
+/**
+ * Represents an interface with a specific Sonos system on the network.
+ * If you have multiple Sonos systems in your house, you will have multiple
+ * instances of this class.
+ */
+public class Sonos {
+
+  private static final Logger log = Logger.getLogger(Sonos.class.getName());
+
+  // How long to ask for RenderingControl events for. Cling renews the
+  // subscription before it runs out.
+  private static final int SUBSCRIPTION_SECONDS = 30 * 60;
+
+  // Cached mute state older than this is not trusted, in case events have
+  // silently stopped arriving.
+  static final long MUTE_STATE_MAX_AGE = SUBSCRIPTION_SECONDS * 1000L;
+
+  private String name;
+  private ControlPoint controlPoint;
+  private Clock clock;
+  private RemoteDevice sonosDevice;
+  private Service service;
+  private Service groupService;
+
+  // Make the calls a mute makes directly, or null to use Cling's actions.
+  private RenderingControlClient client;
+  private RenderingControlClient groupClient;
+  private ScheduledExecutorService executor;
+  private Failure failure;
+  private DeviceHealth health;
+
+  // Latencies and outcomes of each action, kept by Metrics across
+  // instances for the same system.
+  private Metrics.ActionStats getMuteStats;
+  private Metrics.ActionStats setMuteStats;
+  private Metrics.ActionStats getGroupMuteStats;
+  private Metrics.ActionStats setGroupMuteStats;
+
+  // Whether the next mute should be of the whole group this Sonos system
+  // coordinates, and whether the last one was.
+  private volatile boolean muteAsGroup = false;
+  private boolean mutedAsGroup = false;
+  private boolean previousMute = false;
+
+  // Mutes and restores are done one at a time, in the order asked for. The
+  // one being done, and the one to do next (only the latest is kept, any
+  // before it having been superseded). Guarded by pipelineLock.
+  private final Object pipelineLock = new Object();
+  private long sequence = 0;
+  private Operation current;
+  private Operation next;
+  // Whether a mute has got as far as setting mute since the last restore,
+  // so there's a previous state to restore (even if setting it failed, as
+  // the request may have got through). And whether setting it succeeded,
+  // so a later mute has nothing to do.
+  private boolean muteSent = false;
+  private boolean muteApplied = false;
+
+  // Mute and volume state as last evented by the Sonos system.
+  private SubscriptionCallback subscription;
+  private SubscriptionCallback groupSubscription;
+  private final EventedMute eventedMute = new EventedMute();
+  private final EventedMute eventedGroupMute = new EventedMute();
+  private volatile Integer currentVolume;
+
+
+
+  /**
+   * @param executor Used to schedule retries.
+   * @param clock Used to tell how old evented state is, and time calls.
+   * @param failure Called when calls to this Sonos system keep failing.
+   * @param metrics Where the latency and outcome of each call is recorded.
+   */
+  public Sonos(ControlPoint controlPoint, RemoteDevice sonosDevice, ScheduledExecutorService executor,
+               Clock clock, Failure failure, Metrics metrics) {
+    this.name = sonosDevice.getDetails().getFriendlyName();
+    this.controlPoint = controlPoint;
+    this.clock = clock;
+    this.sonosDevice = sonosDevice;
+    this.service = sonosDevice.findService(new UDAServiceId("RenderingControl"));
+    this.groupService = sonosDevice.findService(new UDAServiceId("GroupRenderingControl"));
+    if (service != null) {
+      this.client = RenderingControlClient.create(controlPoint, service);
+    }
+    if (groupService != null) {
+      this.groupClient = RenderingControlClient.create(controlPoint, groupService);
+    }
+    this.executor = executor;
+    this.failure = failure;
+    this.health = new DeviceHealth(clock);
+
+    String id = getId();
+    getMuteStats = metrics.action(id, name, "GetMute");
+    setMuteStats = metrics.action(id, name, "SetMute");
+    getGroupMuteStats = metrics.action(id, name, "GetGroupMute");
+    setGroupMuteStats = metrics.action(id, name, "SetGroupMute");
+  }
+
+
+
+  public String getName() {
+    return name;
+  }
+
+
+
+  public RemoteDevice getDevice() {
+    return sonosDevice;
+  }
+
+
+
+  /**
+   * Returns the identifier Sonos uses for this system in its zone group
+   * topology, e.g. RINCON_000E5859E49601400.
+   */
+  public String getId() {
+    return sonosDevice.getIdentity().getUdn().getIdentifierString();
+  }
+
+
+
+  public DeviceHealth getHealth() {
+    return health;
+  }
+
+
+
+  public boolean hasGroupRenderingControl() {
+    return groupService != null;
+  }
+
+
+
+  /**
+   * Sets whether mute should act on the whole group this Sonos system
+   * coordinates, with a single call, rather than just this system. Ignored
+   * if the system doesn't support GroupRenderingControl.
+   */
+  public void setMuteAsGroup(boolean muteAsGroup) {
+    this.muteAsGroup = muteAsGroup && groupService != null;
+  }
+
+
+
+  /**
+   * Returns the volume as last evented by this Sonos system, or null if it
+   * isn't known.
+   */
+  public Integer getVolume() {
+    return currentVolume;
+  }
+
+
+
+  /**
+   * Subscribes to rendering control events from this Sonos system so its
+   * mute state is always known without having to ask for it.
+   */
+  public synchronized void subscribe() {
+    if (subscription != null) {
+      return;
+    }
+
+    try {
+      subscription = new RenderingControlSubscription();
+      controlPoint.execute(subscription);
+
+      if (groupService != null) {
+        groupSubscription = new GroupRenderingControlSubscription();
+        controlPoint.execute(groupSubscription);
+      }
+    } catch (RejectedExecutionException e) {
+      // Not subscribed, so mutes ask for the state first.
+      log.warning("Could not subscribe to events from " + name + ": " + e);
+    }
+  }
+
+
+
+  /**
+   * Stops listening to events from this Sonos system.
+   */
+  public synchronized void unsubscribe() {
+    if (subscription != null) {
+      subscription.end();
+      subscription = null;
+    }
+    if (groupSubscription != null) {
+      groupSubscription.end();
+      groupSubscription = null;
+    }
+    eventedMute.subscribed = false;
+    eventedGroupMute.subscribed = false;
+  }
+
+
+
+  /**
+   * Returns whether the evented mute state of this Sonos system (not its
+   * group) can be trusted, so a mute needs no GetMute. For tests.
+   */
+  boolean hasFreshMuteState() {
+    return eventedMute.isFresh();
+  }
+
+
+
+  /**
+   * Returns the RenderingControl subscription, or null if not subscribed.
+   * For tests.
+   */
+  synchronized SubscriptionCallback getSubscription() {
+    return subscription;
+  }
+
+
+
+  /**
+   * Mutes this Sonos system (or its whole group, see setMuteAsGroup),
+   * remembering the previous mute state so it can be restored by
+   * restoreMute. The previous state comes from events if they are up to
+   * date, otherwise it is queried here and now. Returns straight away;
+   * completion is told once the mute has been set (or has failed, or been
+   * superseded by a later mute or restore).
+   */
+  public void mute(Completion completion) {
+    submit(new Operation(true, completion));
+  }
+
+
+  /**
+   * Restores the mute state of this Sonos system (or group) to what it was
+   * before mute was last called. Returns straight away; completion is told
+   * once the mute state has been set (or has failed, or been superseded).
+   */
+  public void restoreMute(Completion completion) {
+    submit(new Operation(false, completion));
+  }
+
+
+  /**
+   * Queues an operation behind the one in progress, replacing any already
+   * waiting. If the one in progress is still only finding out the current
+   * mute state, nothing has been changed yet so it is abandoned straight
+   * away.
+   */
+  private void submit(Operation operation) {
+    List<Operation> superseded = new ArrayList<Operation>(2);
+    Operation start = null;
+
+    synchronized (pipelineLock) {
+      operation.sequence = ++sequence;
+
+      if (current == null) {
+        current = operation;
+        start = operation;
+
+      } else {
+        if (next != null) {
+          superseded.add(next);
+        }
+        next = operation;
+
+        if (current.cancellable) {
+          if (current.call != null) {
+            current.call.cancel(false);
+          }
+          superseded.add(current);
+          current = next;
+          next = null;
+          start = current;
+        }
+      }
+    }
+
+    for (Operation old : superseded) {
+      log.fine("Operation " + old.sequence + " on " + name + " superseded by " + operation.sequence);
+      old.completion.superseded(this);
+    }
+
+    if (start != null) {
+      start(start);
+    }
+  }
+
+
+  private void start(Operation operation) {
+    boolean sent;
+    boolean applied;
+    boolean restoreGroup;
+    boolean restoreTo;
+    synchronized (pipelineLock) {
+      sent = muteSent;
+      applied = muteApplied;
+      restoreGroup = mutedAsGroup;
+      restoreTo = previousMute;
+    }
+
+    if (!operation.mute) {
+      if (sent) {
+        setMute(operation, restoreGroup, restoreTo);
+      } else {
+        // The mute never got as far as changing anything.
+        log.fine("Nothing to restore on " + name);
+        finish(operation, true);
+      }
+      return;
+    }
+
+    if (applied) {
+      // Still muted by us, the restore in between having been superseded.
+      // Asking for the mute state now would lose the state to restore.
+      log.fine("Already muted " + name);
+      finish(operation, true);
+      return;
+    }
+
+    boolean group = muteAsGroup;
+    EventedMute evented = group ? eventedGroupMute : eventedMute;
+    Boolean eventedState = evented.mute;
+
+    if (eventedState != null && evented.isFresh()) {
+      log.info("Using evented " + (group ? "group " : "") + "mute state for " + name + ": " + eventedState);
+      gotMute(operation, group, eventedState);
+      return;
+    }
+
+    getMute(operation, group);
+  }
+
+
+  private void getMute(final Operation operation, final boolean group) {
+    if (!allowRequest(operation)) {
+      return;
+    }
+
+    log.fine("Getting current " + (group ? "group " : "") + "mute state for " + name);
+
+    synchronized (pipelineLock) {
+      operation.cancellable = true;
+    }
+
+    final Runnable retry = new Runnable() {
+      public void run() {
+        getMute(operation, group);
+      }
+    };
+
+    final Metrics.ActionStats stats = group ? getGroupMuteStats : getMuteStats;
+
+    Future<?> call = callGetMute(group, new RenderingControlClient.Callback() {
+      public void success(boolean currentMute) {
+        callSucceeded(operation, stats);
+        gotMute(operation, group, currentMute);
+      }
+
+      public void failure(String defaultMsg) {
+        failed(operation, stats, "get " + (group ? "group " : "") + "mute state", defaultMsg, retry);
+      }
+    });
+
+    synchronized (pipelineLock) {
+      operation.call = call;
+    }
+  }
+
+
+  private void gotMute(Operation operation, boolean group, boolean currentMute) {
+    synchronized (pipelineLock) {
+      if (current != operation) {
+        log.fine("Ignoring mute state for " + name + " from superseded operation " + operation.sequence);
+        return;
+      }
+      operation.cancellable = false;
+      operation.attempts = 0;
+      if (muteSent && mutedAsGroup == group) {
+        // An earlier mute's SetMute failed, but may have got through, so
+        // the state now could be ours. Keep the one it found.
+        currentMute = previousMute;
+      }
+      muteSent = true;
+      previousMute = currentMute;
+      mutedAsGroup = group;
+    }
+
+    log.info("Got " + (group ? "group " : "") + "mute state for " + name + ": " + currentMute);
+    setMute(operation, group, true);
+  }
+
+
+  /**
+   * Sets the mute state of this Sonos system, or the group it coordinates,
+   * to that given.
+   */
+  private void setMute(final Operation operation, final boolean group, final boolean mute) {
+    if (!allowRequest(operation)) {
+      return;
+    }
+
+    log.fine("Setting " + (group ? "group " : "") + "mute to " + mute + " on " + name);
+
+    final Runnable retry = new Runnable() {
+      public void run() {
+        setMute(operation, group, mute);
+      }
+    };
+
+    final Metrics.ActionStats stats = group ? setGroupMuteStats : setMuteStats;
+
+    callSetMute(group, mute, new RenderingControlClient.Callback() {
+      public void success(boolean currentMute) {
+        callSucceeded(operation, stats);
+        setSucceeded(operation, group ? eventedGroupMute : eventedMute, mute);
+      }
+
+      public void failure(String defaultMsg) {
+        failed(operation, stats, "set " + (group ? "group " : "") + "mute state", defaultMsg, retry);
+      }
+    });
+  }
+
+
+  /**
+   * Gets the mute state of this Sonos system or its group, directly if
+   * possible, otherwise through Cling.
+   */
+  private Future<?> callGetMute(boolean group, final RenderingControlClient.Callback callback) {
+    RenderingControlClient direct = group ? groupClient : client;
+    if (direct != null) {
+      return direct.getMute(callback);
+    }
+
+    if (group) {
+      return execute(new GetGroupMute(groupService) {
+        @Override
+        public void received(ActionInvocation actionInvocation, boolean currentMute) {
+          callback.success(currentMute);
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse response, String defaultMsg) {
+          callback.failure(defaultMsg);
+        }
+      });
+
+    } else {
+      return execute(new GetMute(service) {
+        @Override
+        public void received(ActionInvocation actionInvocation, boolean currentMute) {
+          callback.success(currentMute);
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse response, String defaultMsg) {
+          callback.failure(defaultMsg);
+        }
+      });
+    }
+  }
+
+
+  /**
+   * Sets the mute state of this Sonos system or its group, directly if
+   * possible, otherwise through Cling.
+   */
+  private void callSetMute(boolean group, final boolean mute, final RenderingControlClient.Callback callback) {
+    RenderingControlClient direct = group ? groupClient : client;
+    if (direct != null) {
+      direct.setMute(mute, callback);
+      return;
+    }
+
+    if (group) {
+      execute(new SetGroupMute(groupService, mute) {
+        @Override
+        public void success(ActionInvocation invocation) {
+          callback.success(mute);
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse response, String defaultMsg) {
+          callback.failure(defaultMsg);
+        }
+      });
+
+    } else {
+      execute(new SetMute(service, mute) {
+        @Override
+        public void success(ActionInvocation invocation) {
+          callback.success(mute);
+        }
+
+        @Override
+        public void failure(ActionInvocation invocation, UpnpResponse response, String defaultMsg) {
+          callback.failure(defaultMsg);
+        }
+      });
+    }
+  }
+
+
+  /**
+   * Has Cling make the given call, failing it if Cling's pool won't take
+   * it, so the caller always hears back.
+   */
+  private Future<?> execute(ActionCallback call) {
+    try {
+      return controlPoint.execute(call);
+    } catch (RejectedExecutionException e) {
+      log.warning("Could not queue call to " + name + ": " + e);
+      call.failure(call.getActionInvocation(), null, e.toString());
+      return null;
+    }
+  }
+
+
+  private void setSucceeded(Operation operation, EventedMute evented, boolean mute) {
+    log.fine("Successfully set mute state for "+ name);
+    evented.update(mute);
+    synchronized (pipelineLock) {
+      if (operation.mute) {
+        muteApplied = true;
+      } else {
+        muteSent = false;
+        muteApplied = false;
+      }
+    }
+    finish(operation, true);
+  }
+
+
+  /**
+   * Checks the circuit before making a call, failing the operation straight
+   * away if it is open. Restores are always let through: a room left muted
+   * is worse than a wasted call.
+   */
+  private boolean allowRequest(Operation operation) {
+    if (operation.mute && !health.allowRequest()) {
+      log.info("Not calling " + name + ", circuit is " + health.getState());
+      finish(operation, false);
+      return false;
+    }
+
+    operation.callStarted = clock.elapsedRealtime();
+    return true;
+  }
+
+
+  private void callSucceeded(Operation operation, Metrics.ActionStats stats) {
+    long latency = clock.elapsedRealtime() - operation.callStarted;
+    health.succeeded(latency);
+    stats.succeeded(latency);
+  }
+
+
+  /**
+   * Called when a call fails. Tries it again after a backoff if it's worth
+   * it, otherwise fails the operation. Only if that opens the circuit is
+   * the failure passed on, as the system may then really have gone.
+   */
+  private void failed(final Operation operation, Metrics.ActionStats stats, String what, String defaultMsg,
+                      final Runnable retry) {
+    long latency = clock.elapsedRealtime() - operation.callStarted;
+    stats.failed(latency);
+
+    synchronized (pipelineLock) {
+      if (current != operation) {
+        // Superseded, and already reported as such.
+        return;
+      }
+      operation.attempts++;
+    }
+
+    boolean opened = health.failed(latency);
+
+    boolean again = operation.mute
+            ? health.shouldRetry(operation.attempts)
+            : operation.attempts < DeviceHealth.MAX_ATTEMPTS;
+
+    if (again) {
+      long delay = health.retryDelay(operation.attempts);
+      log.info("Failed to " + what + " for " + name + ": " + defaultMsg + ". Trying again in " + delay + "ms");
+      executor.schedule(new Runnable() {
+        public void run() {
+          synchronized (pipelineLock) {
+            if (current != operation) {
+              return;
+            }
+          }
+          retry.run();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+      return;
+    }
+
+    log.warning("Failed to " + what + " for " + name + " after " + operation.attempts + " attempts: " + defaultMsg);
+    finish(operation, false);
+
+    if (opened) {
+      log.warning("Circuit opened for " + name + ": " + health.getStats());
+      failure.failure(this);
+    }
+  }
+
+
+  /**
+   * Reports the operation in progress as done and starts the next, if any.
+   */
+  private void finish(Operation operation, boolean success) {
+    Operation start;
+    synchronized (pipelineLock) {
+      if (current != operation) {
+        return;
+      }
+      current = next;
+      next = null;
+      start = current;
+    }
+
+    operation.completion.completed(this, success);
+
+    if (start != null) {
+      start(start);
+    }
+  }
+
+
+
+  /**
+   * A mute or restore, waiting or in progress.
+   */
+  private static class Operation {
+
+    final boolean mute;
+    final Completion completion;
+    long sequence;
+
+    // Whether it can be abandoned: true while it is only finding out the
+    // current mute state. And the call doing that, to cancel if it hasn't
+    // been sent yet.
+    boolean cancellable = false;
+    Future<?> call;
+
+    // Failed attempts at the current step, and when the latest began.
+    int attempts = 0;
+    long callStarted;
+
+    Operation(boolean mute, Completion completion) {
+      this.mute = mute;
+      this.completion = completion;
+    }
+  }
+
+
+
+  /**
+   * A mute state as last evented by the Sonos system (or set by us), and
+   * whether it can be trusted.
+   */
+  private class EventedMute {
+
+    volatile boolean subscribed = false;
+    volatile Boolean mute;
+    volatile long time;
+
+    boolean isFresh() {
+      return subscribed &&
+              mute != null &&
+              clock.elapsedRealtime() - time < MUTE_STATE_MAX_AGE;
+    }
+
+    void update(boolean mute) {
+      this.mute = mute;
+      this.time = clock.elapsedRealtime();
+    }
+  }
+
+
+
+  /**
+   * Keeps an EventedMute up to date from a service's events.
+   */
+  private abstract class MuteSubscription extends SubscriptionCallback {
+
+    private final EventedMute evented;
+
+    MuteSubscription(Service service, EventedMute evented) {
+      super(service, SUBSCRIPTION_SECONDS);
+      this.evented = evented;
+    }
+
+    @Override
+    protected void established(GENASubscription subscription) {
+      log.fine("Subscribed to " + getService().getServiceId().getId() + " events from " + name);
+      evented.subscribed = true;
+    }
+
+    @Override
+    protected void ended(GENASubscription subscription, CancelReason reason, UpnpResponse responseStatus) {
+      log.info("Subscription to " + name + " ended: " + reason);
+      evented.subscribed = false;
+    }
+
+    @Override
+    protected void failed(GENASubscription subscription, UpnpResponse responseStatus, Exception exception, String defaultMsg) {
+      log.warning("Could not subscribe to events from " + name + ": " + defaultMsg);
+      evented.subscribed = false;
+    }
+
+    @Override
+    protected void eventsMissed(GENASubscription subscription, int numberOfMissedEvents) {
+      // Whatever we have cached may be out of date. Fall back to asking
+      // until the next event arrives.
+      log.warning("Missed " + numberOfMissedEvents + " events from " + name);
+      evented.mute = null;
+    }
+
+    @Override
+    protected void eventReceived(GENASubscription subscription) {
+      Map<String, StateVariableValue> values = subscription.getCurrentValues();
+      try {
+        Boolean mute = eventedMute(values);
+        if (mute != null) {
+          log.fine("Evented mute state for " + name + ": " + mute);
+          evented.update(mute);
+        }
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Could not parse event from " + name, e);
+      }
+    }
+
+    /**
+     * Returns the mute state in the given event, or null if it has none.
+     */
+    protected abstract Boolean eventedMute(Map<String, StateVariableValue> values) throws Exception;
+  }
+
+
+
+  /**
+   * RenderingControl sends its state as a LastChange document.
+   */
+  private class RenderingControlSubscription extends MuteSubscription {
+
+    RenderingControlSubscription() {
+      super(Sonos.this.service, eventedMute);
+    }
+
+    @Override
+    protected Boolean eventedMute(Map<String, StateVariableValue> values) throws Exception {
+      StateVariableValue lastChangeValue = values.get("LastChange");
+      if (lastChangeValue == null || lastChangeValue.getValue() == null) {
+        return null;
+      }
+
+      LastChange lastChange = new LastChange(
+              new RenderingControlLastChangeParser(), lastChangeValue.getValue().toString());
+
+      RenderingControlVariable.Volume volumeValue = lastChange.getEventedValue(0, RenderingControlVariable.Volume.class);
+      if (volumeValue != null) {
+        ChannelVolume channelVolume = volumeValue.getValue();
+        if (channelVolume != null && Channel.Master.equals(channelVolume.getChannel())) {
+          currentVolume = channelVolume.getVolume();
+        }
+      }
+
+      RenderingControlVariable.Mute muteValue = lastChange.getEventedValue(0, RenderingControlVariable.Mute.class);
+      if (muteValue != null) {
+        ChannelMute channelMute = muteValue.getValue();
+        if (channelMute != null && Channel.Master.equals(channelMute.getChannel())) {
+          return channelMute.getMute();
+        }
+      }
+
+      return null;
+    }
+  }
+
+
+
+  /**
+   * GroupRenderingControl sends its state variables directly.
+   */
+  private class GroupRenderingControlSubscription extends MuteSubscription {
+
+    GroupRenderingControlSubscription() {
+      super(Sonos.this.groupService, eventedGroupMute);
+    }
+
+    @Override
+    protected Boolean eventedMute(Map<String, StateVariableValue> values) {
+      StateVariableValue groupMuteValue = values.get("GroupMute");
+      if (groupMuteValue == null || groupMuteValue.getValue() == null) {
+        return null;
+      }
+      return (Boolean) groupMuteValue.getValue();
+    }
+  }
+
+
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Sonos)) {
+      return false;
+    }
+    Sonos that = (Sonos) o;
+    return this.sonosDevice.getIdentity().equals(that.sonosDevice.getIdentity());
+  }
+
+
+
+  @Override
+  public int hashCode() {
+    return this.sonosDevice.getIdentity().hashCode();
+  }
+
+
+
+  /**
+   * Interface used to define a method to call when getting or setting mute
+   * state on this Sonos system keeps failing (its circuit has opened).
+   */
+  public static interface Failure {
+    public void failure(Sonos sonos);
+  }
+
+
+
+  /**
+   * Interface used to define a method to call when a mute or restore on this
+   * Sonos system has finished, successfully or otherwise, or been replaced
+   * by a later one before it could finish.
+   */
+  public static interface Completion {
+    public void completed(Sonos sonos, boolean success);
+    public void superseded(Sonos sonos);
+  }
+
+}
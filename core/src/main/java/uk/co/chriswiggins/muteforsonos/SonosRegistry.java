@@ -0,0 +1,143 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.model.meta.DeviceIdentity;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * The Sonos systems found on each wi-fi network.
+ *
+ * Held as an immutable snapshot that is replaced, never modified, whenever
+ * a network or Sonos system is added or removed. Readers (the widget, the
+ * mute path) just take the current snapshot so never block, and nothing
+ * holds a lock while talking to the network.
+ */
+public class SonosRegistry {
+
+  // Map from wi-fi network to a map of discovered Sonos systems. Neither
+  // level is ever modified once published.
+  private final AtomicReference<Map<String, Map<DeviceIdentity, Sonos>>> snapshot =
+          new AtomicReference<Map<String, Map<DeviceIdentity, Sonos>>>(
+                  Collections.<String, Map<DeviceIdentity, Sonos>>emptyMap());
+
+
+
+  /**
+   * Starts keeping track of Sonos systems on the given network, if not
+   * already.
+   */
+  public void addNetwork(String ssid) {
+    while (true) {
+      Map<String, Map<DeviceIdentity, Sonos>> current = snapshot.get();
+      if (current.containsKey(ssid)) {
+        return;
+      }
+
+      Map<String, Map<DeviceIdentity, Sonos>> next = new HashMap<String, Map<DeviceIdentity, Sonos>>(current);
+      next.put(ssid, Collections.<DeviceIdentity, Sonos>emptyMap());
+
+      if (snapshot.compareAndSet(current, Collections.unmodifiableMap(next))) {
+        return;
+      }
+    }
+  }
+
+
+
+  /**
+   * Adds a Sonos system to the given network, replacing any with the same
+   * identity. Does nothing if the network isn't known.
+   *
+   * @return The Sonos system replaced, or null if there wasn't one.
+   */
+  public Sonos put(String ssid, Sonos sonos) {
+    DeviceIdentity identity = sonos.getDevice().getIdentity();
+
+    while (true) {
+      Map<String, Map<DeviceIdentity, Sonos>> current = snapshot.get();
+      Map<DeviceIdentity, Sonos> network = current.get(ssid);
+      if (network == null) {
+        return null;
+      }
+
+      Map<DeviceIdentity, Sonos> nextNetwork = new HashMap<DeviceIdentity, Sonos>(network);
+      Sonos previous = nextNetwork.put(identity, sonos);
+
+      if (snapshot.compareAndSet(current, with(current, ssid, nextNetwork))) {
+        return previous;
+      }
+    }
+  }
+
+
+
+  /**
+   * Removes the Sonos system with the given identity from the given network.
+   *
+   * @return The Sonos system removed, or null if there wasn't one.
+   */
+  public Sonos remove(String ssid, DeviceIdentity identity) {
+    while (true) {
+      Map<String, Map<DeviceIdentity, Sonos>> current = snapshot.get();
+      Map<DeviceIdentity, Sonos> network = current.get(ssid);
+      if (network == null || !network.containsKey(identity)) {
+        return null;
+      }
+
+      Map<DeviceIdentity, Sonos> nextNetwork = new HashMap<DeviceIdentity, Sonos>(network);
+      Sonos removed = nextNetwork.remove(identity);
+
+      if (snapshot.compareAndSet(current, with(current, ssid, nextNetwork))) {
+        return removed;
+      }
+    }
+  }
+
+
+
+  /**
+   * Returns the Sonos systems currently known on the given network. The
+   * collection is a snapshot and will not change.
+   */
+  public Collection<Sonos> get(String ssid) {
+    if (ssid == null) {
+      return Collections.emptyList();
+    }
+
+    Map<DeviceIdentity, Sonos> network = snapshot.get().get(ssid);
+    if (network == null) {
+      return Collections.emptyList();
+    }
+    return network.values();
+  }
+
+
+
+  public int count(String ssid) {
+    return get(ssid).size();
+  }
+
+
+
+  /**
+   * Forgets all networks and Sonos systems.
+   */
+  public void clear() {
+    snapshot.set(Collections.<String, Map<DeviceIdentity, Sonos>>emptyMap());
+  }
+
+
+
+  private static Map<String, Map<DeviceIdentity, Sonos>> with(
+          Map<String, Map<DeviceIdentity, Sonos>> current, String ssid, Map<DeviceIdentity, Sonos> network) {
+    Map<String, Map<DeviceIdentity, Sonos>> next = new HashMap<String, Map<DeviceIdentity, Sonos>>(current);
+    next.put(ssid, Collections.unmodifiableMap(network));
+    return Collections.unmodifiableMap(next);
+  }
+
+}
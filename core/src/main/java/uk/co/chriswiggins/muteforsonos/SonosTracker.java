@@ -0,0 +1,150 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.types.DeviceType;
+import org.fourthline.cling.model.types.ServiceId;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.model.types.UDADeviceType;
+import org.fourthline.cling.model.types.UDAServiceId;
+import org.fourthline.cling.model.types.UDAServiceType;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Logger;
+
+
+/**
+ * Keeps the registry of Sonos systems in step with devices coming and going
+ * on the network: new Sonos systems are subscribed to and used to follow the
+ * zone group topology, and departed ones are let go of.
+ */
+public class SonosTracker {
+
+  private static final Logger log = Logger.getLogger(SonosTracker.class.getName());
+
+  public static final DeviceType SONOS_DEVICE_TYPE = new UDADeviceType("ZonePlayer");
+  private static final ServiceId RENDERING_CONTROL = new UDAServiceId("RenderingControl");
+
+  /**
+   * The only services Sonos systems are used through, so the only ones
+   * whose descriptors discovery needs to fetch. Give these as the UPnP
+   * service configuration's exclusive service types. Devices then have no
+   * other services at all, so anything else needs the full set back.
+   */
+  public static final ServiceType[] USED_SERVICE_TYPES = {
+          new UDAServiceType("RenderingControl", 1),
+          new UDAServiceType("GroupRenderingControl", 1),
+          new UDAServiceType("ZoneGroupTopology", 1)
+  };
+
+  private SonosRegistry sonoses;
+  private ZoneGroupTopology topology;
+  private ScheduledExecutorService executor;
+  private Clock clock;
+  private Sonos.Failure failure;
+  private Metrics metrics;
+
+  private volatile ControlPoint controlPoint;
+
+
+
+  /**
+   * @param executor Given to each Sonos system created, for retries.
+   * @param failure Given to each Sonos system created.
+   * @param metrics Given to each Sonos system created.
+   */
+  public SonosTracker(SonosRegistry sonoses, ZoneGroupTopology topology, ScheduledExecutorService executor,
+                      Clock clock, Sonos.Failure failure, Metrics metrics) {
+    this.sonoses = sonoses;
+    this.topology = topology;
+    this.executor = executor;
+    this.clock = clock;
+    this.failure = failure;
+    this.metrics = metrics;
+  }
+
+
+
+  /**
+   * Sets the control point to talk to Sonos systems through, or null if
+   * there isn't one (in which case devices added are ignored).
+   */
+  public void setControlPoint(ControlPoint controlPoint) {
+    this.controlPoint = controlPoint;
+  }
+
+
+
+  public static boolean isSonos(Device device) {
+    return device.getType().equals(SONOS_DEVICE_TYPE) && device.findService(RENDERING_CONTROL) != null;
+  }
+
+
+
+  /**
+   * Called when a device has been found on the given network.
+   *
+   * @return The Sonos system added to the registry, or null if the device
+   *     isn't one.
+   */
+  public Sonos deviceAdded(String ssid, Device device) {
+    if (!device.isFullyHydrated()) {
+      return null;
+    }
+
+    log.fine("Found device: " + device.getIdentity().getUdn() + ": " + device.getDisplayString());
+
+    ControlPoint controlPoint = this.controlPoint;
+    if (!isSonos(device) || controlPoint == null) {
+      return null;
+    }
+
+    log.info("Found a Sonos system.");
+
+    Sonos sonos = new Sonos(controlPoint, (RemoteDevice) device, executor, clock, failure, metrics);
+    Sonos previous = sonoses.put(ssid, sonos);
+
+    if (previous != null) {
+      previous.unsubscribe();
+    }
+    sonos.subscribe();
+    topology.follow(controlPoint, sonos);
+
+    return sonos;
+  }
+
+
+
+  /**
+   * Called when a device has gone from the given network.
+   *
+   * @return The Sonos system removed from the registry, or null if the device
+   *     wasn't a known one.
+   */
+  public Sonos deviceRemoved(String ssid, Device device) {
+    log.info("Device removed: "
+            + (device.isFullyHydrated() ? device.getDisplayString() : device.getDisplayString() + " *"));
+
+    Sonos removed = sonoses.remove(ssid, device.getIdentity());
+    if (removed == null) {
+      return null;
+    }
+
+    removed.unsubscribe();
+
+    // Carry on following the zone group topology via another system.
+    if (topology.isFollowingVia(removed)) {
+      topology.stop();
+      ControlPoint controlPoint = this.controlPoint;
+      if (controlPoint != null) {
+        for (Sonos sonos : sonoses.get(ssid)) {
+          topology.follow(controlPoint, sonos);
+        }
+      }
+    }
+
+    return removed;
+  }
+
+}
@@ -0,0 +1,67 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.model.message.IncomingDatagramMessage;
+import org.fourthline.cling.model.message.UpnpHeaders;
+import org.fourthline.cling.model.message.UpnpRequest;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.message.header.UpnpHeader;
+
+
+/**
+ * Decides from an SSDP message alone whether it's from a Sonos system, so
+ * that everything else on the network (TVs, routers, NASes, Chromecasts...)
+ * can be dropped before Cling fetches its descriptors and keeps it in the
+ * registry for good. Routers call admit() on each datagram received before
+ * handing it to Cling.
+ *
+ * Every device a Sonos system announces (the ZonePlayer and its embedded
+ * MediaServer and MediaRenderer) has a UDN of the form
+ * uuid:RINCON_&lt;MAC&gt;&lt;port&gt;, and its SERVER header names Sonos, so
+ * either is enough.
+ */
+public class SsdpFilter {
+
+  private static final String SONOS_UDN_PREFIX = "uuid:RINCON_";
+  private static final String SONOS_SERVER_TOKEN = "Sonos/";
+
+
+
+  private SsdpFilter() {
+  }
+
+
+
+  /**
+   * Returns whether the given datagram should be passed on to Cling.
+   * Announcements (NOTIFY) and search responses are only passed on if they
+   * are from a Sonos system. Anything else, such as another control point's
+   * M-SEARCH, is passed on as is.
+   */
+  public static boolean admit(IncomingDatagramMessage message) {
+    Object operation = message.getOperation();
+    boolean advertisement = operation instanceof UpnpResponse
+            || (operation instanceof UpnpRequest
+                && ((UpnpRequest) operation).getMethod() == UpnpRequest.Method.NOTIFY);
+    if (!advertisement) {
+      return true;
+    }
+
+    UpnpHeaders headers = message.getHeaders();
+    return isSonosUsn(headers.getFirstHeader(UpnpHeader.Type.USN.getHttpName()))
+            || isSonosUsn(headers.getFirstHeader(UpnpHeader.Type.NT.getHttpName()))
+            || isSonosServer(headers.getFirstHeader(UpnpHeader.Type.SERVER.getHttpName()));
+  }
+
+
+
+  static boolean isSonosUsn(String usn) {
+    return usn != null && usn.regionMatches(true, 0, SONOS_UDN_PREFIX, 0, SONOS_UDN_PREFIX.length());
+  }
+
+
+
+  static boolean isSonosServer(String server) {
+    return server != null && server.contains(SONOS_SERVER_TOKEN);
+  }
+
+}
@@ -0,0 +1,137 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.types.UDN;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+
+/**
+ * Checks whether Sonos systems are still where they were last time by
+ * fetching their device descriptors directly, all at once, rather than
+ * waiting for them to answer a multicast search. Many access points delay
+ * or drop multicast for a while after a device joins, but unicast HTTP gets
+ * through, so the Sonos systems last known on a network can usually be
+ * found again in about a round trip.
+ *
+ * A device only counts as there if the descriptor at its old address is
+ * still its own: addresses get handed out again, so another Sonos system
+ * (or something else entirely) may be there now.
+ */
+public class UnicastProber {
+
+  private static final Logger log = Logger.getLogger(UnicastProber.class.getName());
+
+  private final UpnpServiceConfiguration configuration;
+  private final ExecutorService executor;
+
+
+
+  /**
+   * @param executor Runs the probes. Probes of addresses that have gone
+   *     take seconds to time out, so this shouldn't be the pool mutes run
+   *     in.
+   */
+  public UnicastProber(UpnpServiceConfiguration configuration, ExecutorService executor) {
+    this.configuration = configuration;
+    this.executor = executor;
+  }
+
+
+
+  /**
+   * Probes the given devices in parallel, at the descriptor URLs they have.
+   * Returns straight away; the listener is told about each device as its
+   * probe finishes.
+   */
+  public void probe(Collection<RemoteDevice> devices, final Listener listener) {
+    log.info("Probing " + devices.size() + " last known devices");
+
+    for (final RemoteDevice device : devices) {
+      executor.execute(new Runnable() {
+        public void run() {
+          String problem = probe(device);
+          if (problem == null) {
+            listener.answered(device);
+          } else {
+            log.fine("Probe of " + device.getDisplayString() + " failed: " + problem);
+            listener.unanswered(device, problem);
+          }
+        }
+      });
+    }
+  }
+
+
+
+  /**
+   * Returns null if the device is at its descriptor URL, otherwise why not.
+   */
+  private String probe(RemoteDevice device) {
+    UDN expected = device.getIdentity().getUdn();
+    try {
+      String descriptor = get(device.getIdentity().getDescriptorURL());
+      RemoteDevice described = configuration.getDeviceDescriptorBinderUDA10().describe(
+              new RemoteDevice(device.getIdentity()), descriptor);
+
+      UDN found = described.getIdentity().getUdn();
+      if (!expected.equals(found)) {
+        return "Found " + found + " there instead";
+      }
+      return null;
+
+    } catch (Exception e) {
+      return e.toString();
+    }
+  }
+
+
+
+  private static String get(URL url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      connection.setConnectTimeout(KeepAliveStreamClient.CONNECT_TIMEOUT);
+      connection.setReadTimeout(KeepAliveStreamClient.READ_TIMEOUT);
+
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("HTTP " + status + " fetching " + url);
+      }
+
+      InputStream in = connection.getInputStream();
+      try {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          body.write(buffer, 0, n);
+        }
+        return body.toString("UTF-8");
+      } finally {
+        in.close();
+      }
+
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+
+
+  /**
+   * Told how each probe went. Called on the executor's thread.
+   */
+  public static interface Listener {
+    public void answered(RemoteDevice device);
+    public void unanswered(RemoteDevice device, String problem);
+  }
+
+}
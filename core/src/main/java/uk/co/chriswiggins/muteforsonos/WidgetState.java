@@ -0,0 +1,89 @@
+package uk.co.chriswiggins.muteforsonos;
+
+
+/**
+ * Everything the widget shows, so what was last pushed can be compared with
+ * what should be shown now and only the differences sent.
+ */
+final class WidgetState {
+
+  static enum Mode {
+    // Unable to mute because no wi-fi.
+    DISABLED,
+    // Ready and waiting to mute.
+    READY,
+    // Counting down until unmute.
+    MUTED
+  }
+
+  final Mode mode;
+  final String countdown;
+  final String count;
+
+
+
+  private WidgetState(Mode mode, String countdown, String count) {
+    this.mode = mode;
+    this.countdown = countdown;
+    this.count = count;
+  }
+
+
+
+  static WidgetState of(boolean wifiConnected, boolean muted, int secondsUntilUnmute, int numSonoses) {
+    if (!wifiConnected) {
+      return new WidgetState(Mode.DISABLED, null, null);
+    } else if (muted) {
+      return new WidgetState(Mode.MUTED, formatCountdown(secondsUntilUnmute), Integer.toString(numSonoses));
+    } else {
+      return new WidgetState(Mode.READY, null, Integer.toString(numSonoses));
+    }
+  }
+
+
+
+  static String formatCountdown(int seconds) {
+    StringBuilder countdown = new StringBuilder();
+    countdown.append(seconds / 60);
+    countdown.append(':');
+    int remainder = seconds % 60;
+    if (remainder < 10) {
+      countdown.append('0');
+    }
+    countdown.append(remainder);
+    return countdown.toString();
+  }
+
+
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof WidgetState)) {
+      return false;
+    }
+    WidgetState that = (WidgetState) o;
+    return this.mode == that.mode &&
+            equal(this.countdown, that.countdown) &&
+            equal(this.count, that.count);
+  }
+
+
+
+  @Override
+  public int hashCode() {
+    int hash = mode.hashCode();
+    hash = 31 * hash + (countdown != null ? countdown.hashCode() : 0);
+    hash = 31 * hash + (count != null ? count.hashCode() : 0);
+    return hash;
+  }
+
+
+
+  static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+}
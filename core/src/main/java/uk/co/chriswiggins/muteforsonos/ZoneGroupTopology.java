@@ -0,0 +1,245 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.controlpoint.ControlPoint;
+import org.fourthline.cling.controlpoint.SubscriptionCallback;
+import org.fourthline.cling.model.gena.CancelReason;
+import org.fourthline.cling.model.gena.GENASubscription;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Service;
+import org.fourthline.cling.model.state.StateVariableValue;
+import org.fourthline.cling.model.types.UDAServiceId;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.SAXParserFactory;
+
+
+/**
+ * Keeps track of how the Sonos systems on the network are grouped. Every
+ * Sonos system knows the topology of the whole household, so this follows
+ * the ZoneGroupTopology events of just one of them. Each event carries the
+ * complete, current grouping, which replaces what we knew before.
+ *
+ * Used to mute each group with a single call to its coordinator, rather
+ * than calling every speaker in it (bonded surrounds, subs, the other half
+ * of a stereo pair and so on).
+ */
+public class ZoneGroupTopology {
+
+  private static final Logger log = Logger.getLogger(ZoneGroupTopology.class.getName());
+
+  private static final int SUBSCRIPTION_SECONDS = 30 * 60;
+
+  private SubscriptionCallback subscription;
+  private Sonos subscribedVia;
+
+  // Map from the id of each Sonos system to the id of its group's
+  // coordinator. Replaced, never modified, so can be read without locking.
+  private volatile Map<String, String> coordinators = Collections.emptyMap();
+
+
+
+  /**
+   * Starts following the topology via the given Sonos system, unless it is
+   * already being followed via another.
+   */
+  public synchronized void follow(ControlPoint controlPoint, Sonos sonos) {
+    if (subscription != null) {
+      return;
+    }
+
+    Service service = sonos.getDevice().findService(new UDAServiceId("ZoneGroupTopology"));
+    if (service == null) {
+      return;
+    }
+
+    log.fine("Following zone group topology via " + sonos.getName());
+    subscribedVia = sonos;
+    subscription = new TopologySubscription(service);
+    controlPoint.execute(subscription);
+  }
+
+
+
+  public synchronized boolean isFollowingVia(Sonos sonos) {
+    return sonos.equals(subscribedVia);
+  }
+
+
+
+  /**
+   * Stops following the topology. What is already known is kept until
+   * following starts again.
+   */
+  public synchronized void stop() {
+    if (subscription != null) {
+      subscription.end();
+    }
+    subscription = null;
+    subscribedVia = null;
+  }
+
+
+
+  /**
+   * Returns the id of the coordinator of the group the given Sonos system is
+   * in, or null if it isn't known.
+   */
+  public String getCoordinator(String id) {
+    return coordinators.get(id);
+  }
+
+
+
+  /**
+   * Works out which of the given Sonos systems need to be called to mute
+   * them all, and marks those that should mute their whole group at once.
+   * Group coordinators that support GroupRenderingControl stand in for their
+   * whole group. Anything else, including systems we don't have topology
+   * for, is muted individually.
+   */
+  public List<Sonos> selectMuteTargets(Collection<Sonos> sonoses) {
+    Map<String, String> coordinators = this.coordinators;
+
+    Map<String, Sonos> byId = new HashMap<String, Sonos>();
+    for (Sonos sonos : sonoses) {
+      byId.put(sonos.getId(), sonos);
+    }
+
+    List<Sonos> targets = new ArrayList<Sonos>();
+
+    for (Sonos sonos : sonoses) {
+      String coordinatorId = coordinators.get(sonos.getId());
+      Sonos coordinator = coordinatorId != null ? byId.get(coordinatorId) : null;
+
+      if (coordinator == null || !coordinator.hasGroupRenderingControl()) {
+        sonos.setMuteAsGroup(false);
+        targets.add(sonos);
+
+      } else if (coordinator == sonos) {
+        sonos.setMuteAsGroup(true);
+        targets.add(sonos);
+      }
+    }
+
+    log.fine(targets.size() + " calls needed to mute " + sonoses.size() + " Sonos systems");
+
+    return targets;
+  }
+
+
+
+  /**
+   * Parses a ZoneGroupState document into a map from the id of each Sonos
+   * system (including invisible and satellite ones) to the id of its group's
+   * coordinator.
+   */
+  static Map<String, String> parse(String zoneGroupState) throws Exception {
+    final Map<String, String> coordinators = new HashMap<String, String>();
+
+    SAXParserFactory.newInstance().newSAXParser().parse(
+            new InputSource(new StringReader(zoneGroupState)),
+            new DefaultHandler() {
+              private String coordinator;
+
+              @Override
+              public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                if ("ZoneGroup".equals(qName)) {
+                  coordinator = attributes.getValue("Coordinator");
+
+                } else if (coordinator != null &&
+                        ("ZoneGroupMember".equals(qName) || "Satellite".equals(qName))) {
+                  String id = attributes.getValue("UUID");
+                  if (id != null) {
+                    coordinators.put(id, coordinator);
+                  }
+                }
+              }
+
+              @Override
+              public void endElement(String uri, String localName, String qName) {
+                if ("ZoneGroup".equals(qName)) {
+                  coordinator = null;
+                }
+              }
+            });
+
+    return coordinators;
+  }
+
+
+
+  private class TopologySubscription extends SubscriptionCallback {
+
+    TopologySubscription(Service service) {
+      super(service, SUBSCRIPTION_SECONDS);
+    }
+
+    @Override
+    protected void established(GENASubscription subscription) {
+      log.fine("Subscribed to zone group topology");
+    }
+
+    @Override
+    protected void ended(GENASubscription subscription, CancelReason reason, UpnpResponse responseStatus) {
+      log.info("Zone group topology subscription ended: " + reason);
+      lost();
+    }
+
+    @Override
+    protected void failed(GENASubscription subscription, UpnpResponse responseStatus, Exception exception, String defaultMsg) {
+      log.warning("Could not subscribe to zone group topology: " + defaultMsg);
+      lost();
+    }
+
+    @Override
+    protected void eventsMissed(GENASubscription subscription, int numberOfMissedEvents) {
+      // Every event has the full topology, so the next one will put us right.
+      log.warning("Missed " + numberOfMissedEvents + " zone group topology events");
+    }
+
+    @Override
+    protected void eventReceived(GENASubscription subscription) {
+      Map<String, StateVariableValue> values = subscription.getCurrentValues();
+      StateVariableValue zoneGroupState = values.get("ZoneGroupState");
+      if (zoneGroupState == null || zoneGroupState.getValue() == null) {
+        return;
+      }
+
+      try {
+        coordinators = parse(zoneGroupState.getValue().toString());
+        log.info("Zone group topology updated: " + coordinators.size() + " Sonos systems in "
+                + new HashSet<String>(coordinators.values()).size() + " groups");
+
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Could not parse zone group topology", e);
+      }
+    }
+
+    /**
+     * Forget this subscription so following can start again via whichever
+     * Sonos system is found next.
+     */
+    private void lost() {
+      synchronized (ZoneGroupTopology.this) {
+        if (ZoneGroupTopology.this.subscription == this) {
+          ZoneGroupTopology.this.subscription = null;
+          subscribedVia = null;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,344 @@
+package uk.co.chriswiggins.muteforsonos;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.gena.RemoteGENASubscription;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
+import org.fourthline.cling.model.state.StateVariableValue;
+import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.protocol.RetrieveRemoteDescriptors;
+import org.fourthline.cling.support.lastchange.LastChange;
+import org.fourthline.cling.support.model.Channel;
+import org.fourthline.cling.support.renderingcontrol.RenderingControlException;
+import org.fourthline.cling.support.renderingcontrol.lastchange.ChannelVolume;
+import org.fourthline.cling.support.renderingcontrol.lastchange.RenderingControlLastChangeParser;
+import org.fourthline.cling.support.renderingcontrol.lastchange.RenderingControlVariable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.chriswiggins.muteforsonos.simulator.LoopbackConfiguration;
+import uk.co.chriswiggins.muteforsonos.simulator.SimulatedFleet;
+import uk.co.chriswiggins.muteforsonos.simulator.ZoneBehaviour;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Mutes a simulated Sonos system over loopback, checking which actions
+ * reach its RenderingControl: SetMute alone while the evented mute state is
+ * fresh, GetMute first once it's too old or events have been missed. Also
+ * that a call that can't be made still lets the mute finish, and that a
+ * restore superseded by a mute leaves the state to restore alone.
+ */
+public class SonosTest {
+
+  private static final long TIMEOUT = 5 * 1000L;
+
+  private static final String SUCCEEDED = "succeeded";
+  private static final String FAILED = "failed";
+  private static final String SUPERSEDED = "superseded";
+
+  private SimulatedFleet fleet;
+  private SimulatedFleet.Zone zone;
+  private RecordingBehaviour behaviour;
+  private UpnpService controlPoint;
+  private RejectingExecutor callExecutor;
+  private ScheduledExecutorService executor;
+  private TestClock clock;
+  private Sonos sonos;
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    behaviour = new RecordingBehaviour();
+    fleet = new SimulatedFleet(new LoopbackConfiguration(false));
+    zone = fleet.addZone(behaviour);
+
+    callExecutor = new RejectingExecutor();
+    controlPoint = new UpnpServiceImpl(new LoopbackConfiguration(false) {
+      @Override
+      public ExecutorService getSyncProtocolExecutorService() {
+        return callExecutor;
+      }
+    });
+    executor = Executors.newSingleThreadScheduledExecutor();
+    clock = new TestClock();
+
+    sonos = new Sonos(controlPoint.getControlPoint(), find(fleet.getDescriptorUrl(zone)), executor, clock,
+            new Sonos.Failure() {
+              public void failure(Sonos sonos) {
+              }
+            }, new Metrics(clock));
+
+    sonos.subscribe();
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!sonos.hasFreshMuteState()) {
+      assertTrue("No mute state evented", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+
+    // Ignore what the initial event asked for.
+    behaviour.clear();
+  }
+
+
+
+  @After
+  public void tearDown() {
+    sonos.unsubscribe();
+    controlPoint.shutdown();
+    fleet.shutdown();
+    executor.shutdownNow();
+    callExecutor.shutdownNow();
+  }
+
+
+
+  @Test
+  public void freshStateOnlySetsMute() throws Exception {
+    assertTrue(mute());
+    assertEquals(Arrays.asList("SetMute"), behaviour.getActions());
+    assertTrue(zone.isMuted());
+  }
+
+
+
+  @Test
+  public void staleStateGetsMuteFirst() throws Exception {
+    clock.advance(Sonos.MUTE_STATE_MAX_AGE);
+    assertFalse(sonos.hasFreshMuteState());
+
+    assertTrue(mute());
+    assertEquals(Arrays.asList("GetMute", "SetMute"), behaviour.getActions());
+    assertTrue(zone.isMuted());
+  }
+
+
+
+  @Test
+  public void missedEventsInvalidateState() throws Exception {
+    // Skip a sequence number, with an event that doesn't mention mute, so
+    // nothing puts the mute state back.
+    RemoteGENASubscription subscription = (RemoteGENASubscription) sonos.getSubscription().getSubscription();
+    LastChange lastChange = new LastChange(new RenderingControlLastChangeParser());
+    lastChange.setEventedValue(0, new RenderingControlVariable.Volume(new ChannelVolume(Channel.Master, 25)));
+    subscription.receive(
+            new UnsignedIntegerFourBytes(subscription.getCurrentSequence().getValue() + 2),
+            Collections.singletonList(new StateVariableValue(
+                    subscription.getService().getStateVariable("LastChange"), lastChange.toString())));
+    assertFalse(sonos.hasFreshMuteState());
+
+    assertTrue(mute());
+    assertEquals(Arrays.asList("GetMute", "SetMute"), behaviour.getActions());
+    assertTrue(zone.isMuted());
+  }
+
+
+
+  @Test
+  public void rejectedCallIsRetried() throws Exception {
+    // The call fails without reaching the zone, and must still be reported
+    // as failed, or the mute would never finish.
+    callExecutor.rejectCalls(1);
+
+    assertTrue(mute());
+    assertEquals(Arrays.asList("SetMute"), behaviour.getActions());
+    assertTrue(zone.isMuted());
+  }
+
+
+
+  @Test
+  public void restoreSupersededByMute() throws Exception {
+    // Slow enough that the restore and second mute queue behind the first.
+    behaviour.setDelay(200);
+
+    CompletionRecorder first = new CompletionRecorder();
+    CompletionRecorder restore = new CompletionRecorder();
+    CompletionRecorder second = new CompletionRecorder();
+    sonos.mute(first);
+    sonos.restoreMute(restore);
+    sonos.mute(second);
+
+    assertEquals(SUCCEEDED, first.await());
+    assertEquals(SUPERSEDED, restore.await());
+    assertEquals(SUCCEEDED, second.await());
+
+    // The second mute found the system still muted by the first, so didn't
+    // ask for its state, which would have lost the one to restore.
+    assertEquals(Arrays.asList("SetMute"), behaviour.getActions());
+    assertTrue(zone.isMuted());
+
+    CompletionRecorder last = new CompletionRecorder();
+    sonos.restoreMute(last);
+    assertEquals(SUCCEEDED, last.await());
+    assertFalse(zone.isMuted());
+  }
+
+
+
+  /**
+   * Mutes and waits, returning whether it succeeded.
+   */
+  private boolean mute() throws InterruptedException {
+    CompletionRecorder completion = new CompletionRecorder();
+    sonos.mute(completion);
+    return SUCCEEDED.equals(completion.await());
+  }
+
+
+
+  /**
+   * Records how an operation finished.
+   */
+  private static class CompletionRecorder implements Sonos.Completion {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile String outcome;
+
+    public void completed(Sonos sonos, boolean success) {
+      outcome = success ? SUCCEEDED : FAILED;
+      done.countDown();
+    }
+
+    public void superseded(Sonos sonos) {
+      outcome = SUPERSEDED;
+      done.countDown();
+    }
+
+    String await() throws InterruptedException {
+      assertTrue("Operation didn't finish", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+      return outcome;
+    }
+  }
+
+
+
+  /**
+   * Fetches the device at the given descriptor URL into the control point's
+   * registry, as discovery would, and returns it.
+   */
+  private RemoteDevice find(URL descriptorUrl) {
+    UDN udn = zone.getDevice().getIdentity().getUdn();
+    new RetrieveRemoteDescriptors(controlPoint,
+            new RemoteDevice(new RemoteDeviceIdentity(udn, 1800, descriptorUrl, null, null))).run();
+
+    RemoteDevice device = controlPoint.getRegistry().getRemoteDevice(udn, true);
+    assertTrue("Simulated zone not found", device != null);
+    return device;
+  }
+
+
+
+  /**
+   * Records the actions a simulated zone is asked to carry out.
+   */
+  private static class RecordingBehaviour extends ZoneBehaviour {
+
+    private final List<String> actions = new ArrayList<String>();
+    private volatile long delay = 0;
+
+    RecordingBehaviour() {
+      super(0, 0, 0, 0, 0, 1);
+    }
+
+    @Override
+    public void apply(String action) throws RenderingControlException {
+      synchronized (actions) {
+        actions.add(action);
+      }
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      super.apply(action);
+    }
+
+    void setDelay(long delay) {
+      this.delay = delay;
+    }
+
+    List<String> getActions() {
+      synchronized (actions) {
+        return new ArrayList<String>(actions);
+      }
+    }
+
+    void clear() {
+      synchronized (actions) {
+        actions.clear();
+      }
+    }
+  }
+
+
+
+  /**
+   * Cling's protocol executor, which can be made to turn down the direct
+   * client's calls, as a full pool does.
+   */
+  private static class RejectingExecutor extends ThreadPoolExecutor {
+
+    private final AtomicInteger rejections = new AtomicInteger();
+
+    RejectingExecutor() {
+      super(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    }
+
+    void rejectCalls(int count) {
+      rejections.set(count);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+      if (task instanceof RenderingControlClient.Call && rejections.getAndDecrement() > 0) {
+        throw new RejectedExecutionException("Rejected for test");
+      }
+      return super.submit(task);
+    }
+  }
+
+
+
+  /**
+   * The system clock, plus however far a test has moved it on.
+   */
+  private static class TestClock implements Clock {
+
+    private volatile long offset = 0;
+
+    public long elapsedRealtime() {
+      return Clock.SYSTEM.elapsedRealtime() + offset;
+    }
+
+    void advance(long millis) {
+      offset += millis;
+    }
+  }
+
+}
@@ -0,0 +1,141 @@
+package uk.co.chriswiggins.muteforsonos.daemon;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import uk.co.chriswiggins.muteforsonos.LatencyHistogram;
+import uk.co.chriswiggins.muteforsonos.MuteEngine;
+import uk.co.chriswiggins.muteforsonos.Notifier;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+ * The HTTP API:
+ * <ul>
+ * <li>POST /mute mutes everything, or adds more time if already muted, as
+ * pressing the widget does.</li>
+ * <li>POST /mute?seconds=N mutes everything for N seconds from now, or
+ * longer if already muted for longer. N must be from 1 up to
+ * MuteEngine.MAX_MUTE_LENGTH in seconds.</li>
+ * <li>POST /unmute restores everything now.</li>
+ * <li>GET /status returns the current state.</li>
+ * <li>GET /metrics returns latencies and failures of calls to each Sonos
+ * system, discovery times, unmute lateness and how long these requests
+ * take to dispatch (see Metrics.snapshot).</li>
+ * </ul>
+ * The others return the state as JSON (see StatusJson). A mute that can't be done
+ * returns 409 and the reason. Mute requests only send the commands to the
+ * Sonos systems; they don't wait for them to finish.
+ */
+class ControlHandler extends AbstractHandler {
+
+  private static final String JSON = "application/json; charset=utf-8";
+
+  private static final long MAX_SECONDS = MuteEngine.MAX_MUTE_LENGTH / 1000L;
+
+  private final MuteEngine engine;
+
+
+
+  ControlHandler(MuteEngine engine) {
+    this.engine = engine;
+  }
+
+
+
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+          throws IOException {
+    baseRequest.setHandled(true);
+    String method = request.getMethod();
+
+    if ("/status".equals(target)) {
+      if (!"GET".equals(method)) {
+        send(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, StatusJson.error("Use GET"));
+        return;
+      }
+      send(response, HttpServletResponse.SC_OK, StatusJson.of(engine));
+
+    } else if ("/metrics".equals(target)) {
+      if (!"GET".equals(method)) {
+        send(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, StatusJson.error("Use GET"));
+        return;
+      }
+      send(response, HttpServletResponse.SC_OK, engine.getMetrics().snapshot());
+
+    } else if ("/mute".equals(target)) {
+      if (!"POST".equals(method)) {
+        send(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, StatusJson.error("Use POST"));
+        return;
+      }
+
+      Long seconds;
+      try {
+        String value = request.getParameter("seconds");
+        seconds = value != null ? Long.valueOf(value) : null;
+      } catch (NumberFormatException e) {
+        send(response, HttpServletResponse.SC_BAD_REQUEST, StatusJson.error("Bad seconds"));
+        return;
+      }
+      if (seconds != null && (seconds <= 0 || seconds > MAX_SECONDS)) {
+        send(response, HttpServletResponse.SC_BAD_REQUEST,
+                StatusJson.error("seconds must be from 1 to " + MAX_SECONDS));
+        return;
+      }
+
+      long start = System.nanoTime();
+      Notifier.Problem problem = seconds != null ? engine.muteFor(seconds * 1000L) : engine.muteTemporarily();
+      engine.getMetrics().dispatched(System.nanoTime() - start);
+
+      if (problem != null) {
+        send(response, HttpServletResponse.SC_CONFLICT, StatusJson.error(problem.name()));
+      } else {
+        send(response, HttpServletResponse.SC_OK, StatusJson.of(engine));
+      }
+
+    } else if ("/unmute".equals(target)) {
+      if (!"POST".equals(method)) {
+        send(response, HttpServletResponse.SC_METHOD_NOT_ALLOWED, StatusJson.error("Use POST"));
+        return;
+      }
+
+      long start = System.nanoTime();
+      engine.unmute();
+      engine.getMetrics().dispatched(System.nanoTime() - start);
+
+      send(response, HttpServletResponse.SC_OK, StatusJson.of(engine));
+
+    } else {
+      send(response, HttpServletResponse.SC_NOT_FOUND, StatusJson.error("Not found"));
+    }
+  }
+
+
+
+  /**
+   * Sends the whole body with its length, so the connection can be kept
+   * alive for the next request.
+   */
+  private static void send(HttpServletResponse response, int status, String json) throws IOException {
+    byte[] body = json.getBytes("UTF-8");
+    response.setStatus(status);
+    response.setContentType(JSON);
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+  }
+
+
+
+  String getStats() {
+    LatencyHistogram dispatches = engine.getMetrics().getDispatchTimes();
+    String unit = dispatches.getUnit();
+    return "Dispatched " + dispatches.getCount() + " requests: mean " + dispatches.getMean() + unit +
+            ", p50 " + dispatches.getPercentile(50) + unit + ", p99 " + dispatches.getPercentile(99) + unit +
+            ", max " + dispatches.getMax() + unit;
+  }
+
+}
@@ -0,0 +1,305 @@
+package uk.co.chriswiggins.muteforsonos.daemon;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.fourthline.cling.DefaultUpnpServiceConfiguration;
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.message.IncomingDatagramMessage;
+import org.fourthline.cling.model.message.header.UDADeviceTypeHeader;
+import org.fourthline.cling.model.meta.Device;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.protocol.ProtocolFactory;
+import org.fourthline.cling.registry.DefaultRegistryListener;
+import org.fourthline.cling.registry.Registry;
+import org.fourthline.cling.transport.Router;
+import org.fourthline.cling.transport.RouterImpl;
+import org.fourthline.cling.transport.spi.StreamClient;
+
+import uk.co.chriswiggins.muteforsonos.Clock;
+import uk.co.chriswiggins.muteforsonos.DiscoveryScheduler;
+import uk.co.chriswiggins.muteforsonos.KeepAliveStreamClient;
+import uk.co.chriswiggins.muteforsonos.MuteEngine;
+import uk.co.chriswiggins.muteforsonos.MuteFanOut;
+import uk.co.chriswiggins.muteforsonos.Notifier;
+import uk.co.chriswiggins.muteforsonos.Sonos;
+import uk.co.chriswiggins.muteforsonos.SonosTracker;
+import uk.co.chriswiggins.muteforsonos.SsdpFilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Runs the mute engine headless, for home automation to control over HTTP
+ * (see ControlHandler). Sonos systems are discovered at start up and kept
+ * track of from then on, so a mute request never has to wait for
+ * discovery.
+ *
+ * Usage: MuteDaemon [--host 127.0.0.1] [--port 8080]
+ */
+public class MuteDaemon implements Sonos.Failure, Notifier {
+
+  private static final Logger log = Logger.getLogger(MuteDaemon.class.getName());
+
+  // The daemon only ever knows one network.
+  private static final String NETWORK = "lan";
+
+  // Search again this often anyway, in case a Sonos system was missed.
+  private static final long RESEARCH_INTERVAL = 10 * 60 * 1000L;
+
+  // How long idle keep-alive connections are held open.
+  private static final int MAX_IDLE_TIME = 60 * 1000;
+  private static final int MAX_HTTP_THREADS = 32;
+
+  // How long stopping waits for everything to be unmuted. A little longer
+  // than a fan-out is given to finish.
+  private static final long RESTORE_TIMEOUT = 10 * 1000L;
+
+  private final ScheduledExecutorService executor;
+  private final MuteEngine engine;
+  private final DiscoveryScheduler discovery;
+  private final ControlHandler handler;
+  private final Server server;
+
+  private volatile UpnpService upnpService;
+
+  // Counted down when a restore finishes, while stopping.
+  private volatile CountDownLatch restored;
+
+
+
+  public MuteDaemon(String host, int port) {
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "mute-scheduler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    engine = new MuteEngine(executor, Clock.SYSTEM,
+            new ScheduledAlarm(executor, Clock.SYSTEM, new AlarmFired()), this, this);
+    engine.setVisible(false);
+    discovery = new DiscoveryScheduler(executor, new Search(), engine.getMetrics());
+
+    handler = new ControlHandler(engine);
+    server = createServer(host, port, handler);
+  }
+
+
+
+  static Server createServer(String host, int port, ControlHandler handler) {
+    QueuedThreadPool threadPool = new QueuedThreadPool(MAX_HTTP_THREADS);
+    threadPool.setName("http");
+
+    SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setHost(host);
+    connector.setPort(port);
+    connector.setMaxIdleTime(MAX_IDLE_TIME);
+
+    Server server = new Server();
+    server.setThreadPool(threadPool);
+    server.addConnector(connector);
+    server.setHandler(handler);
+    return server;
+  }
+
+
+
+  public void start() throws Exception {
+    upnpService = new UpnpServiceImpl(new DefaultUpnpServiceConfiguration() {
+      @Override
+      public ServiceType[] getExclusiveServiceTypes() {
+        // Only fetch the descriptors of the services muting uses.
+        return SonosTracker.USED_SERVICE_TYPES;
+      }
+
+      @Override
+      public StreamClient createStreamClient() {
+        // Cling's default client turns off keep-alive for every
+        // HttpURLConnection, which direct mute calls rely on.
+        return new KeepAliveStreamClient(getSyncProtocolExecutorService());
+      }
+    }) {
+      @Override
+      protected Router createRouter(ProtocolFactory protocolFactory, Registry registry) {
+        return new RouterImpl(getConfiguration(), protocolFactory) {
+          @Override
+          public void received(IncomingDatagramMessage message) {
+            // Only let Sonos systems into the registry.
+            if (SsdpFilter.admit(message)) {
+              super.received(message);
+            } else {
+              engine.getMetrics().ssdpIgnored();
+            }
+          }
+        };
+      }
+    };
+    engine.setControlPoint(upnpService.getControlPoint());
+    engine.connected(NETWORK);
+
+    SonosListener listener = new SonosListener();
+    for (Device device : upnpService.getRegistry().getDevices(SonosTracker.SONOS_DEVICE_TYPE)) {
+      listener.deviceAdded(device);
+    }
+    upnpService.getRegistry().addListener(listener);
+
+    discovery.start(Collections.<String>emptyList());
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        List<String> known = new ArrayList<String>();
+        for (Sonos sonos : engine.getSonoses()) {
+          known.add(sonos.getId());
+        }
+        discovery.start(known);
+        log.info(handler.getStats());
+      }
+    }, RESEARCH_INTERVAL, RESEARCH_INTERVAL, TimeUnit.MILLISECONDS);
+
+    server.start();
+    log.info("Listening on " + server.getConnectors()[0].getHost() + ":" + server.getConnectors()[0].getPort());
+  }
+
+
+
+  public void stop() throws Exception {
+    server.stop();
+
+    // Don't leave everything muted. The restores are only sent by unmute(),
+    // so wait for them to finish before shutting down what they run on.
+    if (engine.isMuted()) {
+      restored = new CountDownLatch(1);
+      engine.unmute();
+      if (!restored.await(RESTORE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        log.warning("Gave up waiting for Sonos systems to be unmuted");
+      }
+    }
+
+    discovery.stop();
+    engine.setControlPoint(null);
+    upnpService.shutdown();
+    executor.shutdownNow();
+  }
+
+
+
+  public void failure(Sonos sonos) {
+    discovery.deviceLost(sonos.getId());
+
+    if (sonos.getHealth().isLikelyGone()) {
+      log.info("Removing " + sonos.getName() + " from registry due to repeated failure");
+      upnpService.getRegistry().removeDevice(sonos.getDevice().getIdentity().getUdn());
+    } else {
+      log.info(sonos.getName() + " is failing: " + sonos.getHealth().getStats());
+    }
+  }
+
+
+
+  public void stateChanged() {
+    // Nothing to update: the state is read when asked for.
+  }
+
+
+
+  public void cannotMute(Problem problem) {
+    log.info("Could not mute: " + problem);
+  }
+
+
+
+  public void fanOutCompleted(boolean mute, List<MuteFanOut.Result> results, long elapsedMillis) {
+    log.fine(handler.getStats());
+
+    CountDownLatch restored = this.restored;
+    if (!mute && restored != null) {
+      restored.countDown();
+    }
+  }
+
+
+
+  private class AlarmFired implements Runnable {
+    public void run() {
+      engine.alarmFired();
+    }
+  }
+
+
+
+  private class Search implements Runnable {
+    public void run() {
+      UpnpService upnpService = MuteDaemon.this.upnpService;
+      if (upnpService != null) {
+        log.info("Searching for Sonos systems...");
+        upnpService.getControlPoint().search(new UDADeviceTypeHeader(SonosTracker.SONOS_DEVICE_TYPE));
+      }
+    }
+  }
+
+
+
+  private class SonosListener extends DefaultRegistryListener {
+
+    @Override
+    public void remoteDeviceAdded(Registry registry, RemoteDevice device) {
+      deviceAdded(device);
+    }
+
+    @Override
+    public void remoteDeviceRemoved(Registry registry, RemoteDevice device) {
+      engine.deviceRemoved(device);
+    }
+
+    void deviceAdded(Device device) {
+      Sonos sonos = engine.deviceAdded(device);
+      if (sonos != null) {
+        discovery.deviceFound(sonos.getId());
+      }
+    }
+  }
+
+
+
+  public static void main(String[] args) throws Exception {
+    String host = "127.0.0.1";
+    int port = 8080;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("--host".equals(args[i])) {
+        host = args[i + 1];
+      } else if ("--port".equals(args[i])) {
+        port = Integer.parseInt(args[i + 1]);
+      } else {
+        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+      }
+    }
+
+    final MuteDaemon daemon = new MuteDaemon(host, port);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          daemon.stop();
+        } catch (Exception e) {
+          log.warning("Could not stop cleanly: " + e);
+        }
+      }
+    });
+
+    daemon.start();
+    daemon.server.join();
+  }
+
+}
@@ -0,0 +1,50 @@
+package uk.co.chriswiggins.muteforsonos.daemon;
+
+import uk.co.chriswiggins.muteforsonos.Alarm;
+import uk.co.chriswiggins.muteforsonos.Clock;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Alarm for a machine that doesn't sleep: just a scheduled task.
+ */
+public class ScheduledAlarm implements Alarm {
+
+  private ScheduledExecutorService executor;
+  private Clock clock;
+  private Runnable fired;
+
+  private ScheduledFuture<?> future;
+
+
+
+  /**
+   * @param fired Run when the alarm goes off.
+   */
+  public ScheduledAlarm(ScheduledExecutorService executor, Clock clock, Runnable fired) {
+    this.executor = executor;
+    this.clock = clock;
+    this.fired = fired;
+  }
+
+
+
+  public synchronized void set(long elapsedRealtime) {
+    cancel();
+    long delay = Math.max(elapsedRealtime - clock.elapsedRealtime(), 0L);
+    future = executor.schedule(fired, delay, TimeUnit.MILLISECONDS);
+  }
+
+
+
+  public synchronized void cancel() {
+    if (future != null) {
+      future.cancel(false);
+      future = null;
+    }
+  }
+
+}
@@ -0,0 +1,56 @@
+package uk.co.chriswiggins.muteforsonos.daemon;
+
+import uk.co.chriswiggins.muteforsonos.Json;
+import uk.co.chriswiggins.muteforsonos.MuteEngine;
+import uk.co.chriswiggins.muteforsonos.Sonos;
+
+
+/**
+ * Writes the state of the engine as JSON, e.g.
+ * <pre>
+ * {"connected":true,"muted":true,"secondsUntilUnmute":27,
+ *  "sonoses":[{"id":"RINCON_000E5859E49601400","name":"Kitchen","volume":20}]}
+ * </pre>
+ */
+class StatusJson {
+
+  static String of(MuteEngine engine) {
+    StringBuilder json = new StringBuilder(256);
+    boolean muted = engine.isMuted();
+
+    json.append("{\"connected\":").append(engine.isConnected());
+    json.append(",\"muted\":").append(muted);
+    json.append(",\"secondsUntilUnmute\":").append(muted ? engine.getSecondsUntilUnmute() : 0);
+    json.append(",\"sonoses\":[");
+
+    boolean first = true;
+    for (Sonos sonos : engine.getSonoses()) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+
+      json.append("{\"id\":");
+      Json.appendString(json, sonos.getId());
+      json.append(",\"name\":");
+      Json.appendString(json, sonos.getName());
+      json.append(",\"volume\":").append(sonos.getVolume());
+      json.append('}');
+    }
+
+    json.append("]}");
+    return json.toString();
+  }
+
+
+
+  /**
+   * Returns an error as JSON, e.g. {"error":"NO_SONOS_FOUND"}.
+   */
+  static String error(String error) {
+    StringBuilder json = new StringBuilder("{\"error\":");
+    Json.appendString(json, error);
+    return json.append('}').toString();
+  }
+
+}
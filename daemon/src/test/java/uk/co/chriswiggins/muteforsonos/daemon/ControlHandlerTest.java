@@ -0,0 +1,217 @@
+package uk.co.chriswiggins.muteforsonos.daemon;
+
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.chriswiggins.muteforsonos.Clock;
+import uk.co.chriswiggins.muteforsonos.MuteEngine;
+import uk.co.chriswiggins.muteforsonos.MuteFanOut;
+import uk.co.chriswiggins.muteforsonos.Notifier;
+import uk.co.chriswiggins.muteforsonos.Sonos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Sends requests to the HTTP API over loopback, checking the status and
+ * body of each, and that bad mute lengths are turned down before reaching
+ * the engine. No Sonos systems are known, so a mute that gets through to
+ * the engine is answered with 409.
+ */
+public class ControlHandlerTest {
+
+  private ScheduledExecutorService executor;
+  private MuteEngine engine;
+  private Server server;
+  private int port;
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    Nothing nothing = new Nothing();
+    engine = new MuteEngine(executor, Clock.SYSTEM, new ScheduledAlarm(executor, Clock.SYSTEM, nothing),
+            nothing, nothing);
+    engine.setVisible(false);
+
+    server = MuteDaemon.createServer("127.0.0.1", 0, new ControlHandler(engine));
+    server.start();
+    port = server.getConnectors()[0].getLocalPort();
+  }
+
+
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+    executor.shutdownNow();
+  }
+
+
+
+  @Test
+  public void status() throws Exception {
+    Response response = request("GET", "/status");
+    assertEquals(200, response.status);
+    assertEquals("{\"connected\":false,\"muted\":false,\"secondsUntilUnmute\":0,\"sonoses\":[]}", response.body);
+  }
+
+
+
+  @Test
+  public void metrics() throws Exception {
+    Response response = request("GET", "/metrics");
+    assertEquals(200, response.status);
+    assertTrue(response.body, response.body.startsWith("{\"actions\":[]"));
+  }
+
+
+
+  @Test
+  public void muteWhenNotConnected() throws Exception {
+    Response response = request("POST", "/mute");
+    assertEquals(409, response.status);
+    assertEquals("{\"error\":\"NOT_CONNECTED\"}", response.body);
+  }
+
+
+
+  @Test
+  public void muteWithNoSonosFound() throws Exception {
+    engine.connected("lan");
+
+    Response response = request("POST", "/mute");
+    assertEquals(409, response.status);
+    assertEquals("{\"error\":\"NO_SONOS_FOUND\"}", response.body);
+  }
+
+
+
+  @Test
+  public void secondsInRangeReachTheEngine() throws Exception {
+    engine.connected("lan");
+
+    assertEquals(409, request("POST", "/mute?seconds=1").status);
+    assertEquals(409, request("POST", "/mute?seconds=599").status);
+  }
+
+
+
+  @Test
+  public void secondsOutOfRangeAreRejected() throws Exception {
+    engine.connected("lan");
+
+    for (String seconds : new String[] {"0", "-1", "600", "99999999999"}) {
+      Response response = request("POST", "/mute?seconds=" + seconds);
+      assertEquals(seconds, 400, response.status);
+      assertEquals(seconds, "{\"error\":\"seconds must be from 1 to 599\"}", response.body);
+    }
+  }
+
+
+
+  @Test
+  public void badSecondsAreRejected() throws Exception {
+    engine.connected("lan");
+
+    for (String seconds : new String[] {"", "ten", "1.5", "99999999999999999999"}) {
+      Response response = request("POST", "/mute?seconds=" + seconds);
+      assertEquals(seconds, 400, response.status);
+      assertEquals(seconds, "{\"error\":\"Bad seconds\"}", response.body);
+    }
+  }
+
+
+
+  @Test
+  public void unmute() throws Exception {
+    Response response = request("POST", "/unmute");
+    assertEquals(200, response.status);
+    assertTrue(response.body, response.body.contains("\"muted\":false"));
+  }
+
+
+
+  @Test
+  public void wrongMethod() throws Exception {
+    assertEquals(405, request("GET", "/mute").status);
+    assertEquals(405, request("GET", "/unmute").status);
+    assertEquals(405, request("POST", "/status").status);
+    assertEquals(405, request("POST", "/metrics").status);
+  }
+
+
+
+  @Test
+  public void notFound() throws Exception {
+    Response response = request("GET", "/volume");
+    assertEquals(404, response.status);
+    assertEquals("{\"error\":\"Not found\"}", response.body);
+  }
+
+
+
+  private Response request(String method, String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http", "127.0.0.1", port, path).openConnection();
+    connection.setRequestMethod(method);
+
+    Response response = new Response();
+    response.status = connection.getResponseCode();
+    InputStream in = response.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[512];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      body.write(buffer, 0, n);
+    }
+    in.close();
+
+    response.body = body.toString("UTF-8");
+    return response;
+  }
+
+
+
+  private static class Response {
+    int status;
+    String body;
+  }
+
+
+
+  /**
+   * Stands in for everything the engine tells the daemon.
+   */
+  private static class Nothing implements Runnable, Notifier, Sonos.Failure {
+
+    public void run() {
+    }
+
+    public void stateChanged() {
+    }
+
+    public void cannotMute(Problem problem) {
+    }
+
+    public void fanOutCompleted(boolean mute, List<MuteFanOut.Result> results, long elapsedMillis) {
+    }
+
+    public void failure(Sonos sonos) {
+    }
+  }
+
+}
@@ -0,0 +1,370 @@
+package uk.co.chriswiggins.muteforsonos.simulator;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.message.IncomingDatagramMessage;
+import org.fourthline.cling.model.message.header.UDADeviceTypeHeader;
+import org.fourthline.cling.model.meta.RemoteDevice;
+import org.fourthline.cling.model.types.ServiceType;
+import org.fourthline.cling.protocol.ProtocolFactory;
+import org.fourthline.cling.registry.DefaultRegistryListener;
+import org.fourthline.cling.registry.Registry;
+import org.fourthline.cling.transport.Router;
+import org.fourthline.cling.transport.RouterImpl;
+import org.fourthline.cling.transport.spi.StreamClient;
+
+import uk.co.chriswiggins.muteforsonos.Alarm;
+import uk.co.chriswiggins.muteforsonos.Clock;
+import uk.co.chriswiggins.muteforsonos.KeepAliveStreamClient;
+import uk.co.chriswiggins.muteforsonos.MuteEngine;
+import uk.co.chriswiggins.muteforsonos.MuteFanOut;
+import uk.co.chriswiggins.muteforsonos.Notifier;
+import uk.co.chriswiggins.muteforsonos.Sonos;
+import uk.co.chriswiggins.muteforsonos.SonosTracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+
+/**
+ * Starts a simulated fleet and a control point on loopback, then measures
+ * what the app does against a real network: how long discovery takes, how
+ * long muting every zone at once and restoring them takes, and how long a
+ * zone that drops off takes to be found again.
+ *
+ * Muting goes through a MuteEngine set up as MuteDaemon sets one up, so
+ * what's measured is the app's own fan-out, deadline and evented mute
+ * state, not a copy of them.
+ *
+ * Options are those of {@link SimulatedFleet#create}, plus --rounds (mute
+ * and unmute cycles), --drop (zones taken off the network when measuring
+ * recovery), --timeout (ms allowed for discovery and recovery) and
+ * --ssdp-loss (the fraction of SSDP datagrams the control point never
+ * receives, as on a network that drops multicast).
+ */
+public class FleetProbe implements Notifier, Alarm, Sonos.Failure {
+
+  private static final Logger log = Logger.getLogger(FleetProbe.class.getName());
+
+  private static final String NETWORK = "loopback";
+
+  // Longer than MuteEngine's own fan-out deadline, which always reports.
+  private static final long FAN_OUT_TIMEOUT = 30 * 1000L;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final MuteEngine engine;
+  private final UpnpService controlPoint;
+  private final Map<String, RemoteDevice> devices = new ConcurrentHashMap<String, RemoteDevice>();
+  private final BlockingQueue<FanOut> fanOuts = new LinkedBlockingQueue<FanOut>();
+
+  private final double ssdpLoss;
+  private final Random random;
+  private final AtomicInteger ssdpDropped = new AtomicInteger();
+
+  private volatile CountDownLatch awaited;
+  private volatile int awaitedCount;
+  private volatile long start;
+  private volatile long firstFound;
+
+
+
+  /**
+   * @param ssdpLoss Fraction of SSDP datagrams to drop on arrival.
+   * @param seed Seed for choosing which, so runs can be repeated.
+   */
+  public FleetProbe(double ssdpLoss, long seed) {
+    this.ssdpLoss = ssdpLoss;
+    this.random = new Random(seed);
+
+    engine = new MuteEngine(executor, Clock.SYSTEM, this, this, this);
+
+    controlPoint = new UpnpServiceImpl(new LoopbackConfiguration() {
+      @Override
+      public ServiceType[] getExclusiveServiceTypes() {
+        return SonosTracker.USED_SERVICE_TYPES;
+      }
+
+      @Override
+      public StreamClient createStreamClient() {
+        return new KeepAliveStreamClient(getSyncProtocolExecutorService());
+      }
+    }, new Listener()) {
+      @Override
+      protected Router createRouter(ProtocolFactory protocolFactory, Registry registry) {
+        return new RouterImpl(getConfiguration(), protocolFactory) {
+          @Override
+          public void received(IncomingDatagramMessage message) {
+            if (dropDatagram()) {
+              ssdpDropped.incrementAndGet();
+            } else {
+              super.received(message);
+            }
+          }
+        };
+      }
+    };
+
+    engine.setControlPoint(controlPoint.getControlPoint());
+    engine.connected(NETWORK);
+  }
+
+
+
+  private boolean dropDatagram() {
+    synchronized (random) {
+      return random.nextDouble() < ssdpLoss;
+    }
+  }
+
+
+
+  /**
+   * Searches until the given number of zones have been found, returning the
+   * time taken, or -1 if they weren't all found in time.
+   */
+  long discover(int count, long timeoutMillis) throws InterruptedException {
+    start = System.currentTimeMillis();
+    firstFound = 0;
+    awaitedCount = count;
+    awaited = new CountDownLatch(devices.size() >= count ? 0 : 1);
+
+    // Search as the app does, backing off from a second.
+    long delay = 1000L;
+    while (System.currentTimeMillis() - start < timeoutMillis) {
+      controlPoint.getControlPoint().search(new UDADeviceTypeHeader(SonosTracker.SONOS_DEVICE_TYPE));
+      if (awaited.await(delay, TimeUnit.MILLISECONDS)) {
+        return System.currentTimeMillis() - start;
+      }
+      delay = Math.min(delay * 2, 60000L);
+    }
+    return -1;
+  }
+
+
+
+  /**
+   * Mutes every zone the engine knows about, or restores them, and waits
+   * for the engine to report how it went.
+   *
+   * @return The fan-out, or null if the engine couldn't mute or didn't
+   *     report in time.
+   */
+  FanOut fanOut(boolean mute) throws InterruptedException {
+    fanOuts.clear();
+    if (mute) {
+      Problem problem = engine.muteTemporarily();
+      if (problem != null) {
+        log.warning("Could not mute: " + problem);
+        return null;
+      }
+    } else {
+      engine.unmute();
+    }
+    return fanOuts.poll(FAN_OUT_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+
+
+  /**
+   * Takes zones off the network, waits until the control point has noticed,
+   * then puts them back and returns how long they took to be found again.
+   */
+  long recover(SimulatedFleet fleet, int drop, long timeoutMillis) throws InterruptedException {
+    List<SimulatedFleet.Zone> dropped = fleet.getZones().subList(0, Math.min(drop, fleet.getZones().size()));
+    for (SimulatedFleet.Zone zone : dropped) {
+      fleet.removeZone(zone);
+    }
+
+    int remaining = fleet.getZones().size() - dropped.size();
+    long waitUntil = System.currentTimeMillis() + timeoutMillis;
+    while (devices.size() > remaining && System.currentTimeMillis() < waitUntil) {
+      Thread.sleep(50L);
+    }
+
+    for (SimulatedFleet.Zone zone : dropped) {
+      fleet.restoreZone(zone);
+    }
+    return discover(fleet.getZones().size(), timeoutMillis);
+  }
+
+
+
+  public void shutdown() {
+    engine.setControlPoint(null);
+    controlPoint.shutdown();
+    executor.shutdownNow();
+  }
+
+
+
+  public void stateChanged() {
+  }
+
+
+
+  public void cannotMute(Problem problem) {
+  }
+
+
+
+  public void fanOutCompleted(boolean mute, List<MuteFanOut.Result> results, long elapsedMillis) {
+    fanOuts.add(new FanOut(results, elapsedMillis));
+  }
+
+
+
+  public void set(long elapsedRealtime) {
+    // The probe unmutes itself, well before the alarm would go off.
+  }
+
+
+
+  public void cancel() {
+  }
+
+
+
+  public void failure(Sonos sonos) {
+    log.info(sonos.getName() + " is failing: " + sonos.getHealth().getStats());
+  }
+
+
+
+  /**
+   * How a mute or restore of every zone went, as reported by the engine.
+   */
+  static class FanOut {
+
+    final List<MuteFanOut.Result> results;
+    final long elapsedMillis;
+
+    FanOut(List<MuteFanOut.Result> results, long elapsedMillis) {
+      this.results = results;
+      this.elapsedMillis = elapsedMillis;
+    }
+  }
+
+
+
+  private class Listener extends DefaultRegistryListener {
+
+    @Override
+    public void remoteDeviceAdded(Registry registry, RemoteDevice device) {
+      if (engine.deviceAdded(device) == null) {
+        return;
+      }
+
+      devices.put(device.getIdentity().getUdn().getIdentifierString(), device);
+      if (firstFound == 0) {
+        firstFound = System.currentTimeMillis() - start;
+      }
+
+      CountDownLatch latch = awaited;
+      if (latch != null && devices.size() >= awaitedCount) {
+        latch.countDown();
+      }
+    }
+
+    @Override
+    public void remoteDeviceRemoved(Registry registry, RemoteDevice device) {
+      engine.deviceRemoved(device);
+      devices.remove(device.getIdentity().getUdn().getIdentifierString());
+    }
+  }
+
+
+
+  /**
+   * Returns the given percentile of the (sorted) values, or -1 if there are
+   * none.
+   */
+  static long percentile(List<Long> sorted, double percentile) {
+    if (sorted.isEmpty()) {
+      return -1;
+    }
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+  }
+
+
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = SimulatedFleet.parseArgs(args);
+    int rounds = (int) SimulatedFleet.getLong(options, "rounds", 20);
+    int drop = (int) SimulatedFleet.getLong(options, "drop", 1);
+    long timeout = SimulatedFleet.getLong(options, "timeout", 120000);
+    double ssdpLoss = SimulatedFleet.getDouble(options, "ssdp-loss", 0.0);
+    long seed = SimulatedFleet.getLong(options, "seed", 1);
+
+    SimulatedFleet fleet = SimulatedFleet.create(options, new LoopbackConfiguration());
+    FleetProbe probe = new FleetProbe(ssdpLoss, seed);
+    int numZones = fleet.getZones().size();
+
+    try {
+      long discovered = probe.discover(numZones, timeout);
+      System.out.println("Discovery: first zone " + probe.firstFound + "ms, all " + numZones + " zones "
+              + (discovered >= 0 ? discovered + "ms" : "not found within " + timeout + "ms"
+              + " (found " + probe.devices.size() + ")")
+              + (ssdpLoss > 0 ? ", " + probe.ssdpDropped.get() + " SSDP datagrams dropped" : ""));
+
+      List<Long> latencies = new ArrayList<Long>();
+      List<Long> fanOutTimes = new ArrayList<Long>();
+      int failures = 0;
+      int calls = 0;
+
+      for (int round = 0; round < rounds; round++) {
+        for (boolean mute : new boolean[] {true, false}) {
+          FanOut fanOut = probe.fanOut(mute);
+          if (fanOut == null) {
+            failures += numZones;
+            calls += numZones;
+            continue;
+          }
+
+          fanOutTimes.add(fanOut.elapsedMillis);
+          for (MuteFanOut.Result result : fanOut.results) {
+            calls++;
+            if (result.getOutcome() == MuteFanOut.Outcome.SUCCEEDED) {
+              latencies.add(result.getLatencyMillis());
+            } else {
+              failures++;
+            }
+          }
+        }
+      }
+
+      Collections.sort(latencies);
+      Collections.sort(fanOutTimes);
+
+      System.out.println("Per zone: p50 " + percentile(latencies, 50) + "ms, p90 " + percentile(latencies, 90)
+              + "ms, p99 " + percentile(latencies, 99) + "ms, max " + percentile(latencies, 100) + "ms");
+      System.out.println("Fan-out of " + numZones + " zones: p50 " + percentile(fanOutTimes, 50) + "ms, p90 "
+              + percentile(fanOutTimes, 90) + "ms, max " + percentile(fanOutTimes, 100) + "ms");
+      System.out.println("Failed or timed out: " + failures + " of " + calls);
+      System.out.println(probe.engine.getMetrics().snapshot());
+
+      if (drop > 0) {
+        long recovered = probe.recover(fleet, drop, timeout);
+        System.out.println("Recovery of " + drop + " dropped zones: "
+                + (recovered >= 0 ? recovered + "ms" : "not within " + timeout + "ms"));
+      }
+
+    } finally {
+      probe.shutdown();
+      fleet.shutdown();
+    }
+  }
+
+}
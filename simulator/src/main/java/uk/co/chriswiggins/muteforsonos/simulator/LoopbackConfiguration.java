@@ -0,0 +1,88 @@
+package uk.co.chriswiggins.muteforsonos.simulator;
+
+import org.fourthline.cling.DefaultUpnpServiceConfiguration;
+import org.fourthline.cling.transport.impl.NetworkAddressFactoryImpl;
+import org.fourthline.cling.transport.spi.InitializationException;
+import org.fourthline.cling.transport.spi.MulticastReceiver;
+import org.fourthline.cling.transport.spi.NetworkAddressFactory;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Cling configuration that keeps everything on the loopback interface, so a
+ * simulated fleet and the control point measuring it don't touch (or get
+ * disturbed by) the real network.
+ *
+ * On Linux the loopback interface doesn't do multicast by default, so SSDP
+ * needs: <code>ip link set lo multicast on</code>. Without SSDP, devices
+ * can still be found by fetching their descriptors directly (see
+ * SimulatedFleet.getDescriptorUrl), as tests do.
+ */
+public class LoopbackConfiguration extends DefaultUpnpServiceConfiguration {
+
+  private final boolean multicast;
+
+
+
+  public LoopbackConfiguration() {
+    this(true);
+  }
+
+
+
+  /**
+   * @param multicast Whether to listen for SSDP multicasts. Without, no
+   *     special set up of the loopback interface is needed.
+   */
+  public LoopbackConfiguration(boolean multicast) {
+    this.multicast = multicast;
+  }
+
+
+
+  @Override
+  public MulticastReceiver createMulticastReceiver(NetworkAddressFactory networkAddressFactory) {
+    return multicast ? super.createMulticastReceiver(networkAddressFactory) : null;
+  }
+
+  @Override
+  protected NetworkAddressFactory createNetworkAddressFactory(int streamListenPort) {
+    return new LoopbackAddressFactory(streamListenPort);
+  }
+
+
+
+  /**
+   * Lets a couple of hundred simulated Sonos systems stall at once without
+   * running out of threads.
+   */
+  @Override
+  protected ExecutorService createDefaultExecutorService() {
+    return Executors.newCachedThreadPool();
+  }
+
+
+
+  private static class LoopbackAddressFactory extends NetworkAddressFactoryImpl {
+
+    LoopbackAddressFactory(int streamListenPort) throws InitializationException {
+      super(streamListenPort);
+    }
+
+    @Override
+    protected boolean isUsableNetworkInterface(NetworkInterface iface) throws Exception {
+      return iface.isUp() && iface.isLoopback();
+    }
+
+    @Override
+    protected boolean isUsableAddress(NetworkInterface networkInterface, InetAddress address) {
+      return address instanceof Inet4Address && address.isLoopbackAddress();
+    }
+  }
+
+}
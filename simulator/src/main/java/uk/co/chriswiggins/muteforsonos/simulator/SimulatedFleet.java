@@ -0,0 +1,266 @@
+package uk.co.chriswiggins.muteforsonos.simulator;
+
+import org.fourthline.cling.DefaultUpnpServiceConfiguration;
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.binding.annotations.AnnotationLocalServiceBinder;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.meta.DeviceDetails;
+import org.fourthline.cling.model.meta.DeviceIdentity;
+import org.fourthline.cling.model.meta.LocalDevice;
+import org.fourthline.cling.model.meta.LocalService;
+import org.fourthline.cling.model.meta.ManufacturerDetails;
+import org.fourthline.cling.model.meta.ModelDetails;
+import org.fourthline.cling.model.NetworkAddress;
+import org.fourthline.cling.model.types.UDADeviceType;
+import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.support.lastchange.LastChangeAwareServiceManager;
+import org.fourthline.cling.support.renderingcontrol.AbstractAudioRenderingControl;
+import org.fourthline.cling.support.renderingcontrol.lastchange.RenderingControlLastChangeParser;
+import org.fourthline.cling.transport.RouterException;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * A fleet of simulated Sonos systems. Each advertises itself over SSDP as a
+ * ZonePlayer and has a RenderingControl service whose GetMute/SetMute (and
+ * volume) actions behave as set by a {@link ZoneBehaviour}.
+ *
+ * Run on its own with --lan, the fleet can be found by the app on a real
+ * phone. Otherwise it stays on loopback, for {@link FleetProbe}.
+ */
+public class SimulatedFleet {
+
+  private static final Logger log = Logger.getLogger(SimulatedFleet.class.getName());
+
+  private static final long LAST_CHANGE_INTERVAL = 500L;
+
+  private final UpnpService upnpService;
+  private final List<Zone> zones = new ArrayList<Zone>();
+  private final ScheduledExecutorService eventer = Executors.newSingleThreadScheduledExecutor();
+
+
+
+  public SimulatedFleet(UpnpServiceConfiguration configuration) {
+    this.upnpService = new UpnpServiceImpl(configuration);
+
+    eventer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        for (Zone zone : getZones()) {
+          zone.manager.fireLastChange();
+        }
+      }
+    }, LAST_CHANGE_INTERVAL, LAST_CHANGE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+
+
+  /**
+   * Adds a zone, which is advertised straight away.
+   */
+  public synchronized Zone addZone(ZoneBehaviour behaviour) throws ValidationException {
+    Zone zone = new Zone(zones.size(), behaviour);
+    zones.add(zone);
+    upnpService.getRegistry().addDevice(zone.device);
+    return zone;
+  }
+
+
+
+  public synchronized List<Zone> getZones() {
+    return new ArrayList<Zone>(zones);
+  }
+
+
+
+  /**
+   * Takes a zone off the network, as if it had been unplugged. It says
+   * byebye, unlike a real one.
+   */
+  public void removeZone(Zone zone) {
+    upnpService.getRegistry().removeDevice(zone.device);
+  }
+
+
+
+  /**
+   * Puts a zone removed by {@link #removeZone} back on the network.
+   */
+  public void restoreZone(Zone zone) {
+    upnpService.getRegistry().addDevice(zone.device);
+  }
+
+
+
+  /**
+   * Returns where the given zone's device descriptor can be fetched from,
+   * so a control point can find it without SSDP.
+   */
+  public URL getDescriptorUrl(Zone zone) throws RouterException, MalformedURLException {
+    NetworkAddress address = upnpService.getRouter().getActiveStreamServers(null).get(0);
+    String path = upnpService.getConfiguration().getNamespace().getDescriptorPath(zone.device).toString();
+    return new URL("http", address.getAddress().getHostAddress(), address.getPort(), path);
+  }
+
+
+
+  public int countMuted() {
+    int muted = 0;
+    for (Zone zone : getZones()) {
+      if (zone.isMuted()) {
+        muted++;
+      }
+    }
+    return muted;
+  }
+
+
+
+  public void shutdown() {
+    eventer.shutdownNow();
+    upnpService.shutdown();
+  }
+
+
+
+  /**
+   * A single simulated Sonos system.
+   */
+  public static class Zone {
+
+    private final LocalDevice device;
+    private final LastChangeAwareServiceManager<AbstractAudioRenderingControl> manager;
+
+    @SuppressWarnings("unchecked")
+    Zone(int index, final ZoneBehaviour behaviour) throws ValidationException {
+      LocalService<AbstractAudioRenderingControl> service =
+              new AnnotationLocalServiceBinder().read(AbstractAudioRenderingControl.class);
+
+      manager = new LastChangeAwareServiceManager<AbstractAudioRenderingControl>(
+              service, new RenderingControlLastChangeParser()) {
+        @Override
+        protected AbstractAudioRenderingControl createServiceInstance() throws Exception {
+          return new SimulatedRenderingControl(behaviour);
+        }
+      };
+      service.setManager(manager);
+
+      device = new LocalDevice(
+              new DeviceIdentity(new UDN(String.format("RINCON_5151%08d01400", index))),
+              new UDADeviceType("ZonePlayer", 1),
+              new DeviceDetails("Simulated Zone " + (index + 1),
+                      new ManufacturerDetails("Sonos, Inc."),
+                      new ModelDetails("Simulated ZonePlayer", "Simulated Sonos system", "1")),
+              service);
+    }
+
+    public LocalDevice getDevice() {
+      return device;
+    }
+
+    public String getId() {
+      return device.getIdentity().getUdn().getIdentifierString();
+    }
+
+    public boolean isMuted() {
+      return ((SimulatedRenderingControl) manager.getImplementation()).isMuted();
+    }
+  }
+
+
+
+  /**
+   * Parses arguments of the form --name value.
+   */
+  static Map<String, String> parseArgs(String[] args) {
+    Map<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+      }
+      String name = args[i].substring(2);
+      if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+        options.put(name, args[++i]);
+      } else {
+        options.put(name, "true");
+      }
+    }
+    return Collections.unmodifiableMap(options);
+  }
+
+
+
+  static long getLong(Map<String, String> options, String name, long defaultValue) {
+    return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+  }
+
+
+
+  static double getDouble(Map<String, String> options, String name, double defaultValue) {
+    return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+  }
+
+
+
+  /**
+   * Creates a fleet as described by the given options: --zones, --latency,
+   * --jitter (both in ms), --loss, --failure (both fractions), --stall (ms)
+   * and --seed.
+   */
+  static SimulatedFleet create(Map<String, String> options, UpnpServiceConfiguration configuration)
+          throws ValidationException {
+    int numZones = (int) getLong(options, "zones", 10);
+    long latency = getLong(options, "latency", 20);
+    long jitter = getLong(options, "jitter", 5);
+    double loss = getDouble(options, "loss", 0.0);
+    double failure = getDouble(options, "failure", 0.0);
+    long stall = getLong(options, "stall", 10000);
+    long seed = getLong(options, "seed", 1);
+
+    SimulatedFleet fleet = new SimulatedFleet(configuration);
+    for (int i = 0; i < numZones; i++) {
+      fleet.addZone(new ZoneBehaviour(latency, jitter, loss, failure, stall, seed + i));
+    }
+
+    log.info("Started " + numZones + " simulated zones: "
+            + new ZoneBehaviour(latency, jitter, loss, failure, stall, seed));
+    return fleet;
+  }
+
+
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = parseArgs(args);
+    UpnpServiceConfiguration configuration = options.containsKey("lan")
+            ? new DefaultUpnpServiceConfiguration()
+            : new LoopbackConfiguration();
+
+    final SimulatedFleet fleet = create(options, configuration);
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        fleet.shutdown();
+      }
+    });
+
+    while (true) {
+      Thread.sleep(10000L);
+      log.info(fleet.countMuted() + " of " + fleet.getZones().size() + " zones muted");
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package uk.co.chriswiggins.muteforsonos.simulator;
+
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.model.types.UnsignedIntegerTwoBytes;
+import org.fourthline.cling.support.lastchange.LastChange;
+import org.fourthline.cling.support.model.Channel;
+import org.fourthline.cling.support.renderingcontrol.AbstractAudioRenderingControl;
+import org.fourthline.cling.support.renderingcontrol.RenderingControlException;
+import org.fourthline.cling.support.renderingcontrol.lastchange.ChannelMute;
+import org.fourthline.cling.support.renderingcontrol.lastchange.ChannelVolume;
+import org.fourthline.cling.support.renderingcontrol.lastchange.RenderingControlLastChangeParser;
+import org.fourthline.cling.support.renderingcontrol.lastchange.RenderingControlVariable;
+
+
+/**
+ * The RenderingControl service of a simulated Sonos system. Holds a single
+ * master mute and volume, evented through LastChange as a real one does.
+ */
+public class SimulatedRenderingControl extends AbstractAudioRenderingControl {
+
+  private static final UnsignedIntegerFourBytes INSTANCE_ID = new UnsignedIntegerFourBytes(0);
+
+  private final ZoneBehaviour behaviour;
+
+  private volatile boolean mute = false;
+  private volatile int volume = 20;
+
+
+
+  public SimulatedRenderingControl(ZoneBehaviour behaviour) {
+    super(new LastChange(new RenderingControlLastChangeParser()));
+    this.behaviour = behaviour;
+  }
+
+
+
+  public boolean isMuted() {
+    return mute;
+  }
+
+
+
+  @Override
+  public boolean getMute(UnsignedIntegerFourBytes instanceId, String channelName) throws RenderingControlException {
+    behaviour.apply("GetMute");
+    return mute;
+  }
+
+
+
+  @Override
+  public void setMute(UnsignedIntegerFourBytes instanceId, String channelName, boolean desiredMute)
+          throws RenderingControlException {
+    behaviour.apply("SetMute");
+    mute = desiredMute;
+    getLastChange().setEventedValue(INSTANCE_ID,
+            new RenderingControlVariable.Mute(new ChannelMute(Channel.Master, desiredMute)));
+  }
+
+
+
+  @Override
+  public UnsignedIntegerTwoBytes getVolume(UnsignedIntegerFourBytes instanceId, String channelName)
+          throws RenderingControlException {
+    behaviour.apply("GetVolume");
+    return new UnsignedIntegerTwoBytes(volume);
+  }
+
+
+
+  @Override
+  public void setVolume(UnsignedIntegerFourBytes instanceId, String channelName, UnsignedIntegerTwoBytes desiredVolume)
+          throws RenderingControlException {
+    behaviour.apply("SetVolume");
+    volume = desiredVolume.getValue().intValue();
+    getLastChange().setEventedValue(INSTANCE_ID,
+            new RenderingControlVariable.Volume(new ChannelVolume(Channel.Master, volume)));
+  }
+
+
+
+  @Override
+  protected Channel[] getCurrentChannels() {
+    return new Channel[] {Channel.Master};
+  }
+
+
+
+  @Override
+  public UnsignedIntegerFourBytes[] getCurrentInstanceIds() {
+    return new UnsignedIntegerFourBytes[] {INSTANCE_ID};
+  }
+
+}
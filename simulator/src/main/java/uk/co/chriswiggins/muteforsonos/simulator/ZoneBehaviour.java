@@ -0,0 +1,94 @@
+package uk.co.chriswiggins.muteforsonos.simulator;
+
+import org.fourthline.cling.model.types.ErrorCode;
+import org.fourthline.cling.support.renderingcontrol.RenderingControlException;
+
+import java.util.Random;
+
+
+/**
+ * How a simulated Sonos system responds to actions: how long it takes, how
+ * much that varies, and how often it loses the request or fails.
+ *
+ * A lost request is simulated by stalling the response for longer than a
+ * control point will wait, which is what a dropped packet looks like from
+ * the other end of a TCP connection.
+ */
+public class ZoneBehaviour {
+
+  private final long latencyMillis;
+  private final long jitterMillis;
+  private final double lossRate;
+  private final double failureRate;
+  private final long lossStallMillis;
+  private final Random random;
+
+
+
+  /**
+   * @param latencyMillis Mean time taken to respond.
+   * @param jitterMillis Standard deviation of the time taken to respond.
+   * @param lossRate Fraction of requests whose response is stalled.
+   * @param failureRate Fraction of requests answered with a UPnP error.
+   * @param lossStallMillis How long a lost request stalls for.
+   * @param seed Seed for the random numbers, so runs can be repeated.
+   */
+  public ZoneBehaviour(long latencyMillis, long jitterMillis, double lossRate, double failureRate,
+                       long lossStallMillis, long seed) {
+    this.latencyMillis = latencyMillis;
+    this.jitterMillis = jitterMillis;
+    this.lossRate = lossRate;
+    this.failureRate = failureRate;
+    this.lossStallMillis = lossStallMillis;
+    this.random = new Random(seed);
+  }
+
+
+
+  /**
+   * Called at the start of each action. Waits as long as the action should
+   * take, then either returns or throws to fail it.
+   */
+  public void apply(String action) throws RenderingControlException {
+    double lossRoll;
+    double failureRoll;
+    double gaussian;
+    synchronized (random) {
+      lossRoll = random.nextDouble();
+      failureRoll = random.nextDouble();
+      gaussian = random.nextGaussian();
+    }
+
+    long delay = Math.max(0L, latencyMillis + Math.round(gaussian * jitterMillis));
+    if (lossRoll < lossRate) {
+      delay = lossStallMillis;
+    }
+    sleep(delay);
+
+    if (failureRoll < failureRate) {
+      throw new RenderingControlException(ErrorCode.ACTION_FAILED, "Simulated failure of " + action);
+    }
+  }
+
+
+
+  @Override
+  public String toString() {
+    return "latency " + latencyMillis + "ms, jitter " + jitterMillis + "ms, loss " + lossRate
+            + ", failure " + failureRate;
+  }
+
+
+
+  private static void sleep(long millis) {
+    if (millis <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}